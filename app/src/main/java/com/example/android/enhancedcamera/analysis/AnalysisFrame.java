@@ -0,0 +1,103 @@
+package com.example.android.enhancedcamera.analysis;
+
+import android.media.Image;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Copy of a YUV_420_888 preview frame, with tightly packed planes: a
+ * full resolution Y plane, and quarter resolution U and V planes.
+ *
+ * The camera buffer is returned as soon as it is copied, so slow
+ * analyzers never hold up the camera. Frames are shared between
+ * analyzers and recycled once the last of them is done.
+ */
+public final class AnalysisFrame {
+    private final FrameAnalysisStage mOwner;
+    private final int mWidth;
+    private final int mHeight;
+    private final byte[] mY;
+    private final byte[] mU;
+    private final byte[] mV;
+    private final AtomicInteger mReferences = new AtomicInteger();
+    private long mTimestamp;
+
+    AnalysisFrame(FrameAnalysisStage owner, int width, int height) {
+        mOwner = owner;
+        mWidth = width;
+        mHeight = height;
+        mY = new byte[width * height];
+        mU = new byte[(width / 2) * (height / 2)];
+        mV = new byte[mU.length];
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    //Sensor timestamp of the frame
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    //Row stride is the frame width
+    public byte[] getY() {
+        return mY;
+    }
+
+    //Row stride is half the frame width
+    public byte[] getU() {
+        return mU;
+    }
+
+    public byte[] getV() {
+        return mV;
+    }
+
+    //Fill from the image, which the caller still owns
+    void copyFrom(Image image) {
+        mTimestamp = image.getTimestamp();
+        Image.Plane[] planes = image.getPlanes();
+        copyPlane(planes[0], mY, mWidth, mHeight);
+        copyPlane(planes[1], mU, mWidth / 2, mHeight / 2);
+        copyPlane(planes[2], mV, mWidth / 2, mHeight / 2);
+    }
+
+    private static void copyPlane(Image.Plane plane, byte[] out,
+                                  int width, int height) {
+        ByteBuffer buffer = plane.getBuffer();
+        int rowStride = plane.getRowStride();
+        int pixelStride = plane.getPixelStride();
+
+        for (int row = 0; row < height; row++) {
+            int rowStart = row * rowStride;
+            int outStart = row * width;
+            if (pixelStride == 1) {
+                //Bulk copy, the common case for the Y plane
+                buffer.position(rowStart);
+                buffer.get(out, outStart, width);
+            } else {
+                //Interleaved chroma, pick out every other byte
+                for (int col = 0; col < width; col++) {
+                    out[outStart + col] =
+                            buffer.get(rowStart + col * pixelStride);
+                }
+            }
+        }
+    }
+
+    void retain(int count) {
+        mReferences.addAndGet(count);
+    }
+
+    void release() {
+        if (mReferences.decrementAndGet() == 0) {
+            mOwner.recycle(this);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.example.android.enhancedcamera.analysis;
+
+import com.example.android.enhancedcamera.common.LatencyHistogram;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Running counters for one analyzer. Frames are dropped when a newer
+ * frame replaces one the analyzer had not started on yet.
+ */
+public final class AnalyzerStats {
+    private final String mName;
+    private final long mBudgetNs;
+    private final AtomicLong mProcessed = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+    private final AtomicLong mOverBudget = new AtomicLong();
+    private final LatencyHistogram mLatency = new LatencyHistogram();
+
+    AnalyzerStats(String name, long budgetNs) {
+        mName = name;
+        mBudgetNs = budgetNs;
+    }
+
+    void onProcessed(long elapsedNs) {
+        mProcessed.incrementAndGet();
+        mLatency.record(elapsedNs);
+        if (elapsedNs > mBudgetNs) {
+            mOverBudget.incrementAndGet();
+        }
+    }
+
+    void onDropped() {
+        mDropped.incrementAndGet();
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public long getBudgetNs() {
+        return mBudgetNs;
+    }
+
+    public long getProcessed() {
+        return mProcessed.get();
+    }
+
+    public long getDropped() {
+        return mDropped.get();
+    }
+
+    //Frames that took longer than the budget
+    public long getOverBudget() {
+        return mOverBudget.get();
+    }
+
+    public LatencyHistogram getLatency() {
+        return mLatency;
+    }
+
+    @Override
+    public String toString() {
+        return mName + ": " + getProcessed() + " processed, "
+                + getDropped() + " dropped, " + getOverBudget()
+                + " over " + (mBudgetNs / 1000000) + "ms budget, " + mLatency;
+    }
+}
@@ -0,0 +1,279 @@
+package com.example.android.enhancedcamera.analysis;
+
+import android.graphics.ImageFormat;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.Size;
+import android.view.Surface;
+
+import com.example.android.enhancedcamera.common.CameraExecutor;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Optional analysis stream alongside the preview. A small YUV_420_888
+ * ImageReader receives preview frames, and registered analyzers see
+ * copies of them on a pool of background worker threads.
+ *
+ * Only the latest frame matters. The newest image is copied out and
+ * returned to the camera at once, so the camera never waits on an
+ * analyzer. Each analyzer has a single pending slot; a frame that
+ * arrives while it is busy replaces whatever was waiting there, and the
+ * replaced frame counts as dropped for that analyzer.
+ *
+ * With no analyzers registered, frames are returned without a copy.
+ */
+public class FrameAnalysisStage
+        implements ImageReader.OnImageAvailableListener {
+    private static final String TAG =
+            FrameAnalysisStage.class.getSimpleName();
+
+    //One image being copied, one the camera can fill meanwhile
+    private static final int MAX_IMAGES = 2;
+
+    //Links an analyzer to the worker pool, at most one task queued each
+    private class Registration implements Runnable {
+        final FrameAnalyzer analyzer;
+        final long budgetNs;
+        final AnalyzerStats stats;
+        final AtomicReference<AnalysisFrame> pending =
+                new AtomicReference<AnalysisFrame>();
+        final AtomicBoolean scheduled = new AtomicBoolean();
+
+        Registration(String name, FrameAnalyzer analyzer, long budgetNs) {
+            this.analyzer = analyzer;
+            this.budgetNs = budgetNs;
+            this.stats = new AnalyzerStats(name, budgetNs);
+        }
+
+        //Runs on the camera thread
+        void offer(AnalysisFrame frame) {
+            AnalysisFrame replaced = pending.getAndSet(frame);
+            if (replaced != null) {
+                replaced.release();
+                stats.onDropped();
+            }
+            schedule();
+        }
+
+        void schedule() {
+            if (!scheduled.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                mWorkers.execute(this);
+            } catch (RejectedExecutionException e) {
+                //Stage is closed, frames are left to the collector
+                scheduled.set(false);
+            }
+        }
+
+        //Runs on a worker, one frame per task so analyzers take turns
+        @Override
+        public void run() {
+            AnalysisFrame frame = pending.getAndSet(null);
+            if (frame != null) {
+                try {
+                    process(frame);
+                } finally {
+                    frame.release();
+                }
+            }
+
+            scheduled.set(false);
+            //A frame may have landed while we were working
+            if (pending.get() != null) {
+                schedule();
+            }
+        }
+
+        private void process(AnalysisFrame frame) {
+            long start = SystemClock.elapsedRealtimeNanos();
+            try {
+                analyzer.analyze(frame, start + budgetNs);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Analyzer " + stats.getName() + " failed", e);
+            }
+            stats.onProcessed(SystemClock.elapsedRealtimeNanos() - start);
+        }
+    }
+
+    private final Size mSize;
+    private final ImageReader mImageReader;
+    private final ExecutorService mWorkers;
+    private final List<Registration> mRegistrations =
+            new CopyOnWriteArrayList<Registration>();
+    //Frames no analyzer holds, reused so steady state never allocates
+    private final ArrayDeque<AnalysisFrame> mFreeFrames =
+            new ArrayDeque<AnalysisFrame>();
+
+    private volatile long mFramesReceived;
+    private boolean mClosed;
+
+    /**
+     * @param analysisSize A supported YUV_420_888 output size, kept small
+     * @param workerCount Threads analyzers share
+     */
+    public FrameAnalysisStage(Size analysisSize, CameraExecutor executor,
+                              int workerCount) {
+        mSize = analysisSize;
+        mWorkers = createWorkers(workerCount);
+
+        mImageReader = ImageReader.newInstance(
+                analysisSize.getWidth(),
+                analysisSize.getHeight(),
+                ImageFormat.YUV_420_888, /* ImageFormat */
+                MAX_IMAGES /* MaxImages */ );
+        mImageReader.setOnImageAvailableListener(this,
+                executor.getHandler());
+    }
+
+    //Background priority, so analysis never competes with the camera
+    private static ExecutorService createWorkers(int workerCount) {
+        final AtomicInteger index = new AtomicInteger();
+        return new ThreadPoolExecutor(workerCount, workerCount,
+                0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(
+                                        Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, "FrameAnalysis-" + index.incrementAndGet());
+                    }
+                });
+    }
+
+    public Size getSize() {
+        return mSize;
+    }
+
+    public Surface getTargetSurface() {
+        return mImageReader.getSurface();
+    }
+
+    /**
+     * Start delivering frames to the analyzer, which should aim to
+     * finish each one within the budget. Returns its live counters.
+     */
+    public AnalyzerStats addAnalyzer(String name, FrameAnalyzer analyzer,
+                                     long budgetMs) {
+        Registration registration = new Registration(name, analyzer,
+                TimeUnit.MILLISECONDS.toNanos(budgetMs));
+        mRegistrations.add(registration);
+        return registration.stats;
+    }
+
+    /**
+     * Stop delivering frames to the analyzer. A call already in
+     * progress is allowed to finish.
+     */
+    public void removeAnalyzer(FrameAnalyzer analyzer) {
+        for (Registration registration : mRegistrations) {
+            if (registration.analyzer == analyzer) {
+                mRegistrations.remove(registration);
+                AnalysisFrame frame = registration.pending.getAndSet(null);
+                if (frame != null) {
+                    frame.release();
+                }
+            }
+        }
+    }
+
+    public long getFramesReceived() {
+        return mFramesReceived;
+    }
+
+    @Override
+    public synchronized void onImageAvailable(ImageReader reader) {
+        if (mClosed) {
+            return;
+        }
+
+        //Anything older than the newest image is of no use to anyone
+        Image image = reader.acquireLatestImage();
+        if (image == null) {
+            return;
+        }
+        mFramesReceived++;
+
+        //One view of the list for the count and the handout, so a
+        //concurrent remove can't leave a reference no one releases
+        Registration[] registrations =
+                mRegistrations.toArray(new Registration[0]);
+        if (registrations.length == 0) {
+            image.close();
+            return;
+        }
+
+        AnalysisFrame frame = obtainFrame();
+        try {
+            frame.copyFrom(image);
+        } finally {
+            image.close();
+        }
+
+        //Hold a reference of our own until every analyzer has one
+        frame.retain(1 + registrations.length);
+        for (Registration registration : registrations) {
+            registration.offer(frame);
+        }
+        frame.release();
+    }
+
+    private AnalysisFrame obtainFrame() {
+        synchronized (mFreeFrames) {
+            AnalysisFrame frame = mFreeFrames.poll();
+            if (frame != null) {
+                return frame;
+            }
+        }
+        return new AnalysisFrame(this, mSize.getWidth(), mSize.getHeight());
+    }
+
+    //Called by the frame once its last reference is released
+    void recycle(AnalysisFrame frame) {
+        synchronized (mFreeFrames) {
+            mFreeFrames.push(frame);
+        }
+    }
+
+    public void dump(String prefix, PrintWriter writer) {
+        writer.println(prefix + "Analysis " + mSize + ": "
+                + mFramesReceived + " frames received");
+        for (Registration registration : mRegistrations) {
+            writer.println(prefix + "  " + registration.stats);
+        }
+    }
+
+    /**
+     * Stop analysis and release the reader. Analyzers already running
+     * finish in the background.
+     */
+    public synchronized void close() {
+        mClosed = true;
+        mRegistrations.clear();
+        mImageReader.close();
+        mWorkers.shutdown();
+    }
+}
@@ -0,0 +1,17 @@
+package com.example.android.enhancedcamera.analysis;
+
+/**
+ * Consumer of low resolution preview frames, registered with a
+ * {@link FrameAnalysisStage}. Calls for one analyzer never overlap,
+ * but different analyzers run concurrently on the worker pool.
+ */
+public interface FrameAnalyzer {
+
+    /**
+     * Examine one frame. The frame is only valid for the duration of
+     * the call, and must not be modified. Work should wrap up by the
+     * deadline, in elapsedRealtimeNanos; frames that arrive meanwhile
+     * are dropped in favor of the latest one.
+     */
+    void analyze(AnalysisFrame frame, long deadlineNs);
+}
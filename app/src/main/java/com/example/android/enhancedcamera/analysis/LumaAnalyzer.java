@@ -0,0 +1,45 @@
+package com.example.android.enhancedcamera.analysis;
+
+import android.os.SystemClock;
+
+/**
+ * Example analyzer: average scene brightness, from a sparse grid of
+ * luma samples. Gives up on a frame, keeping the last full result, if
+ * it runs past its deadline.
+ */
+public class LumaAnalyzer implements FrameAnalyzer {
+
+    //Distance between samples, in pixels, both ways
+    private static final int SAMPLE_STEP = 4;
+
+    private volatile int mMeanLuma = -1;
+
+    @Override
+    public void analyze(AnalysisFrame frame, long deadlineNs) {
+        byte[] y = frame.getY();
+        int width = frame.getWidth();
+        int height = frame.getHeight();
+
+        long sum = 0;
+        int count = 0;
+        for (int row = 0; row < height; row += SAMPLE_STEP) {
+            if (SystemClock.elapsedRealtimeNanos() > deadlineNs) {
+                return;
+            }
+            int offset = row * width;
+            for (int col = 0; col < width; col += SAMPLE_STEP) {
+                sum += y[offset + col] & 0xFF;
+                count++;
+            }
+        }
+
+        if (count > 0) {
+            mMeanLuma = (int) (sum / count);
+        }
+    }
+
+    //Mean luma of the last frame, 0-255, or -1 before the first
+    public int getMeanLuma() {
+        return mMeanLuma;
+    }
+}
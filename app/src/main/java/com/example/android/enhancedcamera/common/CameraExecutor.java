@@ -0,0 +1,42 @@
+package com.example.android.enhancedcamera.common;
+
+import android.os.Handler;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Execution context for all camera work. Device state, session
+ * configuration and capture results are delivered on a dedicated
+ * camera thread; only UI updates are posted back to the main thread.
+ */
+public interface CameraExecutor extends Executor {
+
+    /**
+     * Handler to pass into the Camera2 APIs so their callbacks arrive
+     * on the camera thread. May be null for stand-ins that do not run
+     * on a Looper.
+     */
+    Handler getHandler();
+
+    /**
+     * Run a task on the camera thread.
+     */
+    @Override
+    void execute(Runnable task);
+
+    /**
+     * Post a UI update back to the main thread.
+     */
+    void executeOnUiThread(Runnable task);
+
+    /**
+     * Return true if the caller is running on the camera thread.
+     */
+    boolean isCameraThread();
+
+    /**
+     * Stop accepting new work and release the camera thread once
+     * any pending callbacks have been delivered.
+     */
+    void shutdown();
+}
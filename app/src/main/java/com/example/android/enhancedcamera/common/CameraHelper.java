@@ -1,6 +1,8 @@
 package com.example.android.enhancedcamera.common;
 
 import android.content.Context;
+import android.graphics.ImageFormat;
+import android.graphics.Point;
 import android.graphics.SurfaceTexture;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCharacteristics;
@@ -8,15 +10,20 @@ import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.CaptureRequest;
 import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.CamcorderProfile;
+import android.media.MediaRecorder;
+import android.os.Handler;
 import android.util.Log;
 import android.util.Size;
+import android.view.WindowManager;
 
-import java.util.ArrayList;
+import java.io.PrintWriter;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.TreeMap;
 
 /**
  * Helper to manage available cameras and their parameters
@@ -25,19 +32,84 @@ public class CameraHelper {
     private static final String TAG = CameraHelper.class.getSimpleName();
 
     private CameraManager mCameraManager;
+    private CameraProfileCache mProfileCache;
+    private CameraExecutor mCameraExecutor;
+    //Devices using the current camera thread
+    private ThreadUsers mThreadUsers;
+    //Preview sizes already chosen, by camera and view size
+    private final Map<String, Size> mPreviewSizes =
+            new HashMap<String, Size>();
+    //Joint size planners by camera, and the plans they made
+    private final Map<String, ResolutionPlanner> mPlanners =
+            new HashMap<String, ResolutionPlanner>();
+    private final Map<String, ResolutionPlanner.Plan> mPlans =
+            new HashMap<String, ResolutionPlanner.Plan>();
+    private final Size mDisplaySize;
 
     public CameraHelper(Context context) {
         mCameraManager = (CameraManager) context
                 .getSystemService(Context.CAMERA_SERVICE);
+        mProfileCache = CameraProfileCache.getInstance(context);
+        //Whole panel, DisplayMetrics leaves out the navigation bar
+        WindowManager windowManager = (WindowManager) context
+                .getSystemService(Context.WINDOW_SERVICE);
+        Point displaySize = new Point();
+        windowManager.getDefaultDisplay().getRealSize(displaySize);
+        mDisplaySize = new Size(displaySize.x, displaySize.y);
     }
 
     /**
-     * Open the selected camera device on the main thread
+     * Open the selected camera device. State callbacks are delivered
+     * on the camera thread, which is started here if necessary.
      */
-    public void openCamera(String cameraId,
-                           CameraDevice.StateCallback stateCallback)
+    public synchronized void openCamera(String cameraId,
+            CameraDevice.StateCallback stateCallback)
             throws CameraAccessException {
-        mCameraManager.openCamera(cameraId, stateCallback, null);
+        CameraExecutor executor = getCameraExecutor();
+        ThreadUsers users = mThreadUsers;
+        users.acquire();
+        try {
+            mCameraManager.openCamera(cameraId,
+                    new DeviceTracker(stateCallback, users),
+                    executor.getHandler());
+        } catch (CameraAccessException e) {
+            users.release();
+            throw e;
+        } catch (RuntimeException e) {
+            users.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Release the camera thread without waiting for it. The thread
+     * stays up until every device opened on it reports onClosed(), so
+     * the close and any image callbacks still in flight are delivered.
+     * Call after closing the devices.
+     */
+    public synchronized void closeCamera() {
+        if (mCameraExecutor != null) {
+            mThreadUsers.shutdownWhenIdle();
+            mCameraExecutor = null;
+            mThreadUsers = null;
+        }
+    }
+
+    /**
+     * Executor for all camera work, shared with the preview callbacks.
+     */
+    public synchronized CameraExecutor getCameraExecutor() {
+        if (mCameraExecutor == null) {
+            mCameraExecutor = createCameraExecutor();
+            mThreadUsers = new ThreadUsers(mCameraExecutor);
+        }
+
+        return mCameraExecutor;
+    }
+
+    //Override to run camera work somewhere else
+    protected CameraExecutor createCameraExecutor() {
+        return new CameraThread();
     }
 
     /**
@@ -51,12 +123,10 @@ public class CameraHelper {
         }
 
         try {
-            for (String cameraId : mCameraManager.getCameraIdList()) {
-                CameraCharacteristics characteristics =
-                        mCameraManager.getCameraCharacteristics(cameraId);
+            for (String cameraId : mProfileCache.getCameraIdList()) {
+                CameraProfile profile = mProfileCache.getProfile(cameraId);
 
-                if (characteristics.get(CameraCharacteristics.LENS_FACING)
-                        == cameraType) {
+                if (profile.getLensFacing() == cameraType) {
                     Log.d(TAG, "Found camera: " + cameraId);
                     return cameraId;
                 }
@@ -76,89 +146,296 @@ public class CameraHelper {
 
     /** Camera Parameters Wrapper Methods */
 
-    public StreamConfigurationMap getConfiguration(String cameraId)
+    public CameraProfile getProfile(String cameraId)
             throws CameraAccessException {
-        CameraCharacteristics characteristics =
-                mCameraManager.getCameraCharacteristics(cameraId);
+        return mProfileCache.getProfile(cameraId);
+    }
 
-        return characteristics.get(
-                CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+    public StreamConfigurationMap getConfiguration(String cameraId)
+            throws CameraAccessException {
+        return getProfile(cameraId).getConfiguration();
     }
 
     public Size getTargetPreviewSize(String cameraId,
                                      int width, int height)
             throws CameraAccessException {
-        StreamConfigurationMap map = getConfiguration(cameraId);
-
-        //Pick the minimum size preview to match the view size
-        return chooseOptimalSize(
-                map.getOutputSizes(SurfaceTexture.class),
-                width, height);
+        String key = cameraId + ":" + width + "x" + height;
+        synchronized (mPreviewSizes) {
+            Size size = mPreviewSizes.get(key);
+            if (size == null) {
+                //Pick the minimum size preview to match the view size
+                size = chooseOptimalSize(getProfile(cameraId)
+                        .getOutputSizes(SurfaceTexture.class), width, height);
+                mPreviewSizes.put(key, size);
+            }
+            return size;
+        }
     }
 
     public int getSensorOrientation(String cameraId)
             throws CameraAccessException {
-        CameraCharacteristics characteristics =
-                mCameraManager.getCameraCharacteristics(cameraId);
-
         //Get the orientation of the camera sensor
-        return characteristics.get(
-                CameraCharacteristics.SENSOR_ORIENTATION);
+        return getProfile(cameraId).getSensorOrientation();
     }
 
     public int[] getSupportedEffects(String cameraId)
             throws CameraAccessException {
-        CameraCharacteristics characteristics =
-                mCameraManager.getCameraCharacteristics(cameraId);
+        return getProfile(cameraId).getSupportedEffects();
+    }
 
-        return characteristics.get(
-                CameraCharacteristics.CONTROL_AVAILABLE_EFFECTS);
+    /**
+     * Choose the smallest size the will satisfy the minimum
+     * requested dimensions.
+     */
+    public static Size chooseOptimalSize(Size[] choices,
+                                         int width,
+                                         int height) {
+        return SizeSelector.chooseOptimalSize(choices, width, height);
     }
 
     /**
-     * Comparator to organize supported resolutions by overall size.
+     * Choose the preview, still and recording sizes of a camera
+     * together, for the given use case and preview view size.
+     *
+     * @param frameDurationNs Preview and recording must sustain this
+     * @return The plan, or null if the camera has no sizes for it
      */
-    static class CompareSizesByArea implements Comparator<Size> {
+    public ResolutionPlanner.Plan getResolutionPlan(
+            String cameraId, ResolutionPlanner.UseCase useCase,
+            int width, int height, long frameDurationNs)
+            throws CameraAccessException {
+        String key = cameraId + ":" + useCase + ":" + width + "x" + height
+                + "@" + frameDurationNs;
+        synchronized (mPlans) {
+            if (mPlans.containsKey(key)) {
+                return mPlans.get(key);
+            }
 
-        @Override
-        public int compare(Size lhs, Size rhs) {
-            // We cast here to ensure the multiplications won't overflow
-            return Long.signum((long) lhs.getWidth() * lhs.getHeight() -
-                    (long) rhs.getWidth() * rhs.getHeight());
+            ResolutionPlanner.Plan plan = getResolutionPlanner(cameraId)
+                    .plan(useCase, width, height, frameDurationNs);
+            if (plan != null) {
+                Log.d(TAG, "Camera " + cameraId + ": " + plan + " "
+                        + plan.getReasons());
+            }
+            mPlans.put(key, plan);
+            return plan;
         }
-
     }
 
     /**
-     * Choose the smallest size the will satisfy the minimum
-     * requested dimensions.
+     * Recording sizes the camera can sustain at the frame rate next
+     * to a preview stream, largest first.
      */
-    public static Size chooseOptimalSize(Size[] choices,
-                                         int width,
-                                         int height) {
+    public List<Size> getRecordableSizes(String cameraId,
+                                         long frameDurationNs)
+            throws CameraAccessException {
+        return getResolutionPlanner(cameraId).getRecordSizes(frameDurationNs);
+    }
 
-        List<Size> bigEnough = new ArrayList<Size>();
-        for (Size option : choices) {
-            if (option.getWidth() >= width && option.getHeight() >= height) {
-                bigEnough.add(option);
+    /**
+     * Planner for the camera, built on first use. Also sizes extra
+     * streams, such as a YUV stream next to the planned ones.
+     */
+    public ResolutionPlanner getResolutionPlanner(String cameraId)
+            throws CameraAccessException {
+        synchronized (mPlanners) {
+            ResolutionPlanner planner = mPlanners.get(cameraId);
+            if (planner == null) {
+                planner = createPlanner(getProfile(cameraId));
+                mPlanners.put(cameraId, planner);
             }
+            return planner;
+        }
+    }
+
+    private ResolutionPlanner createPlanner(CameraProfile profile) {
+        StreamConfigurationMap map = profile.getConfiguration();
+        return new ResolutionPlanner(profile.getHardwareLevel(),
+                getOutputs(map, SurfaceTexture.class,
+                        profile.getOutputSizes(SurfaceTexture.class)),
+                getOutputs(map, MediaRecorder.class,
+                        profile.getOutputSizes(MediaRecorder.class)),
+                getOutputs(map, ImageFormat.JPEG,
+                        profile.getOutputSizes(ImageFormat.JPEG)),
+                getOutputs(map, ImageFormat.YUV_420_888,
+                        profile.getOutputSizes(ImageFormat.YUV_420_888)),
+                mDisplaySize,
+                getMaxRecordSize(profile.getCameraId()));
+    }
+
+    //Timing of each size of a consumer class
+    private static ResolutionPlanner.Output[] getOutputs(
+            StreamConfigurationMap map, Class<?> klass, Size[] sizes) {
+        ResolutionPlanner.Output[] outputs =
+                new ResolutionPlanner.Output[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            outputs[i] = new ResolutionPlanner.Output(sizes[i],
+                    map.getOutputMinFrameDuration(klass, sizes[i]),
+                    map.getOutputStallDuration(klass, sizes[i]));
         }
+        return outputs;
+    }
 
-        // Pick the smallest of those, assuming we found any
-        if (bigEnough.size() > 0) {
-            return Collections.min(bigEnough, new CompareSizesByArea());
-        } else {
-            Log.e(TAG, "Couldn't find any suitable preview size");
-            return choices[0];
+    //Timing of each size of an ImageFormat
+    private static ResolutionPlanner.Output[] getOutputs(
+            StreamConfigurationMap map, int format, Size[] sizes) {
+        ResolutionPlanner.Output[] outputs =
+                new ResolutionPlanner.Output[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            outputs[i] = new ResolutionPlanner.Output(sizes[i],
+                    map.getOutputMinFrameDuration(format, sizes[i]),
+                    map.getOutputStallDuration(format, sizes[i]));
         }
+        return outputs;
+    }
+
+    /*
+     * Largest size the encoder profiles support for the camera, which
+     * bounds RECORD sized streams. Null if the camera has no profile,
+     * such as one not known to the legacy camera API.
+     */
+    private static Size getMaxRecordSize(String cameraId) {
+        int id;
+        try {
+            id = Integer.parseInt(cameraId);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (!CamcorderProfile.hasProfile(id, CamcorderProfile.QUALITY_HIGH)) {
+            return null;
+        }
+        CamcorderProfile profile =
+                CamcorderProfile.get(id, CamcorderProfile.QUALITY_HIGH);
+        return new Size(profile.videoFrameWidth, profile.videoFrameHeight);
     }
 
     /**
-     * Validate if a size is less than 1080p. Some devices
-     * can't handle recording above that resolution.
+     * Print every plan made so far, with the reasons behind it.
      */
-    public static boolean verifyVideoSize(Size option) {
-        return (option.getWidth() <= 1080);
+    public void dumpPlans(String prefix, PrintWriter writer) {
+        Map<String, ResolutionPlanner.Plan> plans;
+        synchronized (mPlans) {
+            plans = new TreeMap<String, ResolutionPlanner.Plan>(mPlans);
+        }
+
+        writer.print(prefix);
+        writer.println("Resolution plans:");
+        for (Map.Entry<String, ResolutionPlanner.Plan> entry
+                : plans.entrySet()) {
+            ResolutionPlanner.Plan plan = entry.getValue();
+            writer.print(prefix);
+            writer.print("  ");
+            writer.print(entry.getKey());
+            writer.print(": ");
+            writer.println(plan);
+            if (plan == null) {
+                continue;
+            }
+            for (String reason : plan.getReasons()) {
+                writer.print(prefix);
+                writer.print("    ");
+                writer.println(reason);
+            }
+        }
     }
 
+    /*
+     * Devices still open (or opening) on one camera thread. Once the
+     * thread is released and the last of them closes, it shuts down.
+     * A device that never reports onClosed() can't hold the thread
+     * forever; it is shut down after a timeout regardless.
+     */
+    private static class ThreadUsers {
+        //Longest we keep a released thread up waiting for onClosed()
+        private static final long CLOSE_TIMEOUT_MS = 2000;
+
+        private final CameraExecutor mExecutor;
+        private int mDevices;
+        private boolean mReleased;
+        private boolean mShutdown;
+
+        ThreadUsers(CameraExecutor executor) {
+            mExecutor = executor;
+        }
+
+        synchronized void acquire() {
+            mDevices++;
+        }
+
+        synchronized void release() {
+            mDevices--;
+            if (mReleased && mDevices <= 0) {
+                shutdown();
+            }
+        }
+
+        synchronized void shutdownWhenIdle() {
+            mReleased = true;
+            if (mDevices <= 0) {
+                shutdown();
+                return;
+            }
+
+            Handler handler = mExecutor.getHandler();
+            if (handler == null) {
+                shutdown();
+                return;
+            }
+            handler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (ThreadUsers.this) {
+                        if (!mShutdown) {
+                            Log.w(TAG, "Camera not closed in time, "
+                                    + "releasing camera thread");
+                            shutdown();
+                        }
+                    }
+                }
+            }, CLOSE_TIMEOUT_MS);
+        }
+
+        private void shutdown() {
+            if (!mShutdown) {
+                mShutdown = true;
+                mExecutor.shutdown();
+            }
+        }
+    }
+
+    //Counts the device out of its camera thread once it has closed
+    private static class DeviceTracker extends CameraDevice.StateCallback {
+        private final CameraDevice.StateCallback mCallback;
+        private final ThreadUsers mUsers;
+
+        DeviceTracker(CameraDevice.StateCallback callback,
+                      ThreadUsers users) {
+            mCallback = callback;
+            mUsers = users;
+        }
+
+        @Override
+        public void onOpened(CameraDevice cameraDevice) {
+            mCallback.onOpened(cameraDevice);
+        }
+
+        @Override
+        public void onClosed(CameraDevice cameraDevice) {
+            try {
+                mCallback.onClosed(cameraDevice);
+            } finally {
+                mUsers.release();
+            }
+        }
+
+        @Override
+        public void onDisconnected(CameraDevice cameraDevice) {
+            mCallback.onDisconnected(cameraDevice);
+        }
+
+        @Override
+        public void onError(CameraDevice cameraDevice, int error) {
+            mCallback.onError(cameraDevice, error);
+        }
+    }
 }
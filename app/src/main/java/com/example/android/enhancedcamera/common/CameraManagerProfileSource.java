@@ -0,0 +1,29 @@
+package com.example.android.enhancedcamera.common;
+
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraManager;
+
+/**
+ * Profile source backed by the system camera service. Every call
+ * is a binder round-trip, which is why the results are cached.
+ */
+public class CameraManagerProfileSource implements CameraProfileSource {
+
+    private final CameraManager mCameraManager;
+
+    public CameraManagerProfileSource(CameraManager cameraManager) {
+        mCameraManager = cameraManager;
+    }
+
+    @Override
+    public String[] getCameraIdList() throws CameraAccessException {
+        return mCameraManager.getCameraIdList();
+    }
+
+    @Override
+    public CameraProfile loadProfile(String cameraId)
+            throws CameraAccessException {
+        return CameraProfile.fromCharacteristics(cameraId,
+                mCameraManager.getCameraCharacteristics(cameraId));
+    }
+}
@@ -0,0 +1,143 @@
+package com.example.android.enhancedcamera.common;
+
+import android.graphics.SurfaceTexture;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.MediaRecorder;
+import android.util.Size;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Immutable snapshot of the capabilities we use from a camera device.
+ * Built once from the CameraCharacteristics and served from memory.
+ */
+public final class CameraProfile {
+    //Reported when the device does not publish its lens facing
+    public static final int LENS_FACING_UNKNOWN = -1;
+
+    //Output classes the app streams to, sizes are resolved up front
+    private static final Class<?>[] OUTPUT_CLASSES = {
+            SurfaceTexture.class, MediaRecorder.class
+    };
+
+    private final String mCameraId;
+    private final int mLensFacing;
+    private final int mSensorOrientation;
+    private final int[] mEffects;
+    private final int mHardwareLevel;
+    private final StreamConfigurationMap mConfiguration;
+    private final Map<Integer, Size[]> mFormatSizes;
+    private final Map<Class<?>, Size[]> mClassSizes;
+
+    public CameraProfile(String cameraId,
+                         int lensFacing,
+                         int sensorOrientation,
+                         int[] effects,
+                         int hardwareLevel,
+                         StreamConfigurationMap configuration,
+                         Map<Integer, Size[]> formatSizes,
+                         Map<Class<?>, Size[]> classSizes) {
+        mCameraId = cameraId;
+        mLensFacing = lensFacing;
+        mSensorOrientation = sensorOrientation;
+        mEffects = (effects == null) ? new int[0] : effects.clone();
+        mHardwareLevel = hardwareLevel;
+        mConfiguration = configuration;
+        mFormatSizes = Collections.unmodifiableMap(
+                new HashMap<Integer, Size[]>(formatSizes));
+        mClassSizes = Collections.unmodifiableMap(
+                new HashMap<Class<?>, Size[]>(classSizes));
+    }
+
+    /**
+     * Read everything we need out of the characteristics in one pass.
+     */
+    public static CameraProfile fromCharacteristics(String cameraId,
+            CameraCharacteristics characteristics) {
+        Integer lensFacing =
+                characteristics.get(CameraCharacteristics.LENS_FACING);
+        Integer orientation =
+                characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+        Integer level = characteristics.get(
+                CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
+        //Assume the fewest guarantees if the level is not published
+        int hardwareLevel = (level == null)
+                ? CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY
+                : level;
+        StreamConfigurationMap map = characteristics.get(
+                CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+
+        Map<Integer, Size[]> formatSizes = new HashMap<Integer, Size[]>();
+        Map<Class<?>, Size[]> classSizes = new HashMap<Class<?>, Size[]>();
+        if (map != null) {
+            for (int format : map.getOutputFormats()) {
+                formatSizes.put(format, map.getOutputSizes(format));
+            }
+            for (Class<?> klass : OUTPUT_CLASSES) {
+                classSizes.put(klass, map.getOutputSizes(klass));
+            }
+        }
+
+        return new CameraProfile(cameraId,
+                lensFacing == null ? LENS_FACING_UNKNOWN : lensFacing,
+                orientation == null ? 0 : orientation,
+                characteristics.get(
+                        CameraCharacteristics.CONTROL_AVAILABLE_EFFECTS),
+                hardwareLevel,
+                map,
+                formatSizes,
+                classSizes);
+    }
+
+    public String getCameraId() {
+        return mCameraId;
+    }
+
+    public int getLensFacing() {
+        return mLensFacing;
+    }
+
+    public int getSensorOrientation() {
+        return mSensorOrientation;
+    }
+
+    public int[] getSupportedEffects() {
+        return mEffects.clone();
+    }
+
+    /**
+     * INFO_SUPPORTED_HARDWARE_LEVEL, which decides the stream
+     * combinations a session is guaranteed to support.
+     */
+    public int getHardwareLevel() {
+        return mHardwareLevel;
+    }
+
+    public StreamConfigurationMap getConfiguration() {
+        return mConfiguration;
+    }
+
+    /**
+     * Output sizes for an ImageFormat, or an empty array if the
+     * format is not supported.
+     */
+    public Size[] getOutputSizes(int format) {
+        Size[] sizes = mFormatSizes.get(format);
+        return (sizes == null) ? new Size[0] : sizes.clone();
+    }
+
+    /**
+     * Output sizes for a consumer class such as SurfaceTexture.
+     */
+    public Size[] getOutputSizes(Class<?> klass) {
+        Size[] sizes = mClassSizes.get(klass);
+        if (sizes == null && mConfiguration != null) {
+            //Not resolved up front, the map itself is immutable
+            sizes = mConfiguration.getOutputSizes(klass);
+        }
+        return (sizes == null) ? new Size[0] : sizes.clone();
+    }
+}
@@ -0,0 +1,126 @@
+package com.example.android.enhancedcamera.common;
+
+import android.content.Context;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide cache of {@link CameraProfile}s, so each camera's
+ * characteristics are fetched from the camera service only once.
+ *
+ * Characteristics are fixed for the lifetime of a device, so entries
+ * are only dropped when the availability callback reports a camera we
+ * have not seen before (the set of devices changed) or when
+ * invalidated explicitly.
+ */
+public class CameraProfileCache {
+    private static final String TAG =
+            CameraProfileCache.class.getSimpleName();
+
+    private static CameraProfileCache sInstance;
+
+    private final CameraProfileSource mSource;
+    private final ConcurrentMap<String, CameraProfile> mProfiles =
+            new ConcurrentHashMap<String, CameraProfile>();
+    private volatile String[] mCameraIds;
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    /**
+     * Shared cache backed by the system camera service.
+     */
+    public static synchronized CameraProfileCache getInstance(Context context) {
+        if (sInstance == null) {
+            CameraManager manager = (CameraManager) context
+                    .getApplicationContext()
+                    .getSystemService(Context.CAMERA_SERVICE);
+            sInstance = new CameraProfileCache(
+                    new CameraManagerProfileSource(manager));
+            //Lives as long as the process, so is never unregistered
+            if (manager != null) {
+                manager.registerAvailabilityCallback(
+                        sInstance.getAvailabilityCallback(),
+                        new Handler(Looper.getMainLooper()));
+            }
+        }
+
+        return sInstance;
+    }
+
+    public CameraProfileCache(CameraProfileSource source) {
+        mSource = source;
+    }
+
+    public String[] getCameraIdList() throws CameraAccessException {
+        String[] ids = mCameraIds;
+        if (ids == null) {
+            ids = mSource.getCameraIdList();
+            mCameraIds = ids;
+        }
+
+        return ids.clone();
+    }
+
+    public CameraProfile getProfile(String cameraId)
+            throws CameraAccessException {
+        CameraProfile profile = mProfiles.get(cameraId);
+        if (profile != null) {
+            mHits.incrementAndGet();
+            return profile;
+        }
+
+        mMisses.incrementAndGet();
+        profile = mSource.loadProfile(cameraId);
+        //Concurrent loads produce equal profiles, keep the first
+        CameraProfile existing = mProfiles.putIfAbsent(cameraId, profile);
+        return (existing != null) ? existing : profile;
+    }
+
+    public void invalidate(String cameraId) {
+        mProfiles.remove(cameraId);
+        mCameraIds = null;
+    }
+
+    public void invalidateAll() {
+        mProfiles.clear();
+        mCameraIds = null;
+    }
+
+    public long getHitCount() {
+        return mHits.get();
+    }
+
+    public long getMissCount() {
+        return mMisses.get();
+    }
+
+    /**
+     * Callback to register with the CameraManager. Exposed so a test
+     * can drive it directly.
+     */
+    public CameraManager.AvailabilityCallback getAvailabilityCallback() {
+        return mAvailabilityCallback;
+    }
+
+    private final CameraManager.AvailabilityCallback mAvailabilityCallback =
+            new CameraManager.AvailabilityCallback() {
+        @Override
+        public void onCameraAvailable(String cameraId) {
+            //Opening and closing a known camera doesn't change it
+            String[] ids = mCameraIds;
+            if (ids != null && !Arrays.asList(ids).contains(cameraId)) {
+                Log.d(TAG, "New camera detected: " + cameraId);
+                invalidate(cameraId);
+            }
+        }
+    };
+}
@@ -0,0 +1,15 @@
+package com.example.android.enhancedcamera.common;
+
+import android.hardware.camera2.CameraAccessException;
+
+/**
+ * Origin of camera capability data for the {@link CameraProfileCache}.
+ * The default implementation queries the CameraManager; unit tests
+ * supply a fixed set of profiles instead.
+ */
+public interface CameraProfileSource {
+
+    String[] getCameraIdList() throws CameraAccessException;
+
+    CameraProfile loadProfile(String cameraId) throws CameraAccessException;
+}
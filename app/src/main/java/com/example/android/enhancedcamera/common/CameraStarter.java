@@ -0,0 +1,299 @@
+package com.example.android.enhancedcamera.common;
+
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraDevice;
+import android.util.Log;
+
+/**
+ * Opens a camera without waiting for the preview surface. The open is
+ * started as soon as the camera ID is known, so it overlaps with layout
+ * and surface creation, and the caller's onOpened() is held back until
+ * the surface is ready as well. Whichever finishes last hands the
+ * camera over, on the camera thread.
+ *
+ * A camera that opens after the attempt is cancelled, or that fails
+ * before it is handed over, is closed here; once handed over, it
+ * belongs to the caller.
+ *
+ * Switching cameras overlaps the close of the old camera with the open
+ * of the new one. Devices that can't have both open at once report the
+ * new camera as in use, and the open is retried once the old one has
+ * closed.
+ */
+public class CameraStarter {
+    private static final String TAG = CameraStarter.class.getSimpleName();
+
+    private final CameraHelper mCameraHelper;
+    private final StartupTrace mStartupTrace;
+
+    private Attempt mAttempt;
+    private boolean mSurfaceReady;
+
+    //Camera being closed by a switch, and an open waiting on it
+    private Attempt mClosing;
+    private Attempt mDeferred;
+
+    //Switches where both cameras were open at once, and those that waited
+    private int mOverlappedSwitches;
+    private int mDeferredSwitches;
+
+    public CameraStarter(CameraHelper helper, StartupTrace startupTrace) {
+        mCameraHelper = helper;
+        mStartupTrace = startupTrace;
+    }
+
+    /**
+     * Start opening the camera, cancelling any attempt underway.
+     *
+     * @param surfaceReady Whether the preview surface already exists,
+     *                     otherwise call {@link #onSurfaceReady()}
+     *                     once it does
+     */
+    public synchronized void open(String cameraId, boolean surfaceReady,
+                                  CameraDevice.StateCallback callback)
+            throws CameraAccessException {
+        cancel();
+        start(new Attempt(cameraId, callback, mStartupTrace, false),
+                surfaceReady);
+    }
+
+    /**
+     * Switch to another camera. The camera handed over last is closed
+     * here, so the caller must not close it, and the new one is opened
+     * straight away without waiting for that close to finish.
+     *
+     * @param trace Marked as the new camera comes up; the caller begins
+     *              it when the switch is requested
+     */
+    public synchronized void switchCamera(String cameraId,
+                                          boolean surfaceReady,
+                                          CameraDevice.StateCallback callback,
+                                          StartupTrace trace)
+            throws CameraAccessException {
+        Attempt previous = mAttempt;
+        cancel();
+        if (previous != null && previous.mHandedOver
+                && previous.mDevice != null) {
+            mClosing = previous;
+            previous.mDevice.close();
+        }
+
+        start(new Attempt(cameraId, callback, trace, mClosing != null),
+                surfaceReady);
+    }
+
+    private void start(Attempt attempt, boolean surfaceReady)
+            throws CameraAccessException {
+        mAttempt = attempt;
+        mSurfaceReady = false;
+        if (surfaceReady) {
+            setSurfaceReady();
+        }
+
+        mCameraHelper.openCamera(attempt.mCameraId, attempt);
+    }
+
+    /**
+     * The preview surface has been created; call on any thread.
+     */
+    public synchronized void onSurfaceReady() {
+        if (mSurfaceReady) {
+            return;
+        }
+        setSurfaceReady();
+
+        //Camera may have beaten the surface, hand it over now
+        if (mAttempt != null && mAttempt.mDevice != null) {
+            dispatch(mAttempt);
+        }
+    }
+
+    private void setSurfaceReady() {
+        mSurfaceReady = true;
+        if (mAttempt != null) {
+            mAttempt.mTrace.mark(StartupTrace.Stage.SURFACE_READY);
+        }
+    }
+
+    /**
+     * Abandon the attempt underway. The camera is closed if it opened
+     * but was not handed over yet.
+     */
+    public synchronized void cancel() {
+        mDeferred = null;
+        if (mAttempt == null) {
+            return;
+        }
+
+        mAttempt.mCancelled = true;
+        if (mAttempt.mDevice != null && !mAttempt.mHandedOver) {
+            mAttempt.mDevice.close();
+        }
+        mAttempt = null;
+    }
+
+    public synchronized int getOverlappedSwitches() {
+        return mOverlappedSwitches;
+    }
+
+    public synchronized int getDeferredSwitches() {
+        return mDeferredSwitches;
+    }
+
+    //Hand over on the camera thread, unless cancelled before it runs
+    private void dispatch(final Attempt attempt) {
+        if (attempt.mDispatched) {
+            return;
+        }
+        attempt.mDispatched = true;
+
+        mCameraHelper.getCameraExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (CameraStarter.this) {
+                    if (attempt.mCancelled) {
+                        return;
+                    }
+                    attempt.mHandedOver = true;
+                    if (attempt.mOverlapping) {
+                        mOverlappedSwitches++;
+                    }
+                }
+                attempt.mCallback.onOpened(attempt.mDevice);
+            }
+        });
+    }
+
+    //Open the new camera again, now that the old one is out of the way
+    private void retry(Attempt deferred) {
+        Attempt attempt = new Attempt(deferred.mCameraId,
+                deferred.mCallback, deferred.mTrace, false);
+        mAttempt = attempt;
+        try {
+            mCameraHelper.openCamera(attempt.mCameraId, attempt);
+        } catch (CameraAccessException e) {
+            Log.w(TAG, "Unable to open camera: " + attempt.mCameraId, e);
+            mAttempt = null;
+        }
+    }
+
+    private static boolean isInUse(int error) {
+        switch (error) {
+            case CameraDevice.StateCallback.ERROR_CAMERA_IN_USE:
+            case CameraDevice.StateCallback.ERROR_MAX_CAMERAS_IN_USE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    //One call to openCamera(), guarded by the starter's lock
+    private class Attempt extends CameraDevice.StateCallback {
+        final String mCameraId;
+        final CameraDevice.StateCallback mCallback;
+        final StartupTrace mTrace;
+        //Opened while another camera was still closing
+        final boolean mOverlapping;
+        CameraDevice mDevice;
+        boolean mCancelled;
+        boolean mDispatched;
+        boolean mHandedOver;
+
+        Attempt(String cameraId, CameraDevice.StateCallback callback,
+                StartupTrace trace, boolean overlapping) {
+            mCameraId = cameraId;
+            mCallback = callback;
+            mTrace = trace;
+            mOverlapping = overlapping;
+        }
+
+        @Override
+        public void onOpened(CameraDevice cameraDevice) {
+            synchronized (CameraStarter.this) {
+                if (mCancelled) {
+                    cameraDevice.close();
+                    return;
+                }
+                mDevice = cameraDevice;
+                mTrace.mark(StartupTrace.Stage.CAMERA_OPENED);
+                if (mSurfaceReady) {
+                    dispatch(this);
+                }
+            }
+        }
+
+        @Override
+        public void onClosed(CameraDevice cameraDevice) {
+            synchronized (CameraStarter.this) {
+                if (mClosing == this) {
+                    mClosing = null;
+                    if (mDeferred != null) {
+                        Attempt deferred = mDeferred;
+                        mDeferred = null;
+                        retry(deferred);
+                    }
+                }
+            }
+            if (isHandedOver()) {
+                mCallback.onClosed(cameraDevice);
+            }
+        }
+
+        @Override
+        public void onDisconnected(CameraDevice cameraDevice) {
+            if (isHandedOver()) {
+                mCallback.onDisconnected(cameraDevice);
+            } else {
+                Log.d(TAG, "Camera disconnected before preview was ready");
+                release(cameraDevice);
+            }
+        }
+
+        @Override
+        public void onError(CameraDevice cameraDevice, int error) {
+            if (isHandedOver()) {
+                mCallback.onError(cameraDevice, error);
+                return;
+            }
+
+            if (!deferIfInUse(error)) {
+                Log.w(TAG, "Camera error " + error
+                        + " before preview was ready");
+            }
+            release(cameraDevice);
+        }
+
+        //Device can't open both cameras, wait for the old one to close
+        private boolean deferIfInUse(int error) {
+            synchronized (CameraStarter.this) {
+                if (!mOverlapping || mCancelled || !isInUse(error)) {
+                    return false;
+                }
+
+                mDeferredSwitches++;
+                mCancelled = true;
+                if (mClosing != null) {
+                    mDeferred = this;
+                } else {
+                    //Old camera closed before the error arrived
+                    retry(this);
+                }
+                return true;
+            }
+        }
+
+        private boolean isHandedOver() {
+            synchronized (CameraStarter.this) {
+                return mHandedOver;
+            }
+        }
+
+        private void release(CameraDevice cameraDevice) {
+            synchronized (CameraStarter.this) {
+                mCancelled = true;
+                mDevice = null;
+            }
+            cameraDevice.close();
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.example.android.enhancedcamera.common;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Camera executor backed by a dedicated HandlerThread. The thread
+ * is started on construction and stopped by {@link #shutdown()}.
+ * {@link CameraHelper} holds off the shutdown until the camera has
+ * closed, so callbacks that arrive after the close are not dropped.
+ */
+public class CameraThread implements CameraExecutor {
+    private static final String TAG = CameraThread.class.getSimpleName();
+
+    private final HandlerThread mThread;
+    private final Handler mCameraHandler;
+    private final Handler mUiHandler;
+
+    public CameraThread() {
+        mThread = new HandlerThread("CameraThread",
+                Process.THREAD_PRIORITY_DISPLAY);
+        mThread.start();
+
+        mCameraHandler = new Handler(mThread.getLooper());
+        mUiHandler = new Handler(Looper.getMainLooper());
+    }
+
+    @Override
+    public Handler getHandler() {
+        return mCameraHandler;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        if (!mCameraHandler.post(task)) {
+            Log.w(TAG, "Camera thread has shut down, dropping task");
+        }
+    }
+
+    @Override
+    public void executeOnUiThread(Runnable task) {
+        mUiHandler.post(task);
+    }
+
+    @Override
+    public boolean isCameraThread() {
+        return Thread.currentThread() == mThread;
+    }
+
+    /**
+     * Deliver anything already queued, then exit. Does not wait for
+     * the thread, so this is safe to call from the main thread.
+     */
+    @Override
+    public void shutdown() {
+        mThread.quitSafely();
+    }
+}
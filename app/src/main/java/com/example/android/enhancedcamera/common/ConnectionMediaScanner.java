@@ -0,0 +1,37 @@
+package com.example.android.enhancedcamera.common;
+
+import android.content.Context;
+import android.media.MediaScannerConnection;
+import android.net.Uri;
+import android.util.Log;
+
+/**
+ * Media scanner backed by MediaScannerConnection. A single connection
+ * is opened for each batch of files.
+ */
+public class ConnectionMediaScanner implements MediaScanner {
+    private static final String TAG =
+            ConnectionMediaScanner.class.getSimpleName();
+
+    private final Context mContext;
+
+    public ConnectionMediaScanner(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    @Override
+    public void scanFiles(String[] paths, String[] mimeTypes,
+                          final Callback callback) {
+        //Tell the framework, so the media will be in the gallery
+        MediaScannerConnection.scanFile(mContext, paths, mimeTypes,
+                new MediaScannerConnection.OnScanCompletedListener() {
+                    public void onScanCompleted(String path, Uri uri) {
+                        Log.i(TAG, "Scanned " + path + ":");
+                        Log.i(TAG, "-> uri=" + uri);
+                        if (callback != null) {
+                            callback.onScanCompleted(path);
+                        }
+                    }
+                });
+    }
+}
@@ -0,0 +1,305 @@
+package com.example.android.enhancedcamera.common;
+
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CaptureFailure;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Frame statistics for the repeating preview request. Attached in
+ * front of the preview's own capture callback, which still sees every
+ * call.
+ *
+ * Per frame it records the sensor timestamp (as reported to
+ * onCaptureStarted, which saves a metadata lookup), the interval from
+ * the frame before, the jitter (change in interval from one frame to
+ * the next), and the time from capture start to the result. Intervals,
+ * jitter and latency go into lock-free histograms that roll over every
+ * few seconds of sensor time, so they reflect the current conditions.
+ *
+ * A frame counts as dropped when it arrives more than one and a half
+ * frame durations after the one before, per session. The expected
+ * duration is the frame's own SENSOR_FRAME_DURATION, or the shortest
+ * interval seen if the device doesn't report it. Frame numbers are
+ * shared by every request on the device, so a gap in them only means
+ * another request, such as a still capture, took those frames. The
+ * interval across a gap is neither judged nor used for jitter. Failed
+ * captures are counted separately.
+ *
+ * Callbacks all arrive on the camera thread, which is the only writer;
+ * any thread may read. Nothing is allocated per frame, apart from
+ * reading the frame duration out of each result.
+ */
+public class FrameStatsListener extends CameraCaptureSession.CaptureCallback {
+
+    //Histograms cover about this much sensor time
+    private static final long WINDOW_NS = TimeUnit.SECONDS.toNanos(5);
+    //Frames that can be between capture start and result at once
+    private static final int LATENCY_SLOTS = 32;
+    //Intervals beyond this many frame durations, over 2, are drops
+    private static final int DROP_THRESHOLD_HALVES = 3;
+    private static final long NONE = -1;
+
+    //One rolling window of statistics
+    private static class Window {
+        final LatencyHistogram intervals = new LatencyHistogram();
+        final LatencyHistogram jitter = new LatencyHistogram();
+        final LatencyHistogram latency = new LatencyHistogram();
+        volatile long frames;
+        volatile long firstTimestamp = NONE;
+        volatile long lastTimestamp = NONE;
+
+        void reset() {
+            intervals.reset();
+            jitter.reset();
+            latency.reset();
+            frames = 0;
+            firstTimestamp = NONE;
+            lastTimestamp = NONE;
+        }
+
+        //Frames per second between the first and last frame
+        double getFps() {
+            long span = lastTimestamp - firstTimestamp;
+            if (frames < 2 || span <= 0) {
+                return 0;
+            }
+            return (frames - 1) * 1e9 / span;
+        }
+    }
+
+    private volatile Window mCurrent = new Window();
+    private volatile Window mPrevious = new Window();
+
+    //Capture start times, for matching up with results
+    private final long[] mStartedFrames = new long[LATENCY_SLOTS];
+    private final long[] mStartedNs = new long[LATENCY_SLOTS];
+    //Interval to the frame before, if it came right before, or NONE
+    private final long[] mStartedIntervals = new long[LATENCY_SLOTS];
+
+    private volatile long mSessionFrames;
+    private volatile long mSessionDropped;
+    private volatile long mSessionFailed;
+    private long mLastFrameNumber = NONE;
+    private long mLastTimestamp = NONE;
+    private long mLastInterval = NONE;
+    private long mMinInterval = NONE;
+
+    private CameraCaptureSession.CaptureCallback mDelegate;
+
+    /**
+     * Preview callback to pass every call on to, or null.
+     */
+    public void setDelegate(CameraCaptureSession.CaptureCallback delegate) {
+        mDelegate = delegate;
+    }
+
+    /**
+     * Reset for a new capture session. Call on the camera thread.
+     */
+    public void startSession() {
+        mCurrent.reset();
+        mPrevious.reset();
+        mSessionFrames = 0;
+        mSessionDropped = 0;
+        mSessionFailed = 0;
+        mLastFrameNumber = NONE;
+        mLastTimestamp = NONE;
+        mLastInterval = NONE;
+        mMinInterval = NONE;
+        for (int i = 0; i < LATENCY_SLOTS; i++) {
+            mStartedFrames[i] = NONE;
+        }
+    }
+
+    @Override
+    public void onCaptureStarted(CameraCaptureSession session,
+                                 CaptureRequest request, long timestamp,
+                                 long frameNumber) {
+        int slot = (int) (frameNumber % LATENCY_SLOTS);
+        mStartedFrames[slot] = frameNumber;
+        mStartedNs[slot] = SystemClock.elapsedRealtimeNanos();
+        mStartedIntervals[slot] = NONE;
+
+        boolean consecutive = frameNumber == mLastFrameNumber + 1;
+        mLastFrameNumber = frameNumber;
+
+        Window window = rollWindow(timestamp);
+        if (mLastTimestamp != NONE) {
+            long interval = timestamp - mLastTimestamp;
+            window.intervals.record(interval);
+            if (consecutive) {
+                if (mLastInterval != NONE) {
+                    window.jitter.record(Math.abs(interval - mLastInterval));
+                }
+                if (mMinInterval == NONE || interval < mMinInterval) {
+                    mMinInterval = interval;
+                }
+                mStartedIntervals[slot] = interval;
+                mLastInterval = interval;
+            } else {
+                //Other requests took the frames in between
+                mLastInterval = NONE;
+            }
+        }
+        mLastTimestamp = timestamp;
+
+        if (window.firstTimestamp == NONE) {
+            window.firstTimestamp = timestamp;
+        }
+        window.lastTimestamp = timestamp;
+        window.frames++;
+        mSessionFrames++;
+
+        if (mDelegate != null) {
+            mDelegate.onCaptureStarted(session, request, timestamp,
+                    frameNumber);
+        }
+    }
+
+    //Start a new window once the current one is full
+    private Window rollWindow(long timestamp) {
+        Window current = mCurrent;
+        if (current.firstTimestamp == NONE
+                || timestamp - current.firstTimestamp < WINDOW_NS) {
+            return current;
+        }
+
+        Window next = mPrevious;
+        next.reset();
+        mPrevious = current;
+        mCurrent = next;
+        return next;
+    }
+
+    @Override
+    public void onCaptureProgressed(CameraCaptureSession session,
+                                    CaptureRequest request,
+                                    CaptureResult partialResult) {
+        if (mDelegate != null) {
+            mDelegate.onCaptureProgressed(session, request, partialResult);
+        }
+    }
+
+    @Override
+    public void onCaptureCompleted(CameraCaptureSession session,
+                                   CaptureRequest request,
+                                   TotalCaptureResult result) {
+        long frameNumber = result.getFrameNumber();
+        int slot = (int) (frameNumber % LATENCY_SLOTS);
+        if (mStartedFrames[slot] == frameNumber) {
+            mCurrent.latency.record(
+                    SystemClock.elapsedRealtimeNanos() - mStartedNs[slot]);
+            countDrops(mStartedIntervals[slot],
+                    result.get(CaptureResult.SENSOR_FRAME_DURATION));
+        }
+
+        if (mDelegate != null) {
+            mDelegate.onCaptureCompleted(session, request, result);
+        }
+    }
+
+    //Count the frames the sensor skipped before this one, if any
+    private void countDrops(long interval, Long frameDuration) {
+        long expected = (frameDuration != null && frameDuration > 0)
+                ? frameDuration : mMinInterval;
+        if (interval == NONE || expected <= 0
+                || interval * 2 <= expected * DROP_THRESHOLD_HALVES) {
+            return;
+        }
+        //Whole frame durations missing from the interval
+        long missed = (interval + expected / 2) / expected - 1;
+        mSessionDropped += Math.max(1, missed);
+    }
+
+    @Override
+    public void onCaptureFailed(CameraCaptureSession session,
+                                CaptureRequest request,
+                                CaptureFailure failure) {
+        mSessionFailed++;
+
+        if (mDelegate != null) {
+            mDelegate.onCaptureFailed(session, request, failure);
+        }
+    }
+
+    @Override
+    public void onCaptureSequenceCompleted(CameraCaptureSession session,
+                                           int sequenceId, long frameNumber) {
+        if (mDelegate != null) {
+            mDelegate.onCaptureSequenceCompleted(session, sequenceId,
+                    frameNumber);
+        }
+    }
+
+    @Override
+    public void onCaptureSequenceAborted(CameraCaptureSession session,
+                                         int sequenceId) {
+        if (mDelegate != null) {
+            mDelegate.onCaptureSequenceAborted(session, sequenceId);
+        }
+    }
+
+    //Last full window, or the current one until there is one
+    private Window getReportWindow() {
+        Window previous = mPrevious;
+        return (previous.frames > 0) ? previous : mCurrent;
+    }
+
+    public double getFps() {
+        return getReportWindow().getFps();
+    }
+
+    public long getJitterNs(double percentile) {
+        return getReportWindow().jitter.getPercentileNs(percentile);
+    }
+
+    public LatencyHistogram getIntervals() {
+        return getReportWindow().intervals;
+    }
+
+    public LatencyHistogram getResultLatency() {
+        return getReportWindow().latency;
+    }
+
+    public long getSessionFrames() {
+        return mSessionFrames;
+    }
+
+    public long getDroppedFrames() {
+        return mSessionDropped;
+    }
+
+    public long getFailedFrames() {
+        return mSessionFailed;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("fps=%.1f jitter p50=%.1fms p99=%.1fms "
+                        + "frames=%d dropped=%d failed=%d",
+                getFps(), getJitterNs(50) / 1e6, getJitterNs(99) / 1e6,
+                getSessionFrames(), getDroppedFrames(), getFailedFrames());
+    }
+
+    /**
+     * Print the statistics, e.g. from Activity.dump() so they are
+     * available through "adb shell dumpsys activity".
+     */
+    public void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.print("Preview frames: ");
+        writer.println(this);
+        writer.print(prefix);
+        writer.print("  Interval: ");
+        writer.println(getIntervals());
+        writer.print(prefix);
+        writer.print("  Result latency: ");
+        writer.println(getResultLatency());
+    }
+}
@@ -0,0 +1,93 @@
+package com.example.android.enhancedcamera.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations, with power-of-two microsecond
+ * buckets. Recording is a handful of atomic adds and never allocates,
+ * so it is cheap enough to leave on in production. Percentiles are
+ * reported as the upper bound of the bucket they fall in.
+ */
+public class LatencyHistogram {
+
+    //Bucket i holds values below 2^i microseconds; the last is open
+    private static final int BUCKET_COUNT = 32;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mTotalNs = new AtomicLong();
+    private final AtomicLong mMaxNs = new AtomicLong();
+
+    public void record(long durationNs) {
+        if (durationNs < 0) {
+            durationNs = 0;
+        }
+
+        mBuckets.incrementAndGet(bucketFor(durationNs / 1000));
+        mCount.incrementAndGet();
+        mTotalNs.addAndGet(durationNs);
+
+        long max = mMaxNs.get();
+        while (durationNs > max && !mMaxNs.compareAndSet(max, durationNs)) {
+            max = mMaxNs.get();
+        }
+    }
+
+    private static int bucketFor(long micros) {
+        int bucket = 64 - Long.numberOfLeadingZeros(micros);
+        return Math.min(bucket, BUCKET_COUNT - 1);
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getMeanNs() {
+        long count = mCount.get();
+        return (count == 0) ? 0 : mTotalNs.get() / count;
+    }
+
+    public long getMaxNs() {
+        return mMaxNs.get();
+    }
+
+    /**
+     * Approximate percentile (0-100), in nanoseconds.
+     */
+    public long getPercentileNs(double percentile) {
+        long count = mCount.get();
+        if (count == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(count * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mBuckets.get(i);
+            if (seen >= rank && seen > 0) {
+                //Upper bound of the bucket, capped by the true maximum
+                return Math.min((1L << i) * 1000, mMaxNs.get());
+            }
+        }
+        return mMaxNs.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mBuckets.set(i, 0);
+        }
+        mCount.set(0);
+        mTotalNs.set(0);
+        mMaxNs.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("n=%d mean=%.1fms p50=%.1fms p90=%.1fms "
+                        + "p99=%.1fms max=%.1fms",
+                getCount(), getMeanNs() / 1e6,
+                getPercentileNs(50) / 1e6, getPercentileNs(90) / 1e6,
+                getPercentileNs(99) / 1e6, getMaxNs() / 1e6);
+    }
+}
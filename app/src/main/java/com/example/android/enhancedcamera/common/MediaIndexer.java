@@ -0,0 +1,163 @@
+package com.example.android.enhancedcamera.common;
+
+import android.content.Context;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects newly written media files and hands them to the media
+ * scanner in batches, rather than opening a scanner connection per
+ * capture. A batch is sent once it reaches a set size, or once the
+ * oldest pending file has waited for the batch window, whichever comes
+ * first. Call {@link #flush()} at lifecycle boundaries so nothing is
+ * left waiting when the app goes to the background.
+ */
+public class MediaIndexer {
+
+    private static final int DEFAULT_BATCH_SIZE = 8;
+    private static final long DEFAULT_WINDOW_MS = 2000;
+
+    private static MediaIndexer sInstance;
+
+    private final MediaScanner mScanner;
+    private final int mBatchSize;
+    private final long mWindowMs;
+    private final ScheduledExecutorService mTimer;
+
+    private final List<String> mPendingPaths = new ArrayList<String>();
+    private final List<String> mPendingTypes = new ArrayList<String>();
+    private final Map<String, MediaScanner.Callback> mPendingCallbacks =
+            new HashMap<String, MediaScanner.Callback>();
+    private ScheduledFuture<?> mWindowTimeout;
+
+    /**
+     * Shared indexer backed by the system media scanner.
+     */
+    public static synchronized MediaIndexer getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new MediaIndexer(new ConnectionMediaScanner(context),
+                    DEFAULT_BATCH_SIZE, DEFAULT_WINDOW_MS);
+        }
+
+        return sInstance;
+    }
+
+    public MediaIndexer(MediaScanner scanner, int batchSize, long windowMs) {
+        if (batchSize < 1 || windowMs < 0) {
+            throw new IllegalArgumentException("Invalid batch parameters");
+        }
+        mScanner = scanner;
+        mBatchSize = batchSize;
+        mWindowMs = windowMs;
+
+        mTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "MediaIndexer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Queue a file for indexing.
+     */
+    public void add(String path, String mimeType) {
+        add(path, mimeType, null);
+    }
+
+    /**
+     * Queue a file for indexing, and be told when it has been indexed.
+     */
+    public void add(String path, String mimeType,
+                    MediaScanner.Callback callback) {
+        boolean full;
+        synchronized (this) {
+            mPendingPaths.add(path);
+            mPendingTypes.add(mimeType);
+            if (callback != null) {
+                mPendingCallbacks.put(path, callback);
+            }
+
+            full = mPendingPaths.size() >= mBatchSize;
+            if (!full && mWindowTimeout == null) {
+                //Window starts with the first file of the batch
+                mWindowTimeout = mTimer.schedule(mFlushTask,
+                        mWindowMs, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        if (full) {
+            flush();
+        }
+    }
+
+    /**
+     * Send everything pending to the scanner now.
+     */
+    public void flush() {
+        String[] paths;
+        String[] types;
+        MediaScanner.Callback callback = null;
+        synchronized (this) {
+            if (mWindowTimeout != null) {
+                mWindowTimeout.cancel(false);
+                mWindowTimeout = null;
+            }
+            if (mPendingPaths.isEmpty()) {
+                return;
+            }
+
+            paths = mPendingPaths.toArray(new String[mPendingPaths.size()]);
+            types = mPendingTypes.toArray(new String[mPendingTypes.size()]);
+            mPendingPaths.clear();
+            mPendingTypes.clear();
+            if (!mPendingCallbacks.isEmpty()) {
+                callback = new BatchCallback(
+                        new HashMap<String, MediaScanner.Callback>(
+                                mPendingCallbacks));
+                mPendingCallbacks.clear();
+            }
+        }
+
+        //Scanner is called outside the lock, it may be slow to connect
+        mScanner.scanFiles(paths, types, callback);
+    }
+
+    public synchronized int getPendingCount() {
+        return mPendingPaths.size();
+    }
+
+    //Routes each scanned path to the callback it was added with
+    private static class BatchCallback implements MediaScanner.Callback {
+        private final Map<String, MediaScanner.Callback> mCallbacks;
+
+        BatchCallback(Map<String, MediaScanner.Callback> callbacks) {
+            mCallbacks = callbacks;
+        }
+
+        @Override
+        public void onScanCompleted(String path) {
+            MediaScanner.Callback callback = mCallbacks.get(path);
+            if (callback != null) {
+                callback.onScanCompleted(path);
+            }
+        }
+    }
+
+    private final Runnable mFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+}
@@ -0,0 +1,22 @@
+package com.example.android.enhancedcamera.common;
+
+/**
+ * Indexes saved media so it shows up in the gallery. Implemented by
+ * {@link ConnectionMediaScanner} on a device; tests can supply a
+ * recording stand-in to check how paths are batched.
+ */
+public interface MediaScanner {
+
+    /**
+     * Notified once per path when indexing finishes.
+     */
+    interface Callback {
+        void onScanCompleted(String path);
+    }
+
+    /**
+     * Index a batch of files in one request. Both arrays have the
+     * same length.
+     */
+    void scanFiles(String[] paths, String[] mimeTypes, Callback callback);
+}
@@ -5,10 +5,13 @@ import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
 import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CaptureRequest;
+import android.os.Handler;
 import android.util.Log;
 import android.util.Size;
 import android.view.Surface;
 
+import com.example.android.enhancedcamera.analysis.FrameAnalysisStage;
+
 import java.util.ArrayList;
 import java.util.List;
 
@@ -25,12 +28,21 @@ public class PreviewCallback {
 
     private final CameraDevice mCameraDevice;
     private final SurfaceTexture mPreviewSurface;
-    private CameraCaptureSession mActiveCaptureSession;
+    private final CameraExecutor mCameraExecutor;
+    private volatile CameraCaptureSession mActiveCaptureSession;
+    //Opt-in analysis stream, none by default
+    private FrameAnalysisStage mAnalysisStage;
+    //Marked when the first session is configured, if set
+    private StartupTrace mStartupTrace;
+    //Opt-in preview frame statistics, none by default
+    private FrameStatsListener mFrameStats;
 
     public PreviewCallback(CameraDevice device,
                            SurfaceTexture surface,
-                           Size targetPreviewSize) {
+                           Size targetPreviewSize,
+                           CameraExecutor executor) {
         mCameraDevice = device;
+        mCameraExecutor = executor;
 
         mPreviewSurface = surface;
         mTargetPreviewSize = targetPreviewSize;
@@ -43,10 +55,31 @@ public class PreviewCallback {
                 .createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
     }
 
+    //Listener for the repeating preview request, none by default
+    protected CameraCaptureSession.CaptureCallback getPreviewCaptureCallback() {
+        return null;
+    }
+
+    /*
+     * Callback for every repeating preview request: the preview's own,
+     * behind the frame statistics if they are on.
+     */
+    protected final CameraCaptureSession.CaptureCallback
+            getRepeatingCaptureCallback() {
+        if (mFrameStats == null) {
+            return getPreviewCaptureCallback();
+        }
+        mFrameStats.setDelegate(getPreviewCaptureCallback());
+        return mFrameStats;
+    }
+
     //Return all target surfaces for camera frames
     protected List<Surface> getCaptureTargets() {
         List<Surface> baseTargets = new ArrayList<Surface>();
         baseTargets.add(new Surface(mPreviewSurface));
+        if (mAnalysisStage != null) {
+            baseTargets.add(mAnalysisStage.getTargetSurface());
+        }
 
         return baseTargets;
     }
@@ -65,10 +98,48 @@ public class PreviewCallback {
         return mPreviewRequestBuilder;
     }
 
+    /*
+     * Stream low resolution preview frames to the stage, or stop with
+     * null. Takes effect with the next preview session.
+     */
+    public void setAnalysisStage(FrameAnalysisStage stage) {
+        if (mAnalysisStage != null) {
+            mAnalysisStage.close();
+        }
+        mAnalysisStage = stage;
+    }
+
+    /*
+     * Collect preview frame statistics, or stop with false. Takes
+     * effect with the next preview session.
+     */
+    public void setFrameStatsEnabled(boolean enabled) {
+        mFrameStats = enabled ? new FrameStatsListener() : null;
+    }
+
+    //Statistics for the current session, or null if not enabled
+    public FrameStatsListener getFrameStats() {
+        return mFrameStats;
+    }
+
+    //Record when the preview session is configured
+    public void setStartupTrace(StartupTrace trace) {
+        mStartupTrace = trace;
+    }
+
     protected final CameraDevice getCameraDevice() {
         return mCameraDevice;
     }
 
+    protected final CameraExecutor getCameraExecutor() {
+        return mCameraExecutor;
+    }
+
+    //Handler for all Camera2 calls, so callbacks land on the camera thread
+    protected final Handler getCameraHandler() {
+        return mCameraExecutor.getHandler();
+    }
+
     private void setActiveCaptureSession(CameraCaptureSession session) {
         mActiveCaptureSession = session;
     }
@@ -84,12 +155,19 @@ public class PreviewCallback {
         }
     }
 
+    /*
+     * The preview of a new session is running, called on the camera
+     * thread. Subclasses can prepare for captures here.
+     */
+    protected void onPreviewStarted() {
+    }
+
     //Restart preview with existing camera settings
     public void restartPreview(int effect) throws CameraAccessException {
         final CaptureRequest.Builder builder = getPreviewRequestBuilder();
         builder.set(CaptureRequest.CONTROL_EFFECT_MODE, effect);
         getActiveCaptureSession().setRepeatingRequest(builder.build(),
-                null, null);
+                getRepeatingCaptureCallback(), getCameraHandler());
     }
 
     /*
@@ -114,10 +192,13 @@ public class PreviewCallback {
         // We set up a CaptureRequest.Builder with the output Surface.
         CaptureRequest.Builder builder = getPreviewRequestBuilder();
         builder.addTarget(surface);
+        if (mAnalysisStage != null) {
+            builder.addTarget(mAnalysisStage.getTargetSurface());
+        }
 
         // Here, we create a CameraCaptureSession for camera preview.
         getCameraDevice().createCaptureSession(getCaptureTargets(),
-                new PreviewSessionCallback(builder), null);
+                new PreviewSessionCallback(builder), getCameraHandler());
     }
 
     //Callback to react to creation of the preview session
@@ -137,14 +218,22 @@ public class PreviewCallback {
 
             // When the session is ready, we start displaying the preview.
             setActiveCaptureSession(captureSession);
+            if (mStartupTrace != null) {
+                mStartupTrace.mark(StartupTrace.Stage.SESSION_CONFIGURED);
+            }
+            if (mFrameStats != null) {
+                mFrameStats.startSession();
+            }
             try {
                 // Finally, we start displaying the camera preview.
                 CaptureRequest previewRequest = mBuilder.build();
                 getActiveCaptureSession().setRepeatingRequest(previewRequest,
-                        null, null);
+                        getRepeatingCaptureCallback(), getCameraHandler());
             } catch (CameraAccessException e) {
                 e.printStackTrace();
+                return;
             }
+            onPreviewStarted();
         }
 
         @Override
@@ -0,0 +1,557 @@
+package com.example.android.enhancedcamera.common;
+
+import android.hardware.camera2.CameraMetadata;
+import android.util.Size;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Picks the preview, still and recording sizes of one camera together,
+ * rather than each on its own.
+ *
+ * Only stream combinations the camera's hardware level guarantees are
+ * considered, with each stream held to the size limit the combination
+ * puts on it. Within a combination, every aspect ratio the camera
+ * offers is tried, and streams are matched to it so the preview frames
+ * the same scene that is captured. Preview and recording streams must
+ * sustain the target frame rate; still stall time counts against a
+ * size. Each candidate gets a score, in megapixel units, with the
+ * reasons for every term, and the best one wins.
+ *
+ * The guarantee covers the planned streams only. A session may add one
+ * YUV stream (a ZSL ring or preview analysis) next to a preview and a
+ * JPEG still, within {@link #getYuvLimit(Size, int)}; with any more
+ * streams the combination is not guaranteed at these hardware levels,
+ * and the caller has to drop one.
+ *
+ * Kept free of camera types, so plans can be checked off-device.
+ */
+public class ResolutionPlanner {
+
+    public enum UseCase {
+        /** Preview and JPEG stills */
+        STILL(false, true),
+        /** Preview and recording */
+        VIDEO(true, false),
+        /** Preview and recording, with stills taken while recording */
+        VIDEO_SNAPSHOT(true, true);
+
+        final boolean mRecord;
+        final boolean mStill;
+
+        UseCase(boolean record, boolean still) {
+            mRecord = record;
+            mStill = still;
+        }
+    }
+
+    /**
+     * An output size and its timing, as the stream configuration map
+     * reports them.
+     */
+    public static final class Output {
+        private final Size mSize;
+        private final long mMinFrameDurationNs;
+        private final long mStallDurationNs;
+
+        public Output(Size size, long minFrameDurationNs,
+                      long stallDurationNs) {
+            mSize = size;
+            mMinFrameDurationNs = minFrameDurationNs;
+            mStallDurationNs = stallDurationNs;
+        }
+
+        public Size getSize() {
+            return mSize;
+        }
+
+        public long getMinFrameDurationNs() {
+            return mMinFrameDurationNs;
+        }
+
+        public long getStallDurationNs() {
+            return mStallDurationNs;
+        }
+    }
+
+    /**
+     * Sizes chosen for one use case, with the score that won and why.
+     */
+    public static final class Plan {
+        private final UseCase mUseCase;
+        private final Size mPreviewSize;
+        private final Size mStillSize;
+        private final Size mRecordSize;
+        private final double mScore;
+        private final List<String> mReasons;
+
+        Plan(UseCase useCase, Size previewSize, Size stillSize,
+             Size recordSize, double score, List<String> reasons) {
+            mUseCase = useCase;
+            mPreviewSize = previewSize;
+            mStillSize = stillSize;
+            mRecordSize = recordSize;
+            mScore = score;
+            mReasons = Collections.unmodifiableList(reasons);
+        }
+
+        public UseCase getUseCase() {
+            return mUseCase;
+        }
+
+        public Size getPreviewSize() {
+            return mPreviewSize;
+        }
+
+        //Null unless the use case takes stills
+        public Size getStillSize() {
+            return mStillSize;
+        }
+
+        //Null unless the use case records
+        public Size getRecordSize() {
+            return mRecordSize;
+        }
+
+        public double getScore() {
+            return mScore;
+        }
+
+        /**
+         * One line per term of the score, and per limit applied.
+         */
+        public List<String> getReasons() {
+            return mReasons;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s preview=%s still=%s record=%s "
+                            + "score=%.2f", mUseCase, mPreviewSize,
+                    mStillSize, mRecordSize, mScore);
+        }
+    }
+
+    //Size limits on a stream in the guaranteed combinations
+    private static final int UNUSED = 0;
+    private static final int PREVIEW = 1;
+    private static final int RECORD = 2;
+    private static final int MAXIMUM = 3;
+    private static final String[] LIMIT_NAMES = {
+            "UNUSED", "PREVIEW", "RECORD", "MAXIMUM"
+    };
+
+    /*
+     * Guaranteed {record, still} limits alongside a PREVIEW sized
+     * preview stream, from the createCaptureSession() tables. Each
+     * level also has every combination of the levels below it.
+     */
+    private static final int[][] LEGACY_COMBINATIONS = {
+            //PRIV PREVIEW + JPEG MAXIMUM
+            {UNUSED, MAXIMUM},
+            //PRIV PREVIEW + PRIV PREVIEW
+            {PREVIEW, UNUSED}
+    };
+    private static final int[][] LIMITED_COMBINATIONS = {
+            //PRIV PREVIEW + PRIV RECORD
+            {RECORD, UNUSED},
+            //PRIV PREVIEW + PRIV RECORD + JPEG RECORD
+            {RECORD, RECORD}
+    };
+    private static final int[][] FULL_COMBINATIONS = {
+            //PRIV PREVIEW + PRIV PREVIEW + JPEG MAXIMUM
+            {PREVIEW, MAXIMUM}
+    };
+
+    //PREVIEW is the display size or 1080p, whichever is smaller
+    private static final Size MAX_PREVIEW = new Size(1920, 1080);
+    //Ratios closer than this count as the same
+    private static final double ASPECT_TOLERANCE = 0.01;
+
+    //Score weights, in megapixel units
+    private static final double RECORD_WEIGHT = 2.0;
+    private static final double STALL_PENALTY_PER_SECOND = 4.0;
+    private static final double MISMATCH_PENALTY = 1.0;
+
+    private final int mHardwareLevel;
+    private final Output[] mPreviewOutputs;
+    private final Output[] mRecordOutputs;
+    private final Output[] mStillOutputs;
+    private final Output[] mYuvOutputs;
+    private final Size mPreviewLimit;
+    private final Size mRecordLimit;
+    private final double[] mAspectRatios;
+
+    /**
+     * @param hardwareLevel INFO_SUPPORTED_HARDWARE_LEVEL of the camera
+     * @param displaySize Real size of the display panel, in either
+     *                    orientation
+     * @param maxRecordSize Largest size the encoder profiles support,
+     *                      or null to hold recordings to PREVIEW
+     */
+    public ResolutionPlanner(int hardwareLevel, Output[] previewOutputs,
+                             Output[] recordOutputs, Output[] stillOutputs,
+                             Output[] yuvOutputs,
+                             Size displaySize, Size maxRecordSize) {
+        mHardwareLevel = hardwareLevel;
+        mPreviewOutputs = previewOutputs.clone();
+        mRecordOutputs = recordOutputs.clone();
+        mStillOutputs = stillOutputs.clone();
+        mYuvOutputs = yuvOutputs.clone();
+
+        Size display = toLandscape(displaySize);
+        mPreviewLimit = new Size(
+                Math.min(display.getWidth(), MAX_PREVIEW.getWidth()),
+                Math.min(display.getHeight(), MAX_PREVIEW.getHeight()));
+        mRecordLimit = (maxRecordSize == null)
+                ? mPreviewLimit : toLandscape(maxRecordSize);
+
+        //Candidate ratios come from what is captured, not the preview
+        List<Double> ratios = new ArrayList<Double>();
+        addAspectRatios(ratios, mStillOutputs);
+        addAspectRatios(ratios, mRecordOutputs);
+        mAspectRatios = new double[ratios.size()];
+        for (int i = 0; i < mAspectRatios.length; i++) {
+            mAspectRatios[i] = ratios.get(i);
+        }
+    }
+
+    private static void addAspectRatios(List<Double> ratios,
+                                        Output[] outputs) {
+        for (Output output : outputs) {
+            double ratio = getAspectRatio(output.getSize());
+            boolean known = false;
+            for (double existing : ratios) {
+                if (isSameRatio(existing, ratio)) {
+                    known = true;
+                    break;
+                }
+            }
+            if (!known) {
+                ratios.add(ratio);
+            }
+        }
+    }
+
+    /**
+     * Choose sizes for a use case.
+     *
+     * @param viewWidth Size of the preview view, in either orientation
+     * @param frameDurationNs Preview and recording must sustain this
+     * @return The best plan, or null if no guaranteed combination has
+     *         sizes for every stream the use case needs
+     */
+    public Plan plan(UseCase useCase, int viewWidth, int viewHeight,
+                     long frameDurationNs) {
+        Size view = toLandscape(new Size(viewWidth, viewHeight));
+        Plan best = null;
+        for (int[] combination : getCombinations()) {
+            int recordLimit = useCase.mRecord ? combination[0] : UNUSED;
+            int stillLimit = useCase.mStill ? combination[1] : UNUSED;
+            if ((useCase.mRecord && recordLimit == UNUSED)
+                    || (useCase.mStill && stillLimit == UNUSED)) {
+                continue;
+            }
+
+            for (double ratio : mAspectRatios) {
+                Plan plan = planFor(useCase, ratio, recordLimit,
+                        stillLimit, view, frameDurationNs);
+                if (plan != null
+                        && (best == null || plan.mScore > best.mScore)) {
+                    best = plan;
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Every recording size the camera can sustain at the frame rate,
+     * within the largest recording the hardware level guarantees next
+     * to a preview, largest first.
+     */
+    public List<Size> getRecordSizes(long frameDurationNs) {
+        Size limit = getLimit(isLegacy() ? PREVIEW : RECORD);
+        List<Output> outputs = new ArrayList<Output>();
+        for (Output output : mRecordOutputs) {
+            if (fits(output.getSize(), limit)
+                    && output.getMinFrameDurationNs() <= frameDurationNs) {
+                outputs.add(output);
+            }
+        }
+        Collections.sort(outputs, Collections.reverseOrder(
+                new CompareOutputsByArea()));
+
+        List<Size> sizes = new ArrayList<Size>(outputs.size());
+        for (Output output : outputs) {
+            sizes.add(output.getSize());
+        }
+        return sizes;
+    }
+
+    /**
+     * Bounds of a YUV stream guaranteed next to a PREVIEW sized
+     * preview and a JPEG still of the given size.
+     *
+     * Every level has PRIV PREVIEW + YUV PREVIEW + JPEG MAXIMUM, and
+     * LIMITED and above also have PRIV PREVIEW + YUV RECORD + JPEG
+     * RECORD. No level guarantees two YUV streams with the JPEG.
+     *
+     * @param yuvStreams YUV streams in the session, counting this one
+     * @return Landscape bounds, or null if no combination has them
+     */
+    public Size getYuvLimit(Size stillSize, int yuvStreams) {
+        if (yuvStreams != 1) {
+            return null;
+        }
+        if (!isLegacy() && fits(toLandscape(stillSize), mRecordLimit)) {
+            return mRecordLimit;
+        }
+        return mPreviewLimit;
+    }
+
+    /**
+     * Largest YUV size that is guaranteed next to a preview and a JPEG
+     * still of the given size, and that streams at the frame rate
+     * without stalling, preferring the still's aspect ratio.
+     *
+     * @param yuvStreams YUV streams in the session, counting this one
+     * @return The size, or null if none is guaranteed
+     */
+    public Size pickYuvSize(Size stillSize, int yuvStreams,
+                            long frameDurationNs) {
+        Size limit = getYuvLimit(stillSize, yuvStreams);
+        if (limit == null) {
+            return null;
+        }
+
+        List<Output> outputs = new ArrayList<Output>();
+        for (Output output : mYuvOutputs) {
+            if (output.getStallDurationNs() == 0) {
+                outputs.add(output);
+            }
+        }
+        Output largest = pickLargest(outputs.toArray(
+                new Output[outputs.size()]), getAspectRatio(stillSize),
+                limit, frameDurationNs);
+        return (largest == null) ? null : largest.getSize();
+    }
+
+    //One combination and aspect ratio, or null if a stream has no size
+    private Plan planFor(UseCase useCase, double ratio, int recordLimit,
+                         int stillLimit, Size view, long frameDurationNs) {
+        List<String> reasons = new ArrayList<String>();
+        double score = 0;
+        reasons.add(String.format("aspect %.3f, streams PRIV PREVIEW%s%s",
+                ratio,
+                useCase.mRecord ? " + PRIV " + LIMIT_NAMES[recordLimit] : "",
+                useCase.mStill ? " + JPEG " + LIMIT_NAMES[stillLimit] : ""));
+
+        Output still = null;
+        if (useCase.mStill) {
+            still = pickLargest(mStillOutputs, ratio, getLimit(stillLimit),
+                    Long.MAX_VALUE);
+            if (still == null) {
+                return null;
+            }
+            double megapixels = getMegapixels(still.getSize());
+            score += megapixels;
+            reasons.add(String.format("still %s: +%.2f",
+                    still.getSize(), megapixels));
+
+            double stall = still.getStallDurationNs() / 1e9
+                    * STALL_PENALTY_PER_SECOND;
+            if (stall > 0) {
+                score -= stall;
+                reasons.add(String.format("still stall %dms: -%.2f",
+                        still.getStallDurationNs() / 1000000, stall));
+            }
+            score -= getMismatch("still", still, ratio, reasons);
+        }
+
+        Output record = null;
+        if (useCase.mRecord) {
+            record = pickLargest(mRecordOutputs, ratio,
+                    getLimit(recordLimit), frameDurationNs);
+            if (record == null) {
+                return null;
+            }
+            double weighted = getMegapixels(record.getSize()) * RECORD_WEIGHT;
+            score += weighted;
+            reasons.add(String.format("record %s: +%.2f",
+                    record.getSize(), weighted));
+            score -= getMismatch("record", record, ratio, reasons);
+        }
+
+        Output preview = pickPreview(ratio, view, frameDurationNs);
+        if (preview == null) {
+            return null;
+        }
+        Size previewSize = preview.getSize();
+        //Upscaling to fill the view loses detail
+        double coverage = Math.min(1.0, Math.min(
+                previewSize.getWidth() / (double) view.getWidth(),
+                previewSize.getHeight() / (double) view.getHeight()));
+        if (coverage < 1.0) {
+            score -= 1.0 - coverage;
+            reasons.add(String.format("preview %s upscaled to view: -%.2f",
+                    previewSize, 1.0 - coverage));
+        } else {
+            reasons.add("preview " + previewSize + " covers view");
+        }
+        score -= getMismatch("preview", preview, ratio, reasons);
+
+        return new Plan(useCase, previewSize,
+                (still == null) ? null : still.getSize(),
+                (record == null) ? null : record.getSize(),
+                score, reasons);
+    }
+
+    private double getMismatch(String stream, Output output, double ratio,
+                               List<String> reasons) {
+        if (isSameRatio(getAspectRatio(output.getSize()), ratio)) {
+            return 0;
+        }
+        reasons.add(String.format("%s aspect differs: -%.2f", stream,
+                MISMATCH_PENALTY));
+        return MISMATCH_PENALTY;
+    }
+
+    /*
+     * Smallest sustainable preview that covers the view, or the
+     * largest one if none does. Sizes of the plan's ratio come first.
+     */
+    private Output pickPreview(double ratio, Size view,
+                               long frameDurationNs) {
+        Output preview = pickPreview(ratio, view, frameDurationNs, true);
+        return (preview != null)
+                ? preview : pickPreview(ratio, view, frameDurationNs, false);
+    }
+
+    private Output pickPreview(double ratio, Size view, long frameDurationNs,
+                               boolean matchRatio) {
+        Output smallestCovering = null;
+        Output largest = null;
+        for (Output output : mPreviewOutputs) {
+            Size size = output.getSize();
+            if (!isCandidate(output, ratio, mPreviewLimit, frameDurationNs,
+                    matchRatio)) {
+                continue;
+            }
+            if (largest == null || getArea(size) > getArea(largest.getSize())) {
+                largest = output;
+            }
+            if (fits(view, size) && (smallestCovering == null
+                    || getArea(size) < getArea(smallestCovering.getSize()))) {
+                smallestCovering = output;
+            }
+        }
+        return (smallestCovering != null) ? smallestCovering : largest;
+    }
+
+    //Largest candidate, preferring the plan's ratio
+    private static Output pickLargest(Output[] outputs, double ratio,
+                                      Size limit, long frameDurationNs) {
+        Output output = pickLargest(outputs, ratio, limit, frameDurationNs,
+                true);
+        return (output != null) ? output
+                : pickLargest(outputs, ratio, limit, frameDurationNs, false);
+    }
+
+    private static Output pickLargest(Output[] outputs, double ratio,
+                                      Size limit, long frameDurationNs,
+                                      boolean matchRatio) {
+        Output largest = null;
+        for (Output output : outputs) {
+            if (isCandidate(output, ratio, limit, frameDurationNs,
+                    matchRatio) && (largest == null
+                    || getArea(output.getSize())
+                    > getArea(largest.getSize()))) {
+                largest = output;
+            }
+        }
+        return largest;
+    }
+
+    private static boolean isCandidate(Output output, double ratio,
+                                       Size limit, long frameDurationNs,
+                                       boolean matchRatio) {
+        Size size = output.getSize();
+        return (limit == null || fits(size, limit))
+                && output.getMinFrameDurationNs() <= frameDurationNs
+                && (!matchRatio
+                || isSameRatio(getAspectRatio(size), ratio));
+    }
+
+    private List<int[]> getCombinations() {
+        List<int[]> combinations = new ArrayList<int[]>();
+        Collections.addAll(combinations, LEGACY_COMBINATIONS);
+        if (isLegacy()) {
+            return combinations;
+        }
+        Collections.addAll(combinations, LIMITED_COMBINATIONS);
+        if (mHardwareLevel
+                == CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_LIMITED) {
+            return combinations;
+        }
+        //FULL, and any level above it
+        Collections.addAll(combinations, FULL_COMBINATIONS);
+        return combinations;
+    }
+
+    private boolean isLegacy() {
+        return mHardwareLevel
+                == CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY;
+    }
+
+    //Landscape bounds for a limit, null when there is none
+    private Size getLimit(int limit) {
+        switch (limit) {
+            case PREVIEW:
+                return mPreviewLimit;
+            case RECORD:
+                return mRecordLimit;
+            default:
+                return null;
+        }
+    }
+
+    //Whether a landscape size fits within landscape bounds
+    private static boolean fits(Size size, Size bounds) {
+        return size.getWidth() <= bounds.getWidth()
+                && size.getHeight() <= bounds.getHeight();
+    }
+
+    private static Size toLandscape(Size size) {
+        return (size.getWidth() >= size.getHeight())
+                ? size : new Size(size.getHeight(), size.getWidth());
+    }
+
+    private static double getAspectRatio(Size size) {
+        Size landscape = toLandscape(size);
+        return landscape.getWidth() / (double) landscape.getHeight();
+    }
+
+    private static boolean isSameRatio(double lhs, double rhs) {
+        return Math.abs(lhs - rhs) <= ASPECT_TOLERANCE;
+    }
+
+    private static long getArea(Size size) {
+        return (long) size.getWidth() * size.getHeight();
+    }
+
+    private static double getMegapixels(Size size) {
+        return getArea(size) / 1e6;
+    }
+
+    private static class CompareOutputsByArea
+            implements java.util.Comparator<Output> {
+        @Override
+        public int compare(Output lhs, Output rhs) {
+            return Long.signum(getArea(lhs.getSize())
+                    - getArea(rhs.getSize()));
+        }
+    }
+}
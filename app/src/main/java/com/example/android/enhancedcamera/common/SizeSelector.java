@@ -0,0 +1,58 @@
+package com.example.android.enhancedcamera.common;
+
+import android.util.Log;
+import android.util.Size;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Resolution selection rules, kept free of camera types so they can be
+ * exercised off-device.
+ */
+public final class SizeSelector {
+    private static final String TAG = SizeSelector.class.getSimpleName();
+
+    private SizeSelector() {
+    }
+
+    /**
+     * Comparator to organize supported resolutions by overall size.
+     */
+    public static class CompareSizesByArea implements Comparator<Size> {
+
+        @Override
+        public int compare(Size lhs, Size rhs) {
+            // We cast here to ensure the multiplications won't overflow
+            return Long.signum((long) lhs.getWidth() * lhs.getHeight() -
+                    (long) rhs.getWidth() * rhs.getHeight());
+        }
+
+    }
+
+    /**
+     * Choose the smallest size the will satisfy the minimum
+     * requested dimensions.
+     */
+    public static Size chooseOptimalSize(Size[] choices,
+                                         int width,
+                                         int height) {
+
+        List<Size> bigEnough = new ArrayList<Size>();
+        for (Size option : choices) {
+            if (option.getWidth() >= width && option.getHeight() >= height) {
+                bigEnough.add(option);
+            }
+        }
+
+        // Pick the smallest of those, assuming we found any
+        if (bigEnough.size() > 0) {
+            return Collections.min(bigEnough, new CompareSizesByArea());
+        } else {
+            Log.e(TAG, "Couldn't find any suitable preview size");
+            return choices[0];
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.example.android.enhancedcamera.common;
+
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * Startup tracing for a camera screen, from onCreate() (or a request
+ * to switch cameras) to the first preview frame. Each stage records
+ * the time since the start the first time it is reached. Finished runs
+ * are aggregated into a histogram per stage and logged as one line, so
+ * every build can be checked with "adb logcat -s StartupTrace".
+ *
+ * Camera open and surface creation run concurrently, so either of
+ * them may come first. Frames count only once the session is
+ * configured, so the last frames of a previous camera are ignored.
+ */
+public class StartupTrace {
+    private static final String TAG = StartupTrace.class.getSimpleName();
+
+    public enum Stage {
+        STARTED,
+        CAMERA_OPENED,
+        SURFACE_READY,
+        SESSION_CONFIGURED,
+        FIRST_FRAME
+    }
+
+    private static final Stage[] STAGES = Stage.values();
+    private static final long NOT_REACHED = -1;
+
+    private final String mName;
+    private final long[] mMarks = new long[STAGES.length];
+    private final LatencyHistogram[] mLatency =
+            new LatencyHistogram[STAGES.length];
+    private boolean mActive;
+
+    public StartupTrace(String name) {
+        mName = name;
+        for (int i = 0; i < STAGES.length; i++) {
+            mLatency[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Start a new run, abandoning any run still unfinished.
+     */
+    public synchronized void begin() {
+        Arrays.fill(mMarks, NOT_REACHED);
+        mMarks[Stage.STARTED.ordinal()] = System.nanoTime();
+        mActive = true;
+    }
+
+    /**
+     * Record that startup has reached the given stage. Only the first
+     * time in each run counts.
+     */
+    public synchronized void mark(Stage stage) {
+        int index = stage.ordinal();
+        if (!mActive || mMarks[index] != NOT_REACHED) {
+            return;
+        }
+        if (stage == Stage.FIRST_FRAME && mMarks[
+                Stage.SESSION_CONFIGURED.ordinal()] == NOT_REACHED) {
+            return;
+        }
+
+        mMarks[index] = System.nanoTime();
+        if (stage == Stage.FIRST_FRAME) {
+            finish();
+        }
+    }
+
+    private void finish() {
+        mActive = false;
+        long start = mMarks[Stage.STARTED.ordinal()];
+        StringBuilder summary = new StringBuilder(mName).append(":");
+        //The start has no latency of its own
+        for (int i = 1; i < STAGES.length; i++) {
+            if (mMarks[i] == NOT_REACHED) {
+                continue;
+            }
+            long elapsed = mMarks[i] - start;
+            mLatency[i].record(elapsed);
+            summary.append(' ').append(STAGES[i]).append('=')
+                    .append(elapsed / 1000000).append("ms");
+        }
+        Log.i(TAG, summary.toString());
+    }
+
+    public LatencyHistogram getLatency(Stage stage) {
+        return mLatency[stage.ordinal()];
+    }
+
+    /**
+     * Print all histograms, e.g. from Activity.dump() so they are
+     * available through "adb shell dumpsys activity".
+     */
+    public void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.print(mName);
+        writer.println(" (time since start):");
+        for (int i = 1; i < STAGES.length; i++) {
+            writer.print(prefix);
+            writer.print("  ");
+            writer.print(STAGES[i]);
+            writer.print(": ");
+            writer.println(mLatency[i]);
+        }
+    }
+}
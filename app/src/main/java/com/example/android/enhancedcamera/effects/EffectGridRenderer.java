@@ -0,0 +1,247 @@
+package com.example.android.enhancedcamera.effects;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.os.SystemClock;
+import android.util.Size;
+import android.view.TextureView;
+
+import com.example.android.enhancedcamera.analysis.AnalysisFrame;
+import com.example.android.enhancedcamera.analysis.FrameAnalyzer;
+import com.example.android.enhancedcamera.processing.BandKernel;
+import com.example.android.enhancedcamera.processing.TiledProcessor;
+
+/**
+ * Side by side comparison of every effect, drawn from a single preview
+ * frame. Each refresh downscales one analysis frame to a thumbnail,
+ * renders all the effects from it in parallel on a
+ * {@link TiledProcessor}, and draws them as a grid over the preview.
+ *
+ * Refreshes are capped to a few per second; frames in between are
+ * ignored. Thumbnails are rendered in software whether or not the
+ * camera supports an effect, so the whole grid comes from the same
+ * frame. All buffers are allocated up front.
+ */
+public class EffectGridRenderer implements FrameAnalyzer {
+
+    //Thumbnails are about this wide, in sensor orientation
+    private static final int THUMB_WIDTH = 160;
+    private static final float LABEL_SIZE = 32f;
+    private static final float LABEL_PADDING = 8f;
+
+    //One thumbnail and everything needed to render it
+    private static class Cell {
+        final YuvEffect effect;
+        final String label;
+        final byte[] y;
+        final byte[] u;
+        final byte[] v;
+        final int[] pixels;
+        final Bitmap bitmap;
+        final Matrix matrix = new Matrix();
+        float labelX;
+        float labelY;
+
+        Cell(YuvEffect effect, String label, int width, int height) {
+            this.effect = effect;
+            this.label = label;
+            y = new byte[width * height];
+            u = new byte[(width / 2) * (height / 2)];
+            v = new byte[u.length];
+            pixels = new int[width * height];
+            bitmap = Bitmap.createBitmap(width, height,
+                    Bitmap.Config.ARGB_8888);
+        }
+    }
+
+    private final TextureView mTarget;
+    private final int mFrameWidth;
+    private final int mFrameHeight;
+    private final int mStep;
+    private final int mThumbWidth;
+    private final int mThumbHeight;
+    private final int mRotation;
+    private final long mMinIntervalNs;
+
+    //Downscaled frame shared by every cell
+    private final byte[] mThumbY;
+    private final byte[] mThumbU;
+    private final byte[] mThumbV;
+    private final Cell[] mCells;
+    private final TiledProcessor mProcessor;
+    private final Paint mBitmapPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Paint mLabelPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private int mCanvasWidth;
+    private int mCanvasHeight;
+
+    private long mLastRenderNs;
+    private boolean mClosed;
+
+    //Renders the cells in the band, one cell per row
+    private final BandKernel mKernel = new BandKernel() {
+        @Override
+        public void processBand(int rowStart, int rowEnd) {
+            for (int i = rowStart; i < rowEnd; i++) {
+                renderCell(mCells[i]);
+            }
+        }
+    };
+
+    /**
+     * @param effectNames Label for each effect, indexed by its
+     *                    CONTROL_EFFECT_MODE value
+     * @param rotation Clockwise degrees from sensor to display
+     * @param maxFps Most refreshes of the grid per second
+     */
+    public EffectGridRenderer(TextureView target, Size frameSize,
+                              String[] effectNames, int rotation,
+                              int maxFps) {
+        mTarget = target;
+        mFrameWidth = frameSize.getWidth();
+        mFrameHeight = frameSize.getHeight();
+        mRotation = rotation;
+        mMinIntervalNs = 1000000000L / maxFps;
+
+        //Whole step point sampling, even sizes for the chroma planes
+        mStep = Math.max(1, mFrameWidth / THUMB_WIDTH);
+        mThumbWidth = (mFrameWidth / mStep) & ~1;
+        mThumbHeight = (mFrameHeight / mStep) & ~1;
+        mThumbY = new byte[mThumbWidth * mThumbHeight];
+        mThumbU = new byte[(mThumbWidth / 2) * (mThumbHeight / 2)];
+        mThumbV = new byte[mThumbU.length];
+
+        //Effects without a software version show the plain frame
+        mCells = new Cell[effectNames.length];
+        for (int mode = 0; mode < mCells.length; mode++) {
+            mCells[mode] = new Cell(YuvEffect.forMode(mode),
+                    effectNames[mode], mThumbWidth, mThumbHeight);
+        }
+
+        mProcessor = new TiledProcessor(
+                Runtime.getRuntime().availableProcessors());
+        mLabelPaint.setColor(Color.WHITE);
+        mLabelPaint.setTextSize(LABEL_SIZE);
+        mLabelPaint.setShadowLayer(2f, 0f, 0f, Color.BLACK);
+    }
+
+    @Override
+    public synchronized void analyze(AnalysisFrame frame, long deadlineNs) {
+        long now = SystemClock.elapsedRealtimeNanos();
+        if (mClosed || now - mLastRenderNs < mMinIntervalNs
+                || frame.getWidth() != mFrameWidth
+                || frame.getHeight() != mFrameHeight) {
+            return;
+        }
+        mLastRenderNs = now;
+
+        downscale(frame);
+        mProcessor.process(mKernel, mCells.length,
+                mThumbWidth * mThumbHeight * 4);
+        draw();
+    }
+
+    //Point sample the frame down to the thumbnail planes
+    private void downscale(AnalysisFrame frame) {
+        sample(frame.getY(), mFrameWidth, mThumbY, mThumbWidth,
+                mThumbHeight);
+        int chromaStride = mFrameWidth / 2;
+        sample(frame.getU(), chromaStride, mThumbU, mThumbWidth / 2,
+                mThumbHeight / 2);
+        sample(frame.getV(), chromaStride, mThumbV, mThumbWidth / 2,
+                mThumbHeight / 2);
+    }
+
+    private void sample(byte[] src, int srcStride, byte[] dst,
+                        int width, int height) {
+        int out = 0;
+        for (int row = 0; row < height; row++) {
+            int in = row * mStep * srcStride;
+            for (int col = 0; col < width; col++) {
+                dst[out++] = src[in];
+                in += mStep;
+            }
+        }
+    }
+
+    //Runs on the processor's workers, each cell has its own buffers
+    private void renderCell(Cell cell) {
+        byte[] y = mThumbY;
+        byte[] u = mThumbU;
+        byte[] v = mThumbV;
+        if (cell.effect != null) {
+            cell.effect.apply(mThumbY, mThumbU, mThumbV,
+                    cell.y, cell.u, cell.v, mThumbWidth, mThumbHeight);
+            y = cell.y;
+            u = cell.u;
+            v = cell.v;
+        }
+        YuvConverter.toArgb(y, u, v, mThumbWidth, mThumbHeight,
+                cell.pixels);
+        cell.bitmap.setPixels(cell.pixels, 0, mThumbWidth, 0, 0,
+                mThumbWidth, mThumbHeight);
+    }
+
+    private void draw() {
+        //Null while the overlay has no surface
+        Canvas canvas = mTarget.lockCanvas();
+        if (canvas == null) {
+            return;
+        }
+        try {
+            updateLayout(canvas.getWidth(), canvas.getHeight());
+            canvas.drawColor(Color.BLACK);
+            for (Cell cell : mCells) {
+                canvas.drawBitmap(cell.bitmap, cell.matrix, mBitmapPaint);
+                canvas.drawText(cell.label, cell.labelX, cell.labelY,
+                        mLabelPaint);
+            }
+        } finally {
+            mTarget.unlockCanvasAndPost(canvas);
+        }
+    }
+
+    //Near square grid, each thumbnail rotated and stretched to its cell
+    private void updateLayout(int canvasWidth, int canvasHeight) {
+        if (canvasWidth == mCanvasWidth && canvasHeight == mCanvasHeight) {
+            return;
+        }
+        mCanvasWidth = canvasWidth;
+        mCanvasHeight = canvasHeight;
+
+        int columns = (int) Math.ceil(Math.sqrt(mCells.length));
+        int rows = (mCells.length + columns - 1) / columns;
+        float cellWidth = canvasWidth / (float) columns;
+        float cellHeight = canvasHeight / (float) rows;
+
+        boolean swapped = (mRotation % 180) != 0;
+        float rotatedWidth = swapped ? mThumbHeight : mThumbWidth;
+        float rotatedHeight = swapped ? mThumbWidth : mThumbHeight;
+
+        for (int i = 0; i < mCells.length; i++) {
+            Cell cell = mCells[i];
+            float left = (i % columns) * cellWidth;
+            float top = (i / columns) * cellHeight;
+
+            cell.matrix.reset();
+            cell.matrix.postTranslate(-mThumbWidth / 2f, -mThumbHeight / 2f);
+            cell.matrix.postRotate(mRotation);
+            cell.matrix.postScale(cellWidth / rotatedWidth,
+                    cellHeight / rotatedHeight);
+            cell.matrix.postTranslate(left + cellWidth / 2f,
+                    top + cellHeight / 2f);
+            cell.labelX = left + LABEL_PADDING;
+            cell.labelY = top + cellHeight - LABEL_PADDING;
+        }
+    }
+
+    /**
+     * Stop the render workers, waiting for a refresh underway.
+     */
+    public synchronized void close() {
+        mClosed = true;
+        mProcessor.shutdown();
+    }
+}
@@ -1,10 +1,13 @@
 package com.example.android.enhancedcamera.effects;
 
 import android.app.Activity;
+import android.graphics.ImageFormat;
 import android.graphics.SurfaceTexture;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureRequest;
 import android.os.Bundle;
 import android.util.Log;
 import android.util.Size;
@@ -14,10 +17,15 @@ import android.view.WindowManager;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.Spinner;
+import android.widget.ToggleButton;
 
 import com.example.android.enhancedcamera.R;
+import com.example.android.enhancedcamera.analysis.FrameAnalysisStage;
 import com.example.android.enhancedcamera.common.CameraHelper;
+import com.example.android.enhancedcamera.common.CameraStarter;
 import com.example.android.enhancedcamera.common.PreviewCallback;
+import com.example.android.enhancedcamera.common.SizeSelector;
+import com.example.android.enhancedcamera.common.StartupTrace;
 
 import java.util.Arrays;
 
@@ -27,28 +35,61 @@ public class ImageEffectsActivity extends Activity implements
     private static final String TAG =
             ImageEffectsActivity.class.getSimpleName();
 
+    //Software effects are drawn from a reduced size stream
+    private static final int SOFTWARE_WIDTH = 640;
+    private static final int SOFTWARE_HEIGHT = 480;
+    private static final long SOFTWARE_BUDGET_MS = 33;
+    //Comparison grid refreshes, and the time each refresh may take
+    private static final int COMPARE_MAX_FPS = 4;
+    private static final long COMPARE_BUDGET_MS = 100;
+
     private TextureView mPreviewTexture;
+    private TextureView mEffectTexture;
+    private TextureView mGridTexture;
 
+    //Effects the camera applies itself
     private int[] mSupportedEffects;
+    //Everything on offer, with software filling the gaps
+    private int[] mEffects;
     private String[] mEffectNames;
+    private volatile int mSelectedEffect =
+            CameraMetadata.CONTROL_EFFECT_MODE_OFF;
+    //Only created if some effect needs it
+    private volatile SoftwareEffectRenderer mSoftwareRenderer;
+
+    //Every effect at once, drawn from the same preview frame
+    private volatile boolean mCompareEnabled;
+    private volatile FrameAnalysisStage mAnalysisStage;
+    private volatile EffectGridRenderer mGridRenderer;
 
     /* Selected Camera Id */
     private String mBackCameraId = null;
 
+    //Kept across instances, so every cold start is counted
+    private static final StartupTrace sStartupTrace =
+            new StartupTrace(ImageEffectsActivity.class.getSimpleName()
+                    + " startup");
+
     private CameraHelper mCameraHelper;
-    private CameraDevice mCameraDevice;
-    private PreviewCallback mCameraCallback;
+    private CameraStarter mCameraStarter;
+    //Written from camera thread callbacks, read on the main thread
+    private volatile CameraDevice mCameraDevice;
+    private volatile PreviewCallback mCameraCallback;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        sStartupTrace.begin();
         setContentView(R.layout.activity_effect);
 
         mCameraHelper = new CameraHelper(this);
+        mCameraStarter = new CameraStarter(mCameraHelper, sStartupTrace);
 
         Spinner effectSelector =
                 (Spinner) findViewById(R.id.selector_effects);
         mPreviewTexture = (TextureView) findViewById(R.id.preview);
+        mEffectTexture = (TextureView) findViewById(R.id.preview_effect);
+        mGridTexture = (TextureView) findViewById(R.id.grid_effects);
 
         if (!discoverCamera()) {
             finish();
@@ -71,15 +112,14 @@ public class ImageEffectsActivity extends Activity implements
     protected void onResume() {
         super.onResume();
 
+        // Start opening the camera now, while the views are laid out.
         // When the screen is turned off and turned back on,
-        // SurfaceTexture is already available. In that case, we can open
-        // a camera and start preview from here (otherwise, we wait until
-        // the surface is ready in the SurfaceTextureListener).
-        if (mPreviewTexture.isAvailable()) {
-            openCamera();
-        } else {
+        // SurfaceTexture is already available. Otherwise preview starts
+        // once the surface is ready in the SurfaceTextureListener.
+        if (!mPreviewTexture.isAvailable()) {
             mPreviewTexture.setSurfaceTextureListener(this);
         }
+        openCamera();
     }
 
     @Override
@@ -95,8 +135,8 @@ public class ImageEffectsActivity extends Activity implements
     @Override
     public void onSurfaceTextureAvailable(SurfaceTexture surface,
                                           int width, int height) {
-        //Camera is now safe to open
-        openCamera();
+        //Camera can now be handed over, if it is open
+        mCameraStarter.onSurfaceReady();
     }
 
     @Override
@@ -109,7 +149,9 @@ public class ImageEffectsActivity extends Activity implements
     }
 
     @Override
-    public void onSurfaceTextureUpdated(SurfaceTexture surface) { }
+    public void onSurfaceTextureUpdated(SurfaceTexture surface) {
+        sStartupTrace.mark(StartupTrace.Stage.FIRST_FRAME);
+    }
 
     /** Methods to connect with the camera devices */
 
@@ -130,9 +172,10 @@ public class ImageEffectsActivity extends Activity implements
             mSupportedEffects = mCameraHelper
                     .getSupportedEffects(mBackCameraId);
             Arrays.sort(mSupportedEffects);
-            mEffectNames = new String[mSupportedEffects.length];
-            for (int i=0; i < mSupportedEffects.length; i++) {
-                mEffectNames[i] = getEffectName(mSupportedEffects[i]);
+            mEffects = addSoftwareEffects(mSupportedEffects);
+            mEffectNames = new String[mEffects.length];
+            for (int i=0; i < mEffects.length; i++) {
+                mEffectNames[i] = getEffectName(mEffects[i]);
             }
         } catch (CameraAccessException e) {
             Log.w(TAG, "Unable to access camera effects.", e);
@@ -142,6 +185,41 @@ public class ImageEffectsActivity extends Activity implements
         return true;
     }
 
+    //Union of the hardware effects and those with a software version
+    private static int[] addSoftwareEffects(int[] hardwareEffects) {
+        int[] effects = new int[CameraMetadata.CONTROL_EFFECT_MODE_AQUA + 1];
+        int count = 0;
+        for (int effect = 0; effect < effects.length; effect++) {
+            if (isHardwareEffect(hardwareEffects, effect)
+                    || YuvEffect.isSupported(effect)) {
+                effects[count++] = effect;
+            }
+        }
+        return Arrays.copyOf(effects, count);
+    }
+
+    private static boolean isHardwareEffect(int[] hardwareEffects,
+                                            int effect) {
+        return Arrays.binarySearch(hardwareEffects, effect) >= 0;
+    }
+
+    private boolean needsSoftwareEffects() {
+        return mEffects.length > mSupportedEffects.length;
+    }
+
+    //Effect for the camera to apply, none if drawn in software
+    private int getHardwareEffect() {
+        int effect = mSelectedEffect;
+        return isHardwareEffect(mSupportedEffects, effect)
+                ? effect : CameraMetadata.CONTROL_EFFECT_MODE_OFF;
+    }
+
+    //Software effect selected, or the grid showing
+    private boolean needsAnalysisStream() {
+        return mCompareEnabled
+                || !isHardwareEffect(mSupportedEffects, mSelectedEffect);
+    }
+
     private String getEffectName(int effect) {
         String[] names = getResources().getStringArray(R.array.effects);
         //Effect id is the index into this array
@@ -151,19 +229,56 @@ public class ImageEffectsActivity extends Activity implements
     @Override
     public void onItemSelected(AdapterView<?> parent, View view,
                                int position, long id) {
-        int effect = mSupportedEffects[position];
-        if (mCameraCallback == null) return;
-
+        int effect = mEffects[position];
+        mSelectedEffect = effect;
+        PreviewCallback callback = mCameraCallback;
+        if (callback == null) return;
+
+        //Fall back to software when the camera can't do it
+        boolean hardware = isHardwareEffect(mSupportedEffects, effect);
+        setSoftwareEffect(hardware ? null : YuvEffect.forMode(effect));
+        if (updateAnalysisStream(callback)) {
+            //New session starts with the effect
+            return;
+        }
         try {
-            mCameraCallback.restartPreview(effect);
+            callback.restartPreview(getHardwareEffect());
         } catch (CameraAccessException e) {
             Log.w(TAG, "Unable to set effect value.", e);
         }
     }
 
+    private void setSoftwareEffect(YuvEffect effect) {
+        SoftwareEffectRenderer renderer = mSoftwareRenderer;
+        if (renderer != null) {
+            renderer.setEffect(effect);
+        }
+        mEffectTexture.setVisibility(
+                (effect != null) ? View.VISIBLE : View.GONE);
+    }
+
     @Override
     public void onNothingSelected(AdapterView<?> parent) { }
 
+    public void onCompareClick(View v) {
+        mCompareEnabled = ((ToggleButton) v).isChecked();
+        mGridTexture.setVisibility(
+                mCompareEnabled ? View.VISIBLE : View.GONE);
+
+        PreviewCallback callback = mCameraCallback;
+        if (callback == null || updateAnalysisStream(callback)) return;
+
+        FrameAnalysisStage stage = mAnalysisStage;
+        EffectGridRenderer renderer = mGridRenderer;
+        if (stage == null || renderer == null) return;
+
+        if (mCompareEnabled) {
+            stage.addAnalyzer("effect grid", renderer, COMPARE_BUDGET_MS);
+        } else {
+            stage.removeAnalyzer(renderer);
+        }
+    }
+
     /*
      * Handle state changes regarding the actual camera device
      */
@@ -183,9 +298,25 @@ public class ImageEffectsActivity extends Activity implements
                         mPreviewTexture.getWidth(),
                         mPreviewTexture.getHeight());
 
-                mCameraCallback = new PreviewCallback(mCameraDevice,
+                PreviewCallback callback = new PreviewCallback(mCameraDevice,
                         mPreviewTexture.getSurfaceTexture(),
-                        targetPreviewSize);
+                        targetPreviewSize,
+                        mCameraHelper.getCameraExecutor()) {
+                    //Every new session starts with the selected effect
+                    @Override
+                    protected CaptureRequest.Builder
+                            createPreviewRequestBuilder()
+                            throws CameraAccessException {
+                        CaptureRequest.Builder builder =
+                                super.createPreviewRequestBuilder();
+                        builder.set(CaptureRequest.CONTROL_EFFECT_MODE,
+                                getHardwareEffect());
+                        return builder;
+                    }
+                };
+                callback.setStartupTrace(sStartupTrace);
+                callback.setAnalysisStage(createAnalysisStage());
+                mCameraCallback = callback;
 
                 mCameraCallback.startPreviewSession();
             } catch (CameraAccessException e) {
@@ -208,12 +339,90 @@ public class ImageEffectsActivity extends Activity implements
         }
     }
 
+    /*
+     * Add or drop the analysis stream when it is needed or no longer
+     * is, which takes a new session. Returns true if one was started.
+     */
+    private boolean updateAnalysisStream(PreviewCallback callback) {
+        if ((mAnalysisStage != null) == needsAnalysisStream()) {
+            return false;
+        }
+
+        try {
+            //Stop streaming to the old stage, and close it before its
+            //renderers are released
+            callback.cancelActiveCaptureSession();
+            callback.setAnalysisStage(null);
+            callback.setAnalysisStage(createAnalysisStage());
+            callback.startPreviewSession();
+        } catch (CameraAccessException e) {
+            Log.w(TAG, "Error restarting camera preview", e);
+        }
+        return true;
+    }
+
+    /*
+     * Stream for software effects and the comparison grid, or null if
+     * neither is in use. Hardware effects alone run without it, so the
+     * camera isn't filling a second stream that nothing reads.
+     */
+    private FrameAnalysisStage createAnalysisStage()
+            throws CameraAccessException {
+        releaseAnalysisRenderers();
+        if (!needsAnalysisStream()) {
+            return null;
+        }
+
+        Size[] sizes = mCameraHelper.getProfile(mBackCameraId)
+                .getOutputSizes(ImageFormat.YUV_420_888);
+        Size size = SizeSelector.chooseOptimalSize(sizes,
+                SOFTWARE_WIDTH, SOFTWARE_HEIGHT);
+        //Activity is portrait only, so rotate by the sensor orientation
+        int rotation = mCameraHelper.getSensorOrientation(mBackCameraId);
+
+        FrameAnalysisStage stage = new FrameAnalysisStage(size,
+                mCameraHelper.getCameraExecutor(), 1);
+        if (needsSoftwareEffects()) {
+            SoftwareEffectRenderer renderer = new SoftwareEffectRenderer(
+                    mEffectTexture, size, rotation);
+            int effect = mSelectedEffect;
+            if (!isHardwareEffect(mSupportedEffects, effect)) {
+                renderer.setEffect(YuvEffect.forMode(effect));
+            }
+            mSoftwareRenderer = renderer;
+            stage.addAnalyzer("software effect", renderer,
+                    SOFTWARE_BUDGET_MS);
+        }
+
+        EffectGridRenderer grid = new EffectGridRenderer(mGridTexture, size,
+                getResources().getStringArray(R.array.effects), rotation,
+                COMPARE_MAX_FPS);
+        mGridRenderer = grid;
+        if (mCompareEnabled) {
+            stage.addAnalyzer("effect grid", grid, COMPARE_BUDGET_MS);
+        }
+
+        mAnalysisStage = stage;
+        return stage;
+    }
+
+    //Stage itself is closed by the callback it was set on
+    private void releaseAnalysisRenderers() {
+        mSoftwareRenderer = null;
+        mAnalysisStage = null;
+        if (mGridRenderer != null) {
+            mGridRenderer.close();
+            mGridRenderer = null;
+        }
+    }
+
     /*
      * Initialize a new camera session
      */
     private void openCamera() {
         try {
-            mCameraHelper.openCamera(mBackCameraId, mStateCallback);
+            mCameraStarter.open(mBackCameraId,
+                    mPreviewTexture.isAvailable(), mStateCallback);
         } catch (CameraAccessException e) {
             Log.w(TAG, "Unable to access camera: "+mBackCameraId, e);
         }
@@ -225,12 +434,18 @@ public class ImageEffectsActivity extends Activity implements
     private void closeCamera() {
         if (mCameraCallback != null) {
             mCameraCallback.cancelActiveCaptureSession();
+            mCameraCallback.setAnalysisStage(null);
             mCameraCallback = null;
         }
+        releaseAnalysisRenderers();
 
+        //Also closes a camera that opened before the surface was ready
+        mCameraStarter.cancel();
         if (mCameraDevice != null) {
             mCameraDevice.close();
             mCameraDevice = null;
         }
+
+        mCameraHelper.closeCamera();
     }
 }
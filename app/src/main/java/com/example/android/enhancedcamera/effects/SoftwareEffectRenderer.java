@@ -0,0 +1,109 @@
+package com.example.android.enhancedcamera.effects;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.util.Size;
+import android.view.TextureView;
+
+import com.example.android.enhancedcamera.analysis.AnalysisFrame;
+import com.example.android.enhancedcamera.analysis.FrameAnalyzer;
+
+/**
+ * Draws analysis frames, with a software effect applied, over the
+ * camera preview. Frames arrive in sensor orientation and are rotated
+ * and stretched to fill the overlay view, the same as the preview.
+ *
+ * All buffers are allocated up front; drawing happens on the analysis
+ * worker, since a TextureView canvas may be used from any thread.
+ */
+public class SoftwareEffectRenderer implements FrameAnalyzer {
+
+    private final TextureView mTarget;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mRotation;
+
+    //Effect output and its conversion, reused for every frame
+    private final byte[] mY;
+    private final byte[] mU;
+    private final byte[] mV;
+    private final int[] mPixels;
+    private final Bitmap mBitmap;
+    private final Matrix mMatrix = new Matrix();
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private int mCanvasWidth;
+    private int mCanvasHeight;
+
+    private volatile YuvEffect mEffect;
+
+    /**
+     * @param rotation Clockwise degrees from sensor to display
+     */
+    public SoftwareEffectRenderer(TextureView target, Size frameSize,
+                                  int rotation) {
+        mTarget = target;
+        mWidth = frameSize.getWidth();
+        mHeight = frameSize.getHeight();
+        mRotation = rotation;
+
+        mY = new byte[mWidth * mHeight];
+        mU = new byte[(mWidth / 2) * (mHeight / 2)];
+        mV = new byte[mU.length];
+        mPixels = new int[mWidth * mHeight];
+        mBitmap = Bitmap.createBitmap(mWidth, mHeight,
+                Bitmap.Config.ARGB_8888);
+    }
+
+    //Effect to draw with, or null to leave the overlay alone
+    public void setEffect(YuvEffect effect) {
+        mEffect = effect;
+    }
+
+    @Override
+    public void analyze(AnalysisFrame frame, long deadlineNs) {
+        YuvEffect effect = mEffect;
+        if (effect == null || frame.getWidth() != mWidth
+                || frame.getHeight() != mHeight) {
+            return;
+        }
+
+        effect.apply(frame.getY(), frame.getU(), frame.getV(),
+                mY, mU, mV, mWidth, mHeight);
+        YuvConverter.toArgb(mY, mU, mV, mWidth, mHeight, mPixels);
+        mBitmap.setPixels(mPixels, 0, mWidth, 0, 0, mWidth, mHeight);
+
+        //Null while the overlay has no surface
+        Canvas canvas = mTarget.lockCanvas();
+        if (canvas == null) {
+            return;
+        }
+        try {
+            updateMatrix(canvas.getWidth(), canvas.getHeight());
+            canvas.drawBitmap(mBitmap, mMatrix, mPaint);
+        } finally {
+            mTarget.unlockCanvasAndPost(canvas);
+        }
+    }
+
+    //Rotate about the frame center, then stretch to the canvas
+    private void updateMatrix(int canvasWidth, int canvasHeight) {
+        if (canvasWidth == mCanvasWidth && canvasHeight == mCanvasHeight) {
+            return;
+        }
+        mCanvasWidth = canvasWidth;
+        mCanvasHeight = canvasHeight;
+
+        boolean swapped = (mRotation % 180) != 0;
+        float rotatedWidth = swapped ? mHeight : mWidth;
+        float rotatedHeight = swapped ? mWidth : mHeight;
+
+        mMatrix.reset();
+        mMatrix.postTranslate(-mWidth / 2f, -mHeight / 2f);
+        mMatrix.postRotate(mRotation);
+        mMatrix.postScale(canvasWidth / rotatedWidth,
+                canvasHeight / rotatedHeight);
+        mMatrix.postTranslate(canvasWidth / 2f, canvasHeight / 2f);
+    }
+}
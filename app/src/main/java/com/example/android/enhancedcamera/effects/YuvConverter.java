@@ -0,0 +1,60 @@
+package com.example.android.enhancedcamera.effects;
+
+/**
+ * Converts packed YUV 4:2:0 planes to ARGB pixels for display, using
+ * full range BT.601 as camera YUV output does. Each chroma value's
+ * share of each color is in a table, as is clamping, so the per-pixel
+ * loop is lookups and adds only.
+ *
+ * Pure Java, so it can be benchmarked on a plain JVM.
+ */
+public final class YuvConverter {
+
+    //Chroma contributions reach about +/-227, clamping covers more
+    private static final int CLAMP_OFFSET = 256;
+    private static final int[] CLAMP = new int[256 + 2 * CLAMP_OFFSET];
+
+    private static final int[] RED_FROM_V = new int[256];
+    private static final int[] GREEN_FROM_U = new int[256];
+    private static final int[] GREEN_FROM_V = new int[256];
+    private static final int[] BLUE_FROM_U = new int[256];
+
+    static {
+        for (int i = 0; i < CLAMP.length; i++) {
+            CLAMP[i] = Math.max(0, Math.min(255, i - CLAMP_OFFSET));
+        }
+        for (int i = 0; i < 256; i++) {
+            int chroma = i - 128;
+            RED_FROM_V[i] = Math.round(1.402f * chroma);
+            GREEN_FROM_U[i] = Math.round(-0.344f * chroma);
+            GREEN_FROM_V[i] = Math.round(-0.714f * chroma);
+            BLUE_FROM_U[i] = Math.round(1.772f * chroma);
+        }
+    }
+
+    private YuvConverter() { }
+
+    /**
+     * Write width * height opaque ARGB pixels, row by row, to out.
+     */
+    public static void toArgb(byte[] y, byte[] u, byte[] v,
+                              int width, int height, int[] out) {
+        int chromaWidth = width / 2;
+        for (int row = 0; row < height; row++) {
+            int lumaRow = row * width;
+            int chromaRow = (row / 2) * chromaWidth;
+            for (int col = 0; col < width; col++) {
+                int luma = (y[lumaRow + col] & 0xFF) + CLAMP_OFFSET;
+                int chroma = chromaRow + col / 2;
+                int cu = u[chroma] & 0xFF;
+                int cv = v[chroma] & 0xFF;
+
+                int red = CLAMP[luma + RED_FROM_V[cv]];
+                int green = CLAMP[luma + GREEN_FROM_U[cu] + GREEN_FROM_V[cv]];
+                int blue = CLAMP[luma + BLUE_FROM_U[cu]];
+                out[lumaRow + col] =
+                        0xFF000000 | (red << 16) | (green << 8) | blue;
+            }
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.example.android.enhancedcamera.effects;
+
+import android.hardware.camera2.CameraMetadata;
+
+/**
+ * Software version of the camera color effects, for devices whose
+ * hardware doesn't offer them. Every effect is a lookup table per
+ * plane of a packed YUV 4:2:0 frame, built once; applying one is a
+ * single table lookup per sample, with no allocation.
+ *
+ * Pure Java, so it can be benchmarked on a plain JVM.
+ */
+public final class YuvEffect {
+
+    //Chroma value with no color
+    private static final int NEUTRAL = 128;
+
+    private final int mMode;
+    private final byte[] mLumaTable = new byte[256];
+    private final byte[] mUTable = new byte[256];
+    private final byte[] mVTable = new byte[256];
+
+    private YuvEffect(int mode) {
+        mMode = mode;
+        for (int value = 0; value < 256; value++) {
+            mLumaTable[value] = (byte) mapLuma(mode, value);
+            mUTable[value] = (byte) mapU(mode, value);
+            mVTable[value] = (byte) mapV(mode, value);
+        }
+    }
+
+    /**
+     * Software version of a CONTROL_EFFECT_MODE value, or null if
+     * there is none.
+     */
+    public static YuvEffect forMode(int mode) {
+        return isSupported(mode) ? new YuvEffect(mode) : null;
+    }
+
+    public static boolean isSupported(int mode) {
+        switch (mode) {
+            case CameraMetadata.CONTROL_EFFECT_MODE_MONO:
+            case CameraMetadata.CONTROL_EFFECT_MODE_NEGATIVE:
+            case CameraMetadata.CONTROL_EFFECT_MODE_SOLARIZE:
+            case CameraMetadata.CONTROL_EFFECT_MODE_SEPIA:
+            case CameraMetadata.CONTROL_EFFECT_MODE_POSTERIZE:
+            case CameraMetadata.CONTROL_EFFECT_MODE_WHITEBOARD:
+            case CameraMetadata.CONTROL_EFFECT_MODE_BLACKBOARD:
+            case CameraMetadata.CONTROL_EFFECT_MODE_AQUA:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    public int getMode() {
+        return mMode;
+    }
+
+    /**
+     * Apply the effect from one set of planes to another, which may be
+     * the same arrays. The U and V planes are quarter size.
+     */
+    public void apply(byte[] srcY, byte[] srcU, byte[] srcV,
+                      byte[] dstY, byte[] dstU, byte[] dstV,
+                      int width, int height) {
+        applyTable(mLumaTable, srcY, dstY, width * height);
+        int chromaLength = (width / 2) * (height / 2);
+        applyTable(mUTable, srcU, dstU, chromaLength);
+        applyTable(mVTable, srcV, dstV, chromaLength);
+    }
+
+    private static void applyTable(byte[] table, byte[] src, byte[] dst,
+                                   int length) {
+        for (int i = 0; i < length; i++) {
+            dst[i] = table[src[i] & 0xFF];
+        }
+    }
+
+    private static int mapLuma(int mode, int y) {
+        switch (mode) {
+            case CameraMetadata.CONTROL_EFFECT_MODE_NEGATIVE:
+                return 255 - y;
+            case CameraMetadata.CONTROL_EFFECT_MODE_SOLARIZE:
+                //Invert the highlights only
+                return (y < 128) ? y : 255 - y;
+            case CameraMetadata.CONTROL_EFFECT_MODE_POSTERIZE:
+                //Four flat bands
+                return (y / 64) * 85;
+            case CameraMetadata.CONTROL_EFFECT_MODE_WHITEBOARD:
+                //Paper goes white, strokes stay dark
+                return clamp((y - 64) * 255 / 96);
+            case CameraMetadata.CONTROL_EFFECT_MODE_BLACKBOARD:
+                //The reverse, light strokes on a dark board
+                return clamp((160 - y) * 255 / 96);
+            default:
+                return y;
+        }
+    }
+
+    private static int mapU(int mode, int u) {
+        switch (mode) {
+            case CameraMetadata.CONTROL_EFFECT_MODE_MONO:
+            case CameraMetadata.CONTROL_EFFECT_MODE_WHITEBOARD:
+            case CameraMetadata.CONTROL_EFFECT_MODE_BLACKBOARD:
+                return NEUTRAL;
+            case CameraMetadata.CONTROL_EFFECT_MODE_NEGATIVE:
+                return 255 - u;
+            case CameraMetadata.CONTROL_EFFECT_MODE_SEPIA:
+                //Warm brown tone, less blue
+                return 108;
+            case CameraMetadata.CONTROL_EFFECT_MODE_POSTERIZE:
+                //Five levels, one of them neutral
+                return quantize(u);
+            case CameraMetadata.CONTROL_EFFECT_MODE_AQUA:
+                //Muted color, shifted toward blue
+                return clamp(NEUTRAL + (u - NEUTRAL) / 2 + 24);
+            default:
+                return u;
+        }
+    }
+
+    private static int mapV(int mode, int v) {
+        switch (mode) {
+            case CameraMetadata.CONTROL_EFFECT_MODE_MONO:
+            case CameraMetadata.CONTROL_EFFECT_MODE_WHITEBOARD:
+            case CameraMetadata.CONTROL_EFFECT_MODE_BLACKBOARD:
+                return NEUTRAL;
+            case CameraMetadata.CONTROL_EFFECT_MODE_NEGATIVE:
+                return 255 - v;
+            case CameraMetadata.CONTROL_EFFECT_MODE_SEPIA:
+                //More red
+                return 148;
+            case CameraMetadata.CONTROL_EFFECT_MODE_POSTERIZE:
+                return quantize(v);
+            case CameraMetadata.CONTROL_EFFECT_MODE_AQUA:
+                //And away from red, which leaves cyan
+                return clamp(NEUTRAL + (v - NEUTRAL) / 2 - 24);
+            default:
+                return v;
+        }
+    }
+
+    //Round to the nearest multiple of 64
+    private static int quantize(int value) {
+        return clamp((value + 32) / 64 * 64);
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+}
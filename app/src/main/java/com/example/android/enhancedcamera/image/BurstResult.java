@@ -0,0 +1,53 @@
+package com.example.android.enhancedcamera.image;
+
+/**
+ * Outcome of a burst capture: how many of the requested frames the
+ * camera delivered, and the frame rate it sustained while doing so.
+ */
+public final class BurstResult {
+
+    private final int mRequestedFrames;
+    private final int mCapturedFrames;
+    private final long mFirstTimestampNs;
+    private final long mLastTimestampNs;
+
+    public BurstResult(int requestedFrames, int capturedFrames,
+                       long firstTimestampNs, long lastTimestampNs) {
+        mRequestedFrames = requestedFrames;
+        mCapturedFrames = capturedFrames;
+        mFirstTimestampNs = firstTimestampNs;
+        mLastTimestampNs = lastTimestampNs;
+    }
+
+    public int getRequestedFrames() {
+        return mRequestedFrames;
+    }
+
+    public int getCapturedFrames() {
+        return mCapturedFrames;
+    }
+
+    //Frames that failed or were never reported by the camera
+    public int getDroppedFrames() {
+        return mRequestedFrames - mCapturedFrames;
+    }
+
+    /**
+     * Sensor frame rate across the burst, from the exposure start
+     * timestamps of the first and last captured frames.
+     */
+    public double getFramesPerSecond() {
+        long elapsed = mLastTimestampNs - mFirstTimestampNs;
+        if (mCapturedFrames < 2 || elapsed <= 0) {
+            return 0;
+        }
+        return (mCapturedFrames - 1) * 1e9 / elapsed;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d/%d frames at %.1f fps, %d dropped",
+                mCapturedFrames, mRequestedFrames,
+                getFramesPerSecond(), getDroppedFrames());
+    }
+}
@@ -0,0 +1,364 @@
+package com.example.android.enhancedcamera.image;
+
+import android.hardware.camera2.CameraMetadata;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Focus/exposure/capture sequence for a still image, as an explicit
+ * transition table. Every input (a shutter press, a capture result, the
+ * end of the still) is an event; each (state, event) pair names the
+ * next state and the action the caller must take.
+ *
+ * The machine only decides, it never touches the camera, so it can be
+ * driven on a plain JVM with synthetic result values. Transitions are a
+ * single compare-and-set, so presses may arrive on any thread while
+ * results arrive on the camera thread.
+ *
+ * Shutter presses are never lost. A press while focus or exposure is
+ * still converging joins the capture in progress, as the still has not
+ * been taken yet. A press after the still was requested queues one more
+ * capture, and any further presses join that one.
+ *
+ * While idle, preview results are tracked as well. Once continuous
+ * focus and auto-exposure have both reported converged for a few
+ * frames in a row, a press skips the focus trigger and precapture and
+ * goes straight to the still.
+ */
+public class CaptureStateMachine {
+
+    /**
+     * What the caller must do after an event.
+     */
+    public enum Action {
+        /** Nothing, the event does not apply to this state */
+        NONE,
+        /** Trigger an auto-focus scan */
+        LOCK_FOCUS,
+        /** Focus locked and exposure is ready, wait for one more result */
+        FOCUS_LOCKED,
+        /** Focus locked, trigger the exposure precapture sequence */
+        RUN_PRECAPTURE,
+        /** Exposure is ready, request the still */
+        CAPTURE_STILL,
+        /** Preview was already converged, request the still right away */
+        CAPTURE_STILL_FAST,
+        /** Still done, return to the regular preview */
+        UNLOCK_FOCUS,
+        /** Still done, return to preview and start the queued capture */
+        RELOCK_FOCUS,
+        /** Press joined the capture in progress */
+        COALESCE,
+        /** Press will start a capture once the current one is done */
+        QUEUE
+    }
+
+    /** Showing camera preview */
+    public static final int STATE_IDLE = 0;
+    /** Waiting for the focus to be locked */
+    public static final int STATE_WAITING_LOCK = 1;
+    /** Waiting for the exposure to be in precapture state */
+    public static final int STATE_WAITING_PRECAPTURE = 2;
+    /** Waiting for a precapture to complete */
+    public static final int STATE_WAITING_NON_PRECAPTURE = 3;
+    /** Still was requested */
+    public static final int STATE_PICTURE_TAKEN = 4;
+    /** Still was requested, and another press is waiting on it */
+    public static final int STATE_PICTURE_TAKEN_QUEUED = 5;
+    private static final int STATE_COUNT = 6;
+
+    //Exposure state classes, CONTROL_AE_STATE can be null on some devices
+    private static final int AE_NONE = 0;
+    private static final int AE_CONVERGED = 1;
+    private static final int AE_PRECAPTURE = 2;
+    private static final int AE_FLASH_REQUIRED = 3;
+    private static final int AE_OTHER = 4;
+    private static final int AE_CLASSES = 5;
+
+    //Converged preview frames in a row before a press takes the fast path
+    private static final int DEFAULT_STABLE_FRAMES = 3;
+
+    //Events; results are one event per focus lock and exposure class
+    private static final int EVENT_SHUTTER = 0;
+    private static final int EVENT_SHUTTER_CONVERGED = 1;
+    private static final int EVENT_STILL_DONE = 2;
+    private static final int EVENT_RESULT = 3;
+    private static final int EVENT_LOCKED_RESULT = EVENT_RESULT + AE_CLASSES;
+    private static final int EVENT_COUNT = EVENT_LOCKED_RESULT + AE_CLASSES;
+
+    private static final Action[] ACTIONS = Action.values();
+    //Next state in the low byte, action ordinal above it
+    private static final int[][] TRANSITIONS =
+            new int[STATE_COUNT][EVENT_COUNT];
+
+    static {
+        //Anything not listed leaves the state alone
+        for (int state = 0; state < STATE_COUNT; state++) {
+            for (int event = 0; event < EVENT_COUNT; event++) {
+                on(state, event, state, Action.NONE);
+            }
+        }
+
+        on(STATE_IDLE, EVENT_SHUTTER, STATE_WAITING_LOCK, Action.LOCK_FOCUS);
+
+        //Focus is locked, precapture unless exposure is already there
+        on(STATE_WAITING_LOCK, EVENT_LOCKED_RESULT + AE_NONE,
+                STATE_WAITING_NON_PRECAPTURE, Action.FOCUS_LOCKED);
+        on(STATE_WAITING_LOCK, EVENT_LOCKED_RESULT + AE_CONVERGED,
+                STATE_WAITING_NON_PRECAPTURE, Action.FOCUS_LOCKED);
+        on(STATE_WAITING_LOCK, EVENT_LOCKED_RESULT + AE_PRECAPTURE,
+                STATE_WAITING_PRECAPTURE, Action.RUN_PRECAPTURE);
+        on(STATE_WAITING_LOCK, EVENT_LOCKED_RESULT + AE_FLASH_REQUIRED,
+                STATE_WAITING_PRECAPTURE, Action.RUN_PRECAPTURE);
+        on(STATE_WAITING_LOCK, EVENT_LOCKED_RESULT + AE_OTHER,
+                STATE_WAITING_PRECAPTURE, Action.RUN_PRECAPTURE);
+
+        //Focus no longer matters once it has been locked
+        for (int lock : new int[] {EVENT_RESULT, EVENT_LOCKED_RESULT}) {
+            on(STATE_WAITING_PRECAPTURE, lock + AE_NONE,
+                    STATE_WAITING_NON_PRECAPTURE, Action.NONE);
+            on(STATE_WAITING_PRECAPTURE, lock + AE_PRECAPTURE,
+                    STATE_WAITING_NON_PRECAPTURE, Action.NONE);
+            on(STATE_WAITING_PRECAPTURE, lock + AE_FLASH_REQUIRED,
+                    STATE_WAITING_NON_PRECAPTURE, Action.NONE);
+
+            for (int ae = 0; ae < AE_CLASSES; ae++) {
+                if (ae != AE_PRECAPTURE) {
+                    on(STATE_WAITING_NON_PRECAPTURE, lock + ae,
+                            STATE_PICTURE_TAKEN, Action.CAPTURE_STILL);
+                }
+            }
+        }
+
+        //Presses before the still share it, later ones queue another
+        on(STATE_WAITING_LOCK, EVENT_SHUTTER,
+                STATE_WAITING_LOCK, Action.COALESCE);
+        on(STATE_WAITING_PRECAPTURE, EVENT_SHUTTER,
+                STATE_WAITING_PRECAPTURE, Action.COALESCE);
+        on(STATE_WAITING_NON_PRECAPTURE, EVENT_SHUTTER,
+                STATE_WAITING_NON_PRECAPTURE, Action.COALESCE);
+        on(STATE_PICTURE_TAKEN, EVENT_SHUTTER,
+                STATE_PICTURE_TAKEN_QUEUED, Action.QUEUE);
+        on(STATE_PICTURE_TAKEN_QUEUED, EVENT_SHUTTER,
+                STATE_PICTURE_TAKEN_QUEUED, Action.COALESCE);
+
+        on(STATE_PICTURE_TAKEN, EVENT_STILL_DONE,
+                STATE_IDLE, Action.UNLOCK_FOCUS);
+        on(STATE_PICTURE_TAKEN_QUEUED, EVENT_STILL_DONE,
+                STATE_WAITING_LOCK, Action.RELOCK_FOCUS);
+
+        //Converged presses only differ when they start a capture
+        for (int state = 0; state < STATE_COUNT; state++) {
+            TRANSITIONS[state][EVENT_SHUTTER_CONVERGED] =
+                    TRANSITIONS[state][EVENT_SHUTTER];
+        }
+        on(STATE_IDLE, EVENT_SHUTTER_CONVERGED,
+                STATE_PICTURE_TAKEN, Action.CAPTURE_STILL_FAST);
+    }
+
+    private static void on(int state, int event, int next, Action action) {
+        TRANSITIONS[state][event] = next | (action.ordinal() << 8);
+    }
+
+    private final AtomicInteger mState = new AtomicInteger(STATE_IDLE);
+
+    private final AtomicLong mPresses = new AtomicLong();
+    private final AtomicLong mCoalesced = new AtomicLong();
+    private final AtomicLong mCaptures = new AtomicLong();
+    private final AtomicLong mFastCaptures = new AtomicLong();
+
+    //Converged preview frames in a row, written by the camera thread
+    private volatile int mStableFrames;
+    private volatile int mRequiredStableFrames = DEFAULT_STABLE_FRAMES;
+
+    /**
+     * The shutter was pressed; call on any thread.
+     *
+     * @return {@link Action#LOCK_FOCUS} or
+     *         {@link Action#CAPTURE_STILL_FAST} to start a capture,
+     *         {@link Action#COALESCE} or {@link Action#QUEUE}
+     */
+    public Action onShutter() {
+        mPresses.incrementAndGet();
+        int required = mRequiredStableFrames;
+        boolean converged = required > 0 && mStableFrames >= required;
+        Action action = fire(converged
+                ? EVENT_SHUTTER_CONVERGED : EVENT_SHUTTER);
+        if (action == Action.COALESCE) {
+            mCoalesced.incrementAndGet();
+            return action;
+        }
+
+        //The preview has to settle again after this capture
+        if (action == Action.LOCK_FOCUS) {
+            mStableFrames = 0;
+        } else if (action == Action.CAPTURE_STILL_FAST) {
+            mStableFrames = 0;
+            mCaptures.incrementAndGet();
+            mFastCaptures.incrementAndGet();
+        }
+        return action;
+    }
+
+    /**
+     * A complete result of the repeating preview request arrived; call
+     * on the camera thread. Only counts while idle, as results during a
+     * capture reflect its triggers.
+     */
+    public void onPreviewResult(Integer afMode, Integer afState,
+                                Integer aeState) {
+        if (mState.get() != STATE_IDLE
+                || !isConverged(afMode, afState, aeState)) {
+            mStableFrames = 0;
+        } else if (mStableFrames < Integer.MAX_VALUE) {
+            mStableFrames++;
+        }
+    }
+
+    /**
+     * Converged preview frames in a row needed for the fast path, or 0
+     * to always run the full focus/exposure sequence.
+     */
+    public void setRequiredStableFrames(int frames) {
+        mRequiredStableFrames = frames;
+    }
+
+    /*
+     * Focus and exposure are settled without a trigger. A missing
+     * exposure state is treated as unknown here, unlike in the full
+     * sequence, so those devices never take the fast path.
+     */
+    private static boolean isConverged(Integer afMode, Integer afState,
+                                       Integer aeState) {
+        if (aeState == null
+                || (aeState != CameraMetadata.CONTROL_AE_STATE_CONVERGED
+                && aeState != CameraMetadata.CONTROL_AE_STATE_LOCKED)) {
+            return false;
+        }
+        if (afMode != null
+                && afMode == CameraMetadata.CONTROL_AF_MODE_OFF) {
+            return true;
+        }
+        return afState != null
+                && (afState == CameraMetadata.CONTROL_AF_STATE_PASSIVE_FOCUSED
+                || afState == CameraMetadata.CONTROL_AF_STATE_FOCUSED_LOCKED);
+    }
+
+    /**
+     * A capture result arrived. Values are as reported in the result,
+     * null where the result does not have them.
+     */
+    public Action onResult(Integer afMode, Integer afState, Integer aeState) {
+        Action action = fire(getResultEvent(afMode, afState, aeState));
+        if (action == Action.CAPTURE_STILL) {
+            mCaptures.incrementAndGet();
+        }
+        return action;
+    }
+
+    /**
+     * The still (or burst) finished, whether or not it succeeded.
+     */
+    public Action onStillCompleted() {
+        return fire(EVENT_STILL_DONE);
+    }
+
+    /**
+     * Drop any capture in progress, such as when the session closes.
+     * Queued presses are dropped with it.
+     */
+    public void reset() {
+        mState.set(STATE_IDLE);
+        mStableFrames = 0;
+    }
+
+    //Apply one transition atomically, retrying if another thread won
+    private Action fire(int event) {
+        while (true) {
+            int state = mState.get();
+            int transition = TRANSITIONS[state][event];
+            int next = transition & 0xff;
+            if (next == state || mState.compareAndSet(state, next)) {
+                return ACTIONS[transition >>> 8];
+            }
+        }
+    }
+
+    private static int getResultEvent(Integer afMode, Integer afState,
+                                      Integer aeState) {
+        //Focus is locked, or auto-focus is not enabled
+        boolean locked = false;
+        if (afMode != null
+                && afMode == CameraMetadata.CONTROL_AF_MODE_OFF) {
+            locked = true;
+        } else if (afState != null) {
+            locked = afState == CameraMetadata.CONTROL_AF_STATE_FOCUSED_LOCKED
+                    || afState
+                    == CameraMetadata.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED;
+        }
+
+        int ae;
+        if (aeState == null) {
+            ae = AE_NONE;
+        } else if (aeState == CameraMetadata.CONTROL_AE_STATE_CONVERGED) {
+            ae = AE_CONVERGED;
+        } else if (aeState == CameraMetadata.CONTROL_AE_STATE_PRECAPTURE) {
+            ae = AE_PRECAPTURE;
+        } else if (aeState
+                == CameraMetadata.CONTROL_AE_STATE_FLASH_REQUIRED) {
+            ae = AE_FLASH_REQUIRED;
+        } else {
+            ae = AE_OTHER;
+        }
+
+        return (locked ? EVENT_LOCKED_RESULT : EVENT_RESULT) + ae;
+    }
+
+    public int getState() {
+        return mState.get();
+    }
+
+    /**
+     * Whether results can change the state; while idle or waiting on
+     * the still they are ignored, so callers can skip reading them.
+     */
+    public boolean isWaitingForResult() {
+        int state = mState.get();
+        return state != STATE_IDLE && state != STATE_PICTURE_TAKEN
+                && state != STATE_PICTURE_TAKEN_QUEUED;
+    }
+
+    public long getPresses() {
+        return mPresses.get();
+    }
+
+    /**
+     * Presses that shared a still with an earlier press.
+     */
+    public long getCoalescedPresses() {
+        return mCoalesced.get();
+    }
+
+    /**
+     * Stills requested, including any dropped by {@link #reset()}.
+     */
+    public long getCaptures() {
+        return mCaptures.get();
+    }
+
+    /**
+     * Stills that skipped the focus/exposure sequence.
+     */
+    public long getFastCaptures() {
+        return mFastCaptures.get();
+    }
+
+    @Override
+    public String toString() {
+        return "state=" + getState() + " presses=" + getPresses()
+                + " coalesced=" + getCoalescedPresses()
+                + " captures=" + getCaptures()
+                + " fast=" + getFastCaptures();
+    }
+}
@@ -0,0 +1,266 @@
+package com.example.android.enhancedcamera.image;
+
+import com.example.android.enhancedcamera.common.LatencyHistogram;
+
+import java.io.PrintWriter;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shutter-to-disk latency tracing. Each capture gets an ID when the
+ * shutter is pressed, and every component on the path marks the stages
+ * it completes. The time spent reaching each stage (since the previous
+ * one) is aggregated into a histogram per stage, along with the total
+ * time from shutter press to media scan.
+ *
+ * Each capture also records the path it took, so the shutter lag (press
+ * to still request) and the total of each path can be compared.
+ *
+ * Traces live in a small fixed table, so tracing never allocates on
+ * the capture path apart from the file name lookup; a capture that is
+ * still unfinished when its slot is reused is simply dropped.
+ */
+public class CaptureTracer {
+
+    public enum Stage {
+        SHUTTER_PRESSED,
+        AF_LOCKED,
+        PRECAPTURE_DONE,
+        STILL_REQUEST_SUBMITTED,
+        CAPTURE_COMPLETED,
+        IMAGE_AVAILABLE,
+        BYTES_WRITTEN,
+        MEDIA_SCANNED
+    }
+
+    public enum Path {
+        /** Focus trigger and, when needed, an exposure precapture */
+        FULL,
+        /** Preview was converged, the still was requested directly */
+        FAST,
+        /** Saved from the zero-shutter-lag ring */
+        ZSL
+    }
+
+    //ID used for captures that are not traced
+    public static final long NO_CAPTURE = -1;
+
+    private static final int MAX_IN_FLIGHT = 16;
+    private static final Stage[] STAGES = Stage.values();
+    private static final Path[] PATHS = Path.values();
+
+    private static final CaptureTracer sInstance = new CaptureTracer();
+
+    private static class Trace {
+        long id = NO_CAPTURE;
+        long startNs;
+        long lastNs;
+        Path path;
+    }
+
+    private final Trace[] mTraces = new Trace[MAX_IN_FLIGHT];
+    private final LatencyHistogram[] mStageLatency =
+            new LatencyHistogram[STAGES.length];
+    private final LatencyHistogram mTotalLatency = new LatencyHistogram();
+    private final LatencyHistogram[] mShutterLag =
+            new LatencyHistogram[PATHS.length];
+    private final LatencyHistogram[] mPathLatency =
+            new LatencyHistogram[PATHS.length];
+    private final AtomicLong mNextId = new AtomicLong();
+    private final ConcurrentMap<String, Long> mFileIds =
+            new ConcurrentHashMap<String, Long>();
+
+    private volatile boolean mEnabled = true;
+
+    public static CaptureTracer getInstance() {
+        return sInstance;
+    }
+
+    public CaptureTracer() {
+        for (int i = 0; i < MAX_IN_FLIGHT; i++) {
+            mTraces[i] = new Trace();
+        }
+        for (int i = 0; i < STAGES.length; i++) {
+            mStageLatency[i] = new LatencyHistogram();
+        }
+        for (int i = 0; i < PATHS.length; i++) {
+            mShutterLag[i] = new LatencyHistogram();
+            mPathLatency[i] = new LatencyHistogram();
+        }
+    }
+
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    /**
+     * Start tracing a capture at the shutter press.
+     */
+    public long begin() {
+        if (!mEnabled) {
+            return NO_CAPTURE;
+        }
+
+        long id = mNextId.getAndIncrement();
+        Trace trace = mTraces[(int) (id % MAX_IN_FLIGHT)];
+        synchronized (trace) {
+            trace.id = id;
+            trace.startNs = System.nanoTime();
+            trace.lastNs = trace.startNs;
+            trace.path = Path.FULL;
+        }
+        return id;
+    }
+
+    /**
+     * Record the path a capture took; captures are FULL until set.
+     */
+    public void setPath(long captureId, Path path) {
+        if (captureId == NO_CAPTURE) {
+            return;
+        }
+
+        Trace trace = mTraces[(int) (captureId % MAX_IN_FLIGHT)];
+        synchronized (trace) {
+            if (trace.id == captureId) {
+                trace.path = path;
+            }
+        }
+    }
+
+    /**
+     * Record that a capture has reached the given stage.
+     */
+    public void mark(long captureId, Stage stage) {
+        if (captureId == NO_CAPTURE) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        Trace trace = mTraces[(int) (captureId % MAX_IN_FLIGHT)];
+        synchronized (trace) {
+            //Trace was finished, or its slot taken by a newer capture
+            if (trace.id != captureId) {
+                return;
+            }
+
+            mStageLatency[stage.ordinal()].record(now - trace.lastNs);
+            trace.lastNs = now;
+            int path = trace.path.ordinal();
+            if (stage == Stage.STILL_REQUEST_SUBMITTED) {
+                mShutterLag[path].record(now - trace.startNs);
+            } else if (stage == Stage.MEDIA_SCANNED) {
+                mTotalLatency.record(now - trace.startNs);
+                mPathLatency[path].record(now - trace.startNs);
+                trace.id = NO_CAPTURE;
+            }
+        }
+    }
+
+    /**
+     * Associate the output file with a capture, so later stages can
+     * be marked by path.
+     */
+    public void attachFile(long captureId, String path) {
+        if (captureId == NO_CAPTURE) {
+            return;
+        }
+        mFileIds.put(path, captureId);
+
+        //Files never scanned would stay forever, drop any whose trace
+        // slot has been reused since
+        if (mFileIds.size() > MAX_IN_FLIGHT) {
+            long oldest = captureId - MAX_IN_FLIGHT;
+            Iterator<Long> ids = mFileIds.values().iterator();
+            while (ids.hasNext()) {
+                if (ids.next() <= oldest) {
+                    ids.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop tracking a file that will not reach the later stages, such
+     * as one that failed to write.
+     */
+    public void detachFile(String path) {
+        mFileIds.remove(path);
+    }
+
+    public void markFile(String path, Stage stage) {
+        Long captureId = (stage == Stage.MEDIA_SCANNED)
+                ? mFileIds.remove(path)
+                : mFileIds.get(path);
+        if (captureId != null) {
+            mark(captureId, stage);
+        }
+    }
+
+    public LatencyHistogram getStageLatency(Stage stage) {
+        return mStageLatency[stage.ordinal()];
+    }
+
+    public LatencyHistogram getTotalLatency() {
+        return mTotalLatency;
+    }
+
+    /**
+     * Time from shutter press to the still request, for one path.
+     */
+    public LatencyHistogram getShutterLag(Path path) {
+        return mShutterLag[path.ordinal()];
+    }
+
+    public LatencyHistogram getTotalLatency(Path path) {
+        return mPathLatency[path.ordinal()];
+    }
+
+    public void reset() {
+        for (LatencyHistogram histogram : mStageLatency) {
+            histogram.reset();
+        }
+        mTotalLatency.reset();
+        for (int i = 0; i < PATHS.length; i++) {
+            mShutterLag[i].reset();
+            mPathLatency[i].reset();
+        }
+    }
+
+    /**
+     * Print all histograms, e.g. from Activity.dump() so they are
+     * available through "adb shell dumpsys activity".
+     */
+    public void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.println("Capture latency (time to reach each stage):");
+        //Shutter press starts the trace, it has no latency of its own
+        for (int i = 1; i < STAGES.length; i++) {
+            writer.print(prefix);
+            writer.print("  ");
+            writer.print(STAGES[i]);
+            writer.print(": ");
+            writer.println(mStageLatency[i]);
+        }
+        writer.print(prefix);
+        writer.print("  TOTAL: ");
+        writer.println(mTotalLatency);
+
+        writer.print(prefix);
+        writer.println("Capture latency by path:");
+        for (int i = 0; i < PATHS.length; i++) {
+            writer.print(prefix);
+            writer.print("  ");
+            writer.print(PATHS[i]);
+            writer.print(" shutter lag: ");
+            writer.println(mShutterLag[i]);
+            writer.print(prefix);
+            writer.print("  ");
+            writer.print(PATHS[i]);
+            writer.print(" total: ");
+            writer.println(mPathLatency[i]);
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package com.example.android.enhancedcamera.image;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes buffers straight to a FileChannel, with no intermediate heap
+ * copy. Direct buffers (such as an Image plane) are handed to the
+ * kernel as-is, and multiple buffers go out in a single gathering write.
+ *
+ * The durability mode decides when the data is forced to storage:
+ * never, as each file is closed, or once for every batch of files. In
+ * batched mode a file is only complete once its batch has been forced,
+ * and the {@link BatchListener} is told then, not when write() returns.
+ */
+public class ChannelFileWriter {
+
+    public enum Durability {
+        /** Leave flushing to the kernel */
+        NONE,
+        /** Force each file to storage before it is closed */
+        SYNC_ON_CLOSE,
+        /** Keep files open and force them together, once per batch */
+        BATCHED
+    }
+
+    /**
+     * Completion of files held for a batch sync, on the thread that
+     * forced the batch.
+     */
+    public interface BatchListener {
+        void onFileSynced(File file);
+        void onFileSyncFailed(File file, IOException e);
+    }
+
+    //A file written but not yet forced
+    private static class Unsynced {
+        final FileChannel channel;
+        final File file;
+
+        Unsynced(FileChannel channel, File file) {
+            this.channel = channel;
+            this.file = file;
+        }
+    }
+
+    private final Durability mDurability;
+    private final int mBatchSize;
+    //Files written but not yet forced, only used in BATCHED mode
+    private final List<Unsynced> mUnsynced;
+    private volatile BatchListener mBatchListener;
+
+    public ChannelFileWriter(Durability durability) {
+        this(durability, 1);
+    }
+
+    public ChannelFileWriter(Durability durability, int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Invalid batch size");
+        }
+        mDurability = durability;
+        mBatchSize = batchSize;
+        mUnsynced = new ArrayList<Unsynced>(batchSize);
+    }
+
+    public Durability getDurability() {
+        return mDurability;
+    }
+
+    public void setBatchListener(BatchListener listener) {
+        mBatchListener = listener;
+    }
+
+    /**
+     * Write the remaining bytes of all buffers to the destination,
+     * replacing any existing content. Buffer positions are advanced.
+     * Returns true if the file is complete, or false if it is held for
+     * a batch sync and the {@link BatchListener} will be told.
+     */
+    public boolean write(File dest, ByteBuffer... data) throws IOException {
+        FileChannel channel = new FileOutputStream(dest).getChannel();
+        boolean handedOff = false;
+        try {
+            writeFully(channel, data);
+
+            switch (mDurability) {
+                case SYNC_ON_CLOSE:
+                    channel.force(false);
+                    break;
+                case BATCHED:
+                    addToBatch(channel, dest);
+                    handedOff = true;
+                    break;
+                case NONE:
+                default:
+                    break;
+            }
+        } finally {
+            if (!handedOff) {
+                channel.close();
+            }
+        }
+        return !handedOff;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer[] data)
+            throws IOException {
+        long remaining = 0;
+        for (ByteBuffer buffer : data) {
+            remaining += buffer.remaining();
+        }
+
+        //A single call may write only part of the data
+        while (remaining > 0) {
+            remaining -= (data.length == 1)
+                    ? channel.write(data[0])
+                    : channel.write(data);
+        }
+    }
+
+    private void addToBatch(FileChannel channel, File dest)
+            throws IOException {
+        boolean full;
+        synchronized (this) {
+            mUnsynced.add(new Unsynced(channel, dest));
+            full = mUnsynced.size() >= mBatchSize;
+        }
+        if (full) {
+            flush();
+        }
+    }
+
+    /**
+     * Force and close any files still waiting on a batch sync, then
+     * tell the {@link BatchListener} how each one went. Throws the
+     * first failure, after every file has been dealt with.
+     */
+    public void flush() throws IOException {
+        List<Unsynced> batch;
+        IOException[] errors;
+        synchronized (this) {
+            batch = new ArrayList<Unsynced>(mUnsynced);
+            mUnsynced.clear();
+            errors = new IOException[batch.size()];
+            for (int i = 0; i < batch.size(); i++) {
+                errors[i] = forceAndClose(batch.get(i).channel);
+            }
+        }
+
+        //Reported outside the lock, other writers can carry on
+        BatchListener listener = mBatchListener;
+        IOException error = null;
+        for (int i = 0; i < batch.size(); i++) {
+            if (errors[i] != null && error == null) {
+                error = errors[i];
+            }
+            if (listener == null) {
+                continue;
+            }
+            if (errors[i] == null) {
+                listener.onFileSynced(batch.get(i).file);
+            } else {
+                listener.onFileSyncFailed(batch.get(i).file, errors[i]);
+            }
+        }
+
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    //Returns the first failure, or null
+    private static IOException forceAndClose(FileChannel channel) {
+        IOException error = null;
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            error = e;
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                if (error == null) error = e;
+            }
+        }
+        return error;
+    }
+}
@@ -6,7 +6,6 @@ import android.graphics.SurfaceTexture;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraDevice;
-import android.hardware.camera2.params.StreamConfigurationMap;
 import android.os.Bundle;
 import android.util.Log;
 import android.util.Size;
@@ -15,12 +14,29 @@ import android.view.View;
 import android.view.WindowManager;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
+import android.widget.CheckBox;
 import android.widget.RadioGroup;
 import android.widget.Spinner;
+import android.widget.Toast;
 
+import com.example.android.enhancedcamera.analysis.FrameAnalysisStage;
+import com.example.android.enhancedcamera.analysis.LumaAnalyzer;
 import com.example.android.enhancedcamera.common.CameraHelper;
+import com.example.android.enhancedcamera.common.CameraStarter;
+import com.example.android.enhancedcamera.common.MediaIndexer;
+import com.example.android.enhancedcamera.common.ResolutionPlanner;
+import com.example.android.enhancedcamera.common.SizeSelector;
+import com.example.android.enhancedcamera.common.StartupTrace;
 import com.example.android.enhancedcamera.R;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 public class ImageCaptureActivity extends Activity implements
         TextureView.SurfaceTextureListener,
         RadioGroup.OnCheckedChangeListener,
@@ -28,6 +44,21 @@ public class ImageCaptureActivity extends Activity implements
     private static final String TAG =
             ImageCaptureActivity.class.getSimpleName();
 
+    //Number of frames captured by the burst button
+    private static final int BURST_SIZE = 10;
+    //Recent frames kept for zero shutter lag capture
+    private static final int ZSL_RING_SIZE = 3;
+    //Preview analysis runs on a small stream, with a tight budget
+    private static final int ANALYSIS_WIDTH = 320;
+    private static final int ANALYSIS_HEIGHT = 240;
+    private static final long ANALYSIS_BUDGET_MS = 10;
+    //Sharpening applied to saved stills, in sixteenths
+    private static final int SHARPEN_STRENGTH = 8;
+    //Preview sizes must sustain 30fps
+    private static final long PREVIEW_FRAME_DURATION_NS = 1000000000L / 30;
+    //dumpsys argument that turns the capture request cache on or off
+    private static final String ARG_REQUEST_CACHE = "request-cache";
+
     private TextureView mPreviewTexture;
     private RadioGroup mCameraSelector;
     private Spinner mResolutionSelector;
@@ -37,16 +68,44 @@ public class ImageCaptureActivity extends Activity implements
     private String mFrontCameraId = null;
     private String mBackCameraId = null;
 
+    private boolean mZslEnabled = false;
+    private boolean mAnalysisEnabled = false;
+    private boolean mSharpenEnabled = false;
+    //Set through dumpsys, kept for each new capture callback
+    private volatile boolean mRequestCacheEnabled = true;
+    //Current analysis stage, kept for dumps
+    private volatile FrameAnalysisStage mAnalysisStage;
+
+    //Kept across instances, so every cold start and switch is counted
+    private static final StartupTrace sStartupTrace =
+            new StartupTrace(ImageCaptureActivity.class.getSimpleName()
+                    + " startup");
+    private static final StartupTrace sSwitchTrace =
+            new StartupTrace(ImageCaptureActivity.class.getSimpleName()
+                    + " switch");
+
     private CameraHelper mCameraHelper;
-    private CameraDevice mCameraDevice;
+    private CameraStarter mCameraStarter;
+    //Run being traced, startup or the latest switch
+    private volatile StartupTrace mCurrentTrace = sStartupTrace;
+    //Resolutions for each camera, worked out on first use
+    private final Map<String, List<Size>> mResolutions =
+            new HashMap<String, List<Size>>();
+    //Resolutions in the adapter now
+    private List<Size> mShownResolutions;
+    //Written from camera thread callbacks, read on the main thread
+    private volatile CameraDevice mCameraDevice;
     private SingleImageCaptureCallback mCameraCallback;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        sStartupTrace.begin();
+        mCurrentTrace = sStartupTrace;
         setContentView(R.layout.activity_image);
 
         mCameraHelper = new CameraHelper(this);
+        mCameraStarter = new CameraStarter(mCameraHelper, sStartupTrace);
 
         mResolutionSelector = (Spinner) findViewById(R.id.selector_resolution);
         mCameraSelector = (RadioGroup) findViewById(R.id.options_camera);
@@ -74,21 +133,68 @@ public class ImageCaptureActivity extends Activity implements
     protected void onResume() {
         super.onResume();
 
+        // Start opening the camera now, while the views are laid out.
         // When the screen is turned off and turned back on,
-        // SurfaceTexture is already available. In that case, we can open
-        // a camera and start preview from here (otherwise, we wait until
-        // the surface is ready in the SurfaceTextureListener).
-        if (mPreviewTexture.isAvailable()) {
-            openCamera();
-        } else {
+        // SurfaceTexture is already available. Otherwise preview starts
+        // once the surface is ready in the SurfaceTextureListener.
+        if (!mPreviewTexture.isAvailable()) {
             mPreviewTexture.setSurfaceTextureListener(this);
         }
+        openCamera();
     }
 
     @Override
     protected void onPause() {
         super.onPause();
         closeCamera();
+        //Don't leave captures waiting on a batch while in the background
+        MediaIndexer.getInstance(this).flush();
+    }
+
+    /*
+     * Report capture latency stage by stage. View with:
+     * adb shell dumpsys activity <package>/.image.ImageCaptureActivity
+     * Add "request-cache on|off" to compare shots with and without
+     * prebuilt capture requests.
+     */
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer,
+                     String[] args) {
+        if (args != null && args.length > 1
+                && ARG_REQUEST_CACHE.equals(args[0])) {
+            setRequestCacheEnabled("on".equals(args[1]));
+            writer.print(prefix);
+            writer.println("Request cache "
+                    + (mRequestCacheEnabled ? "on" : "off"));
+            return;
+        }
+
+        super.dump(prefix, fd, writer, args);
+        sStartupTrace.dump(prefix, writer);
+        sSwitchTrace.dump(prefix, writer);
+        dumpSwitches(prefix, writer);
+        mCameraHelper.dumpPlans(prefix, writer);
+        SingleImageCaptureCallback callback = mCameraCallback;
+        if (callback != null) {
+            callback.getFrameStats().dump(prefix, writer);
+            writer.print(prefix);
+            writer.print("Capture sequence: ");
+            writer.println(callback.getStateMachine());
+            callback.dumpRequestStats(prefix, writer);
+        }
+        CaptureTracer.getInstance().dump(prefix, writer);
+        FrameAnalysisStage stage = mAnalysisStage;
+        if (stage != null) {
+            stage.dump(prefix, writer);
+        }
+    }
+
+    private void setRequestCacheEnabled(boolean enabled) {
+        mRequestCacheEnabled = enabled;
+        SingleImageCaptureCallback callback = mCameraCallback;
+        if (callback != null) {
+            callback.setRequestCacheEnabled(enabled);
+        }
     }
 
     //Handle resolution change requests
@@ -106,9 +212,29 @@ public class ImageCaptureActivity extends Activity implements
             Size imageSize = mResolutionAdapter.getItem(selectedPosition);
             ImageSaver captureTarget = new ImageSaver(this,
                     imageSize,
-                    orientation);
+                    orientation,
+                    mCameraHelper.getCameraExecutor(),
+                    BURST_SIZE);
+            if (mSharpenEnabled) {
+                captureTarget.setPostProcessor(new StillPostProcessor(
+                        Runtime.getRuntime().availableProcessors(),
+                        SHARPEN_STRENGTH));
+            }
             mCameraCallback.setCaptureTarget(captureTarget);
 
+            ZslRingBuffer zslTarget = null;
+            if (mZslEnabled) {
+                zslTarget = createZslTarget(imageSize);
+            }
+            mCameraCallback.setZslTarget(zslTarget);
+
+            FrameAnalysisStage analysisStage = null;
+            if (mAnalysisEnabled) {
+                analysisStage = createAnalysisStage(imageSize);
+            }
+            mCameraCallback.setAnalysisStage(analysisStage);
+            mAnalysisStage = analysisStage;
+
             mCameraCallback.startPreviewSession();
         } catch (CameraAccessException e) {
             Log.w(TAG, "Unable to access camera", e);
@@ -121,9 +247,7 @@ public class ImageCaptureActivity extends Activity implements
     //Handle camera selection events
     @Override
     public void onCheckedChanged(RadioGroup group, int checkedId) {
-        //Restart the camera session with the new selection
-        closeCamera();
-        openCamera();
+        switchCamera();
     }
 
     //Handle user capture requests
@@ -131,6 +255,110 @@ public class ImageCaptureActivity extends Activity implements
          mCameraCallback.takePicture();
     }
 
+    //Handle zero shutter lag toggle, which needs a new session
+    public void onZslClick(View v) {
+        mZslEnabled = ((CheckBox) v).isChecked();
+
+        int position = mResolutionSelector.getSelectedItemPosition();
+        if (mCameraCallback != null
+                && position != AdapterView.INVALID_POSITION) {
+            setCameraResolution(position);
+        }
+    }
+
+    //Handle preview analysis toggle, which needs a new session
+    public void onAnalysisClick(View v) {
+        mAnalysisEnabled = ((CheckBox) v).isChecked();
+
+        int position = mResolutionSelector.getSelectedItemPosition();
+        if (mCameraCallback != null
+                && position != AdapterView.INVALID_POSITION) {
+            setCameraResolution(position);
+        }
+    }
+
+    //Handle still sharpening toggle, which takes a new save target
+    public void onSharpenClick(View v) {
+        mSharpenEnabled = ((CheckBox) v).isChecked();
+
+        int position = mResolutionSelector.getSelectedItemPosition();
+        if (mCameraCallback != null
+                && position != AdapterView.INVALID_POSITION) {
+            setCameraResolution(position);
+        }
+    }
+
+    /*
+     * ZSL ring sized so the preview, ring and still are a guaranteed
+     * combination, or null to use the regular shutter path. No level
+     * guarantees it next to the analysis stream as well.
+     */
+    private ZslRingBuffer createZslTarget(Size imageSize)
+            throws CameraAccessException {
+        int yuvStreams = mAnalysisEnabled ? 2 : 1;
+        Size ringSize = mCameraHelper
+                .getResolutionPlanner(getSelectedCameraId())
+                .pickYuvSize(imageSize, yuvStreams,
+                        PREVIEW_FRAME_DURATION_NS);
+        if (ringSize == null) {
+            Log.w(TAG, "ZSL ring not supported with this configuration");
+            Toast.makeText(this, "Zero shutter lag unavailable",
+                    Toast.LENGTH_SHORT).show();
+            return null;
+        }
+
+        Log.d(TAG, "ZSL ring of " + ringSize + " for " + imageSize);
+        return new ZslRingBuffer(ringSize, ZSL_RING_SIZE,
+                mCameraHelper.getCameraExecutor());
+    }
+
+    private FrameAnalysisStage createAnalysisStage(Size imageSize)
+            throws CameraAccessException {
+        String cameraId = getSelectedCameraId();
+        //Only sizes guaranteed next to the preview and the still
+        Size limit = mCameraHelper.getResolutionPlanner(cameraId)
+                .getYuvLimit(imageSize, 1);
+        List<Size> sizes = new ArrayList<Size>();
+        for (Size size : mCameraHelper.getProfile(cameraId)
+                .getOutputSizes(ImageFormat.YUV_420_888)) {
+            if (size.getWidth() <= limit.getWidth()
+                    && size.getHeight() <= limit.getHeight()) {
+                sizes.add(size);
+            }
+        }
+        Size analysisSize = SizeSelector.chooseOptimalSize(
+                sizes.toArray(new Size[sizes.size()]),
+                ANALYSIS_WIDTH, ANALYSIS_HEIGHT);
+        //Leave a core for the camera and UI threads
+        int workers = Math.max(1,
+                Runtime.getRuntime().availableProcessors() - 1);
+
+        FrameAnalysisStage stage = new FrameAnalysisStage(analysisSize,
+                mCameraHelper.getCameraExecutor(), workers);
+        stage.addAnalyzer("luma", new LumaAnalyzer(), ANALYSIS_BUDGET_MS);
+        return stage;
+    }
+
+    //Handle user burst requests
+    public void onBurstClick(View v) {
+        mCameraCallback.takeBurst(BURST_SIZE, mBurstListener);
+    }
+
+    private final SingleImageCaptureCallback.BurstListener mBurstListener =
+            new SingleImageCaptureCallback.BurstListener() {
+        @Override
+        public void onBurstComplete(final BurstResult result) {
+            Log.d(TAG, "Burst complete: " + result);
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    Toast.makeText(ImageCaptureActivity.this,
+                            "Burst: " + result, Toast.LENGTH_LONG).show();
+                }
+            });
+        }
+    };
+
     /*
      * Texture creation is asynchronous. We can't handle preview until
      * we have a surface onto which we can render.
@@ -138,8 +366,8 @@ public class ImageCaptureActivity extends Activity implements
     @Override
     public void onSurfaceTextureAvailable(SurfaceTexture surface,
                                           int width, int height) {
-        //Camera is now safe to open
-        openCamera();
+        //Camera can now be handed over, if it is open
+        mCameraStarter.onSurfaceReady();
     }
 
     @Override
@@ -152,7 +380,9 @@ public class ImageCaptureActivity extends Activity implements
     }
 
     @Override
-    public void onSurfaceTextureUpdated(SurfaceTexture surface) { }
+    public void onSurfaceTextureUpdated(SurfaceTexture surface) {
+        mCurrentTrace.mark(StartupTrace.Stage.FIRST_FRAME);
+    }
 
     /** Methods to connect with the camera devices */
 
@@ -203,37 +433,62 @@ public class ImageCaptureActivity extends Activity implements
             new CameraDeviceCallback();
     private class CameraDeviceCallback extends CameraDevice.StateCallback {
         @Override
-        public void onOpened(CameraDevice cameraDevice) {
+        public void onOpened(final CameraDevice cameraDevice) {
             Log.d(TAG, "StateCallback.onOpened");
             // The camera is open, we can start a preview here.
             mCameraDevice = cameraDevice;
 
             try {
-                //Determine the optimal target preview size
-                Size targetPreviewSize = mCameraHelper.getTargetPreviewSize(
-                        mCameraDevice.getId(),
+                //Choose the preview and still sizes together
+                ResolutionPlanner.Plan plan = mCameraHelper.getResolutionPlan(
+                        cameraDevice.getId(),
+                        ResolutionPlanner.UseCase.STILL,
                         mPreviewTexture.getWidth(),
-                        mPreviewTexture.getHeight());
-
-                mCameraCallback = new SingleImageCaptureCallback(
-                        mCameraDevice,
-                        mPreviewTexture.getSurfaceTexture(),
-                        targetPreviewSize);
-
-                //Update the list of save sizes for the selected camera
-                StreamConfigurationMap map =
-                        mCameraHelper.getConfiguration(mCameraDevice.getId());
-                mResolutionAdapter.clear();
-                for (Size size : map.getOutputSizes(ImageFormat.JPEG)) {
-                    mResolutionAdapter.add(size);
-                }
-                mResolutionAdapter.notifyDataSetChanged();
-                //If there is already a selection, update resolution here
-                if (mResolutionSelector.getSelectedItemPosition()
-                        != AdapterView.INVALID_POSITION) {
-                    setCameraResolution(
-                            mResolutionSelector.getSelectedItemPosition());
-                }
+                        mPreviewTexture.getHeight(),
+                        PREVIEW_FRAME_DURATION_NS);
+                Size targetPreviewSize = (plan != null)
+                        ? plan.getPreviewSize()
+                        : mCameraHelper.getTargetPreviewSize(
+                                cameraDevice.getId(),
+                                mPreviewTexture.getWidth(),
+                                mPreviewTexture.getHeight());
+                final Size plannedSize =
+                        (plan != null) ? plan.getStillSize() : null;
+
+                final SingleImageCaptureCallback callback =
+                        new SingleImageCaptureCallback(
+                                cameraDevice,
+                                mPreviewTexture.getSurfaceTexture(),
+                                targetPreviewSize,
+                                mCameraHelper.getCameraExecutor());
+                callback.setStartupTrace(mCurrentTrace);
+                callback.setFrameStatsEnabled(true);
+                callback.setRequestCacheEnabled(mRequestCacheEnabled);
+
+                //Query the save sizes here, off the main thread
+                final List<Size> outputSizes =
+                        getResolutions(cameraDevice.getId());
+
+                //Only the UI updates are posted back to the main thread
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        //Camera was closed before we got here
+                        if (mCameraDevice != cameraDevice) {
+                            return;
+                        }
+                        mCameraCallback = callback;
+
+                        //Update the list of save sizes for the selected camera
+                        showResolutions(outputSizes, plannedSize);
+                        //If there is already a selection, update it here
+                        int position =
+                                mResolutionSelector.getSelectedItemPosition();
+                        if (position != AdapterView.INVALID_POSITION) {
+                            setCameraResolution(position);
+                        }
+                    }
+                });
             } catch (CameraAccessException e) {
                 Log.w(TAG, "Error initializing camera", e);
             }
@@ -261,25 +516,103 @@ public class ImageCaptureActivity extends Activity implements
         final String cameraId = getSelectedCameraId();
 
         try {
-            mCameraHelper.openCamera(cameraId, mStateCallback);
+            mCameraStarter.open(cameraId,
+                    mPreviewTexture.isAvailable(), mStateCallback);
+        } catch (CameraAccessException e) {
+            Log.w(TAG, "Unable to access camera: "+cameraId, e);
+        }
+    }
+
+    /*
+     * Move to the newly selected camera. The old camera closes while
+     * the new one opens, and the camera thread is kept.
+     */
+    private void switchCamera() {
+        sSwitchTrace.begin();
+        mCurrentTrace = sSwitchTrace;
+        releaseSession();
+        //The starter closes the old camera
+        mCameraDevice = null;
+
+        final String cameraId = getSelectedCameraId();
+        try {
+            mCameraStarter.switchCamera(cameraId,
+                    mPreviewTexture.isAvailable(), mStateCallback,
+                    sSwitchTrace);
         } catch (CameraAccessException e) {
             Log.w(TAG, "Unable to access camera: "+cameraId, e);
         }
     }
 
+    private void dumpSwitches(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.print("  Overlapped switches: ");
+        writer.print(mCameraStarter.getOverlappedSwitches());
+        writer.print(", deferred: ");
+        writer.println(mCameraStarter.getDeferredSwitches());
+    }
+
+    //Sizes the selected camera offers, cached per camera
+    private List<Size> getResolutions(String cameraId)
+            throws CameraAccessException {
+        synchronized (mResolutions) {
+            List<Size> sizes = mResolutions.get(cameraId);
+            if (sizes == null) {
+                sizes = Arrays.asList(mCameraHelper.getProfile(cameraId)
+                        .getOutputSizes(ImageFormat.JPEG));
+                mResolutions.put(cameraId, sizes);
+            }
+            return sizes;
+        }
+    }
+
+    /*
+     * Only rebuild the adapter if the sizes have changed, and then
+     * start from the planned size. Otherwise the user's choice stays.
+     */
+    private void showResolutions(List<Size> sizes, Size plannedSize) {
+        if (sizes.equals(mShownResolutions)) {
+            return;
+        }
+        mShownResolutions = sizes;
+
+        mResolutionAdapter.clear();
+        for (Size size : sizes) {
+            mResolutionAdapter.add(size);
+        }
+        mResolutionAdapter.notifyDataSetChanged();
+
+        int planned = sizes.indexOf(plannedSize);
+        if (planned >= 0) {
+            mResolutionSelector.setSelection(planned);
+        }
+    }
+
     /*
      * Terminate the active camera session
      */
     private void closeCamera() {
-        if (mCameraCallback != null) {
-            mCameraCallback.cancelActiveCaptureSession();
-            mCameraCallback.setCaptureTarget(null);
-            mCameraCallback = null;
-        }
+        releaseSession();
 
+        //Also closes a camera that opened before the surface was ready
+        mCameraStarter.cancel();
         if (mCameraDevice != null) {
             mCameraDevice.close();
             mCameraDevice = null;
         }
+
+        mCameraHelper.closeCamera();
+    }
+
+    //Stop preview and release the targets, leaving the camera open
+    private void releaseSession() {
+        if (mCameraCallback != null) {
+            mCameraCallback.cancelActiveCaptureSession();
+            mCameraCallback.setCaptureTarget(null);
+            mCameraCallback.setZslTarget(null);
+            mCameraCallback.setAnalysisStage(null);
+            mAnalysisStage = null;
+            mCameraCallback = null;
+        }
     }
 }
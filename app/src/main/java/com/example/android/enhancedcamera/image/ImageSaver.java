@@ -2,46 +2,133 @@ package com.example.android.enhancedcamera.image;
 
 import android.content.Context;
 import android.graphics.ImageFormat;
+import android.media.ExifInterface;
 import android.media.Image;
 import android.media.ImageReader;
-import android.media.MediaScannerConnection;
-import android.net.Uri;
 import android.os.Environment;
 import android.util.Log;
 import android.util.Size;
 import android.view.Surface;
 import android.widget.Toast;
 
+import com.example.android.enhancedcamera.common.CameraExecutor;
+import com.example.android.enhancedcamera.common.MediaIndexer;
+import com.example.android.enhancedcamera.common.MediaScanner;
+
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Save destination for still image captures. Images are stored in the
  * Pictures directory of the device's external storage.
+ *
+ * Images arrive on the camera thread and are handed to the
+ * {@link ImageWriteQueue}, which writes the JPEG plane straight to disk
+ * on a background writer and releases the Image once it is written. If
+ * every slot is busy, images are left in the ImageReader until a writer
+ * frees one up.
+ *
+ * With a {@link StillPostProcessor}, each image is processed on a
+ * separate thread first, one at a time, and the result is written in
+ * its place.
+ *
+ * YUV frames from elsewhere, such as the ZSL ring, are encoded as JPEG
+ * on an encoder thread of their own before they are written.
  */
-public class ImageSaver implements ImageReader.OnImageAvailableListener {
+public class ImageSaver implements ImageReader.OnImageAvailableListener,
+        ImageWriteQueue.Callback {
     private static final String TAG = ImageSaver.class.getSimpleName();
 
+    //Images the reader can hold before the camera stalls
+    private static final int DEFAULT_MAX_IMAGES = 2;
+    //Writers sharing the queue when it is sized for a burst
+    private static final int MAX_WRITER_THREADS = 2;
+    private static final ChannelFileWriter.Durability DURABILITY =
+            ChannelFileWriter.Durability.SYNC_ON_CLOSE;
+    //Quality of stills this saver encodes itself
+    private static final int JPEG_QUALITY = 95;
+    //Owner of buffers nothing else holds on to
+    private static final AutoCloseable NO_OWNER = new AutoCloseable() {
+        @Override
+        public void close() { }
+    };
+
     private ImageReader mImageReader;
     private File mPicturesDirectory;
 
     private Context mContext;
+    private CameraExecutor mCameraExecutor;
+    private ImageWriteQueue mWriteQueue;
+    private MediaIndexer mMediaIndexer;
 
     private int mSensorOrientation;
 
-    public ImageSaver(Context context, Size imageSize, int sensorOrientation) {
+    //Optional processing ahead of the write, and its thread
+    private StillPostProcessor mPostProcessor;
+    private ExecutorService mPostProcessThread;
+    private boolean mPostProcessing;
+
+    //Encoding of YUV frames, such as ZSL frames, one at a time
+    private ExecutorService mEncodeThread;
+    private YuvJpegEncoder mEncoder;
+    private boolean mEncoding;
+    //Written files that still need their orientation tagged
+    private final Set<String> mUntaggedFiles =
+            Collections.synchronizedSet(new HashSet<String>());
+
+    //Images signalled by the reader but not yet acquired
+    private int mPendingImages;
+    private boolean mClosed;
+
+    //Latency trace for the next image out of the reader
+    private final CaptureTracer mTracer = CaptureTracer.getInstance();
+    private long mNextTraceId = CaptureTracer.NO_CAPTURE;
+
+    //Keeps file names unique when several images share a timestamp
+    private long mLastFileTimestamp;
+    private int mFileSuffix;
+
+    public ImageSaver(Context context, Size imageSize, int sensorOrientation,
+                      CameraExecutor executor) {
+        this(context, imageSize, sensorOrientation, executor,
+                DEFAULT_MAX_IMAGES);
+    }
+
+    /**
+     * Create a saver able to absorb a burst of the given size without
+     * stalling the camera: the reader and the write queue each have
+     * room for the whole burst.
+     */
+    public ImageSaver(Context context, Size imageSize, int sensorOrientation,
+                      CameraExecutor executor, int burstSize) {
         mContext = context.getApplicationContext();
         mSensorOrientation = sensorOrientation;
+        mCameraExecutor = executor;
+        mMediaIndexer = MediaIndexer.getInstance(mContext);
+
+        int maxImages = Math.max(DEFAULT_MAX_IMAGES, burstSize);
+        //Images that can be waiting on disk writes at once
+        int writeSlots = maxImages;
+        int writerThreads = Math.min(MAX_WRITER_THREADS,
+                maxImages / DEFAULT_MAX_IMAGES);
+
+        mWriteQueue = new ImageWriteQueue(writeSlots, writerThreads,
+                new ChannelFileWriter(DURABILITY), this);
+        mWriteQueue.setCapacityListener(mDrainTask);
 
         mImageReader = ImageReader.newInstance(
                 imageSize.getWidth(),
                 imageSize.getHeight(),
                 ImageFormat.JPEG, /* ImageFormat */
-                2 /* MaxImages */ );
-        mImageReader.setOnImageAvailableListener(this, null);
+                maxImages /* MaxImages */ );
+        mImageReader.setOnImageAvailableListener(this,
+                executor.getHandler());
 
         //Save all photos in the default public pictures directory
         mPicturesDirectory = Environment.getExternalStoragePublicDirectory(
@@ -52,8 +139,48 @@ public class ImageSaver implements ImageReader.OnImageAvailableListener {
         return mImageReader.getSurface();
     }
 
-    public void close() {
-        mImageReader.close();
+    /**
+     * Process every image before it is written. Set this before any
+     * capture; the saver closes the processor when it is closed.
+     */
+    public synchronized void setPostProcessor(StillPostProcessor processor) {
+        if (mPostProcessor != null) {
+            throw new IllegalStateException("Post processor already set");
+        }
+        mPostProcessor = processor;
+        mPostProcessThread = Executors.newSingleThreadExecutor();
+    }
+
+    public synchronized void close() {
+        mClosed = true;
+        if (mEncodeThread != null) {
+            //A frame being encoded is dropped once it is done
+            mEncodeThread.shutdown();
+        }
+        if (mPostProcessThread == null) {
+            shutdownWriteQueue();
+            return;
+        }
+
+        //An image being processed is still in the reader, finish it first
+        mPostProcessThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                mPostProcessor.close();
+                shutdownWriteQueue();
+            }
+        });
+        mPostProcessThread.shutdown();
+    }
+
+    private void shutdownWriteQueue() {
+        //Queued writes still reference reader buffers, close it after them
+        mWriteQueue.shutdown(new Runnable() {
+            @Override
+            public void run() {
+                mImageReader.close();
+            }
+        });
     }
 
     public int getSensorOrientation() {
@@ -62,53 +189,265 @@ public class ImageSaver implements ImageReader.OnImageAvailableListener {
 
     @Override
     public void onImageAvailable(ImageReader reader) {
-        //Save the next available image
-        saveImage(reader.acquireNextImage());
-        Log.d(TAG, "Image Save Complete!");
+        synchronized (this) {
+            mPendingImages++;
+        }
+        drainImages();
     }
 
-    private File getImageFile() {
-        String filename = "NewCircle_"
-                + System.currentTimeMillis() + ".jpg";
-        return new File(mPicturesDirectory, filename);
+    //Writer freed a slot, pick up any images left in the reader
+    private final Runnable mDrainTask = new Runnable() {
+        @Override
+        public void run() {
+            mCameraExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    drainImages();
+                }
+            });
+        }
+    };
+
+    /*
+     * Hand off as many pending images as the write queue will accept.
+     * Anything left stays in the ImageReader, which in turn throttles
+     * the camera.
+     */
+    private synchronized void drainImages() {
+        while (!mClosed && mPendingImages > 0 && hasCapacity()) {
+            Image image = mImageReader.acquireNextImage();
+            mPendingImages--;
+            if (image == null) {
+                continue;
+            }
+
+            long captureId = mNextTraceId;
+            mNextTraceId = CaptureTracer.NO_CAPTURE;
+            mTracer.mark(captureId, CaptureTracer.Stage.IMAGE_AVAILABLE);
+
+            //The writer closes the image once its plane is on disk
+            enqueue(image.getPlanes()[0].getBuffer(), image,
+                    getImageFile(captureId));
+        }
     }
 
-    private void saveImage(Image image) {
-        File dest = getImageFile();
+    //Post processing takes one image at a time
+    private boolean hasCapacity() {
+        return mWriteQueue.hasCapacity()
+                && (mPostProcessor == null || !mPostProcessing);
+    }
 
-        //Write the file to the external pictures location
-        ByteBuffer buffer = image.getPlanes()[0].getBuffer();
-        byte[] bytes = new byte[buffer.remaining()];
-        buffer.get(bytes);
-        FileOutputStream output = null;
+    private boolean enqueue(ByteBuffer data, AutoCloseable owner, File dest) {
+        if (mPostProcessor == null) {
+            return mWriteQueue.enqueue(data, owner, dest);
+        }
+
+        postProcess(data, owner, dest);
+        return true;
+    }
+
+    private void postProcess(final ByteBuffer data, final AutoCloseable owner,
+                             final File dest) {
+        mPostProcessing = true;
+        mPostProcessThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    processAndWrite(data, owner, dest);
+                } finally {
+                    //Whatever happened, let the next image through
+                    synchronized (ImageSaver.this) {
+                        mPostProcessing = false;
+                    }
+                    mDrainTask.run();
+                }
+            }
+        });
+    }
+
+    //Runs on the post processing thread
+    private void processAndWrite(ByteBuffer data, AutoCloseable owner,
+                                 File dest) {
+        IOException error = null;
         try {
-            output = new FileOutputStream(dest);
-            output.write(bytes);
+            //The result is copied, the image can go straight back
+            ByteBuffer processed = mPostProcessor.process(data);
+            if (!mWriteQueue.enqueue(processed, dest)) {
+                error = new IOException("No write slot available");
+            }
         } catch (IOException e) {
-            e.printStackTrace();
+            error = e;
+        } catch (RuntimeException e) {
+            error = new IOException("Unable to process image", e);
+        } catch (OutOfMemoryError e) {
+            //The decoded frame didn't fit, the next one may
+            error = new IOException("Out of memory processing image", e);
         } finally {
-            image.close();
-            if (null != output) {
+            closeQuietly(owner);
+        }
+
+        if (error != null) {
+            Log.w(TAG, "Unable to process " + dest, error);
+            onImageWriteFailed(dest, error);
+        }
+    }
+
+    private static void closeQuietly(AutoCloseable owner) {
+        try {
+            owner.close();
+        } catch (Exception e) {
+            Log.w(TAG, "Unable to release image buffer", e);
+        }
+    }
+
+    /**
+     * Attribute the next image from the reader to the given capture,
+     * for latency tracing.
+     */
+    public synchronized void traceNextImage(long captureId) {
+        mNextTraceId = captureId;
+    }
+
+    /**
+     * Save a YUV_420_888 image that was captured elsewhere, such as a
+     * frame from the {@link ZslRingBuffer}. It is encoded as JPEG on
+     * the encoder thread, then the owner is closed and the JPEG is
+     * written like any other still. Returns false, leaving the owner
+     * open, if the saver is closed, every write slot is busy, or the
+     * previous frame is still being encoded.
+     */
+    public synchronized boolean saveYuvImage(final Image image,
+                                             final AutoCloseable owner,
+                                             long captureId) {
+        if (mClosed || mEncoding || !hasCapacity()) {
+            return false;
+        }
+        if (mEncodeThread == null) {
+            mEncodeThread = Executors.newSingleThreadExecutor();
+            mEncoder = new YuvJpegEncoder(JPEG_QUALITY);
+        }
+
+        mEncoding = true;
+        final File dest = getImageFile(captureId);
+        mEncodeThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                ByteBuffer jpeg = null;
                 try {
-                    output.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
+                    jpeg = mEncoder.encode(image);
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Unable to encode " + dest, e);
+                } finally {
+                    closeQuietly(owner);
+                }
+
+                boolean queued = false;
+                synchronized (ImageSaver.this) {
+                    mEncoding = false;
+                    if (mClosed) {
+                        return;
+                    }
+                    if (jpeg != null) {
+                        //Encoded without EXIF, tag it once written
+                        mUntaggedFiles.add(dest.getAbsolutePath());
+                        queued = enqueue(jpeg, NO_OWNER, dest);
+                    }
+                }
+                if (!queued) {
+                    mUntaggedFiles.remove(dest.getAbsolutePath());
+                    onImageWriteFailed(dest,
+                            new IOException("Unable to encode image"));
                 }
+                mDrainTask.run();
             }
+        });
+        return true;
+    }
+
+    private File getImageFile(long captureId) {
+        //Burst frames can arrive within the same millisecond
+        long timestamp = System.currentTimeMillis();
+        if (timestamp == mLastFileTimestamp) {
+            mFileSuffix++;
+        } else {
+            mLastFileTimestamp = timestamp;
+            mFileSuffix = 0;
+        }
+
+        String filename = "NewCircle_" + timestamp
+                + (mFileSuffix > 0 ? "_" + mFileSuffix : "") + ".jpg";
+        File file = new File(mPicturesDirectory, filename);
+        mTracer.attachFile(captureId, file.getAbsolutePath());
+        return file;
+    }
+
+    @Override
+    public void onImageWritten(File file) {
+        Log.d(TAG, "Image Save Complete!");
+        String path = file.getAbsolutePath();
+        mTracer.markFile(path, CaptureTracer.Stage.BYTES_WRITTEN);
+        boolean untagged = mUntaggedFiles.remove(path);
+        if (mPostProcessor != null || untagged) {
+            //Re-encoding drops the camera's EXIF data
+            writeOrientation(path);
         }
 
         //Tell the framework, so the image will be in the gallery
-        MediaScannerConnection.scanFile(mContext,
-                new String[]{dest.getAbsolutePath()},
-                new String[]{"image/jpeg"},
-                new MediaScannerConnection.OnScanCompletedListener() {
-                    public void onScanCompleted(String path, Uri uri) {
-                        Log.i(TAG, "Scanned " + path + ":");
-                        Log.i(TAG, "-> uri=" + uri);
-                    }
-                });
+        mMediaIndexer.add(path, "image/jpeg", mScanCallback);
 
-        Toast.makeText(mContext, "Image Capture Complete",
-                Toast.LENGTH_SHORT).show();
+        mCameraExecutor.executeOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                Toast.makeText(mContext, "Image Capture Complete",
+                        Toast.LENGTH_SHORT).show();
+            }
+        });
+    }
+
+    private void writeOrientation(String path) {
+        int orientation;
+        switch (mSensorOrientation) {
+            case 90:
+                orientation = ExifInterface.ORIENTATION_ROTATE_90;
+                break;
+            case 180:
+                orientation = ExifInterface.ORIENTATION_ROTATE_180;
+                break;
+            case 270:
+                orientation = ExifInterface.ORIENTATION_ROTATE_270;
+                break;
+            default:
+                orientation = ExifInterface.ORIENTATION_NORMAL;
+                break;
+        }
+
+        try {
+            ExifInterface exif = new ExifInterface(path);
+            exif.setAttribute(ExifInterface.TAG_ORIENTATION,
+                    String.valueOf(orientation));
+            exif.saveAttributes();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to tag orientation of " + path, e);
+        }
+    }
+
+    private final MediaScanner.Callback mScanCallback =
+            new MediaScanner.Callback() {
+        @Override
+        public void onScanCompleted(String path) {
+            mTracer.markFile(path, CaptureTracer.Stage.MEDIA_SCANNED);
+        }
+    };
+
+    @Override
+    public void onImageWriteFailed(File file, IOException e) {
+        mTracer.detachFile(file.getAbsolutePath());
+        mCameraExecutor.executeOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                Toast.makeText(mContext, "Unable to save image",
+                        Toast.LENGTH_SHORT).show();
+            }
+        });
     }
 }
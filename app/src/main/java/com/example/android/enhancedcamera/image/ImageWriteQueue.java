@@ -0,0 +1,280 @@
+package com.example.android.enhancedcamera.image;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Bounded background write pipeline for captured images.
+ *
+ * The queue owns a fixed number of slots. A producer either lends a
+ * buffer along with the object that owns it, which is closed once the
+ * bytes are on disk, or has the data copied into a pooled direct buffer
+ * and keeps ownership. Either way the slot is returned once a writer
+ * thread has persisted it. When every slot is busy the work is refused
+ * and the producer is expected to hold off until it is told capacity
+ * is available again.
+ *
+ * With a batched {@link ChannelFileWriter}, a file is only reported
+ * written once its batch has been forced to storage. A batch ends when
+ * it is full, or when the queue runs out of work, so a lone capture
+ * isn't held back waiting for more.
+ */
+public class ImageWriteQueue {
+    private static final String TAG = ImageWriteQueue.class.getSimpleName();
+
+    /**
+     * Completion events, delivered on a writer thread.
+     */
+    public interface Callback {
+        void onImageWritten(File file);
+        void onImageWriteFailed(File file, IOException e);
+    }
+
+    //Reusable holder for one image worth of bytes
+    private static class WriteSlot {
+        //Only allocated if the slot is ever used to copy data
+        ByteBuffer copyBuffer;
+        ByteBuffer data;
+        AutoCloseable owner;
+        File dest;
+    }
+
+    private final int mCapacity;
+    private final BlockingQueue<WriteSlot> mFreeSlots;
+    private final ThreadPoolExecutor mWriters;
+    private final ChannelFileWriter mFileWriter;
+    private final Callback mCallback;
+    private volatile Runnable mCapacityListener;
+
+    private volatile boolean mShutdown;
+    private volatile Runnable mTerminationTask;
+    private final AtomicBoolean mTerminated = new AtomicBoolean(false);
+
+    public ImageWriteQueue(int capacity, int writerCount, Callback callback) {
+        this(capacity, writerCount,
+                new ChannelFileWriter(ChannelFileWriter.Durability.NONE),
+                callback);
+    }
+
+    public ImageWriteQueue(int capacity, int writerCount,
+                           ChannelFileWriter fileWriter, Callback callback) {
+        if (capacity < 1 || writerCount < 1) {
+            throw new IllegalArgumentException("Invalid queue dimensions");
+        }
+        mCapacity = capacity;
+        mFileWriter = fileWriter;
+        mCallback = callback;
+        mFileWriter.setBatchListener(new ChannelFileWriter.BatchListener() {
+            @Override
+            public void onFileSynced(File file) {
+                mCallback.onImageWritten(file);
+            }
+
+            @Override
+            public void onFileSyncFailed(File file, IOException e) {
+                Log.w(TAG, "Unable to sync " + file, e);
+                mCallback.onImageWriteFailed(file, e);
+            }
+        });
+
+        mFreeSlots = new ArrayBlockingQueue<WriteSlot>(capacity);
+        for (int i = 0; i < capacity; i++) {
+            mFreeSlots.add(new WriteSlot());
+        }
+
+        //Slots bound the number of writes, so the work queue only needs
+        // one extra entry for the final flush
+        mWriters = new ThreadPoolExecutor(writerCount, writerCount,
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(capacity + 1),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(
+                                        Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, "ImageWriter");
+                    }
+                });
+    }
+
+    /**
+     * Register a task to run (on a writer thread) each time a slot is
+     * returned to the pool.
+     */
+    public void setCapacityListener(Runnable listener) {
+        mCapacityListener = listener;
+    }
+
+    public boolean hasCapacity() {
+        return !mFreeSlots.isEmpty();
+    }
+
+    /**
+     * Copy the remaining bytes of the buffer and schedule them to be
+     * written to the destination file. Returns false, without consuming
+     * the buffer, if all slots are in use.
+     */
+    public boolean enqueue(ByteBuffer data, File dest) {
+        WriteSlot slot = mFreeSlots.poll();
+        if (slot == null) {
+            return false;
+        }
+
+        int length = data.remaining();
+        if (slot.copyBuffer == null || slot.copyBuffer.capacity() < length) {
+            slot.copyBuffer = ByteBuffer.allocateDirect(length);
+        }
+        slot.copyBuffer.clear();
+        slot.copyBuffer.put(data);
+        slot.copyBuffer.flip();
+
+        submit(slot, slot.copyBuffer, null, dest);
+        return true;
+    }
+
+    /**
+     * Schedule the remaining bytes of the buffer to be written without
+     * copying them. The owner is closed after the write completes, so
+     * the buffer must stay valid until then. Returns false, and leaves
+     * the owner open, if all slots are in use.
+     */
+    public boolean enqueue(ByteBuffer data, AutoCloseable owner, File dest) {
+        WriteSlot slot = mFreeSlots.poll();
+        if (slot == null) {
+            return false;
+        }
+
+        submit(slot, data, owner, dest);
+        return true;
+    }
+
+    private void submit(final WriteSlot slot, ByteBuffer data,
+                        AutoCloseable owner, File dest) {
+        slot.data = data;
+        slot.owner = owner;
+        slot.dest = dest;
+
+        mWriters.execute(new Runnable() {
+            @Override
+            public void run() {
+                write(slot);
+            }
+        });
+    }
+
+    private void write(WriteSlot slot) {
+        File dest = slot.dest;
+        IOException error = null;
+        boolean complete = false;
+
+        try {
+            complete = mFileWriter.write(dest, slot.data);
+        } catch (IOException e) {
+            error = e;
+        } finally {
+            release(slot);
+        }
+
+        if (error != null) {
+            Log.w(TAG, "Unable to write " + dest, error);
+            mCallback.onImageWriteFailed(dest, error);
+        } else if (complete) {
+            mCallback.onImageWritten(dest);
+        } else if (mFreeSlots.size() == mCapacity) {
+            //Nothing else in flight, sync what there is of the batch
+            flushBatch();
+        }
+
+        Runnable listener = mCapacityListener;
+        if (listener != null) {
+            listener.run();
+        }
+
+        if (mShutdown && mFreeSlots.size() == mCapacity) {
+            terminate();
+        }
+    }
+
+    //Return the borrowed buffer, then the slot, before anyone is notified
+    private void release(WriteSlot slot) {
+        if (slot.owner != null) {
+            try {
+                slot.owner.close();
+            } catch (Exception e) {
+                Log.w(TAG, "Unable to release image buffer", e);
+            }
+        }
+
+        slot.data = null;
+        slot.owner = null;
+        slot.dest = null;
+        mFreeSlots.add(slot);
+    }
+
+    /**
+     * Stop accepting work. Writes already queued are allowed to finish.
+     */
+    public void shutdown() {
+        shutdown(null);
+    }
+
+    /**
+     * Stop accepting work, and run the given task on a writer thread
+     * once every queued write has finished. Use this to release
+     * resources that lent buffers are still backed by.
+     */
+    public void shutdown(Runnable onTerminated) {
+        mCapacityListener = null;
+        mTerminationTask = onTerminated;
+        mShutdown = true;
+
+        //Nothing in flight, terminate right away
+        if (mFreeSlots.size() == mCapacity) {
+            mWriters.execute(new Runnable() {
+                @Override
+                public void run() {
+                    terminate();
+                }
+            });
+        }
+        mWriters.shutdown();
+    }
+
+    private void flushBatch() {
+        try {
+            mFileWriter.flush();
+        } catch (IOException e) {
+            //Already reported per file, through the batch listener
+        }
+    }
+
+    //Runs exactly once, after the last slot has been returned
+    private void terminate() {
+        if (!mTerminated.compareAndSet(false, true)) {
+            return;
+        }
+
+        //Files held back for a batched sync go out after the last write
+        flushBatch();
+
+        Runnable task = mTerminationTask;
+        if (task != null) {
+            task.run();
+        }
+    }
+}
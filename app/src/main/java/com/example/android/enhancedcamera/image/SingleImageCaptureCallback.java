@@ -5,24 +5,48 @@ import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
 import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureFailure;
 import android.hardware.camera2.CaptureRequest;
 import android.hardware.camera2.CaptureResult;
 import android.hardware.camera2.TotalCaptureResult;
+import android.os.SystemClock;
 import android.util.Log;
 import android.util.Size;
 import android.view.Surface;
 
+import com.example.android.enhancedcamera.common.CameraExecutor;
+import com.example.android.enhancedcamera.common.LatencyHistogram;
 import com.example.android.enhancedcamera.common.PreviewCallback;
 
+import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static android.hardware.camera2.CaptureResult.*;
 
 /**
  * Implementation of the callback required for single image capture.
- * This callback acts as a simple state machine in order to process the
- * pre-capture states for auto-focus and auto-exposure necessary before
- * an image can be saved.
+ * Capture results are fed to a {@link CaptureStateMachine}, which runs
+ * the pre-capture states for auto-focus and auto-exposure necessary
+ * before an image can be saved; this class carries out its actions.
+ *
+ * Shutter presses go straight to the state machine, on the calling
+ * thread, so none are lost. Presses during a capture either share its
+ * still or queue one more capture. When the preview has already
+ * converged, a press requests the still straight away.
+ *
+ * In burst mode the same focus/exposure sequence runs once, followed by
+ * a single burst of still captures with exposure locked.
+ *
+ * The focus, precapture, still, burst and unlock requests are all
+ * built once the preview session is running, and reused for every
+ * shot until the session or capture target changes.
+ *
+ * With a {@link ZslRingBuffer} attached, the preview also streams YUV
+ * frames into the ring, and the shutter saves the frame closest to the
+ * press instead of running the capture sequence.
  */
 public class SingleImageCaptureCallback extends PreviewCallback {
     private static final String TAG =
@@ -30,26 +54,73 @@ public class SingleImageCaptureCallback extends PreviewCallback {
 
     //Object to differentiate the capture request
     private final Object mCaptureKey = new Object();
+    //Object to differentiate the requests of a burst
+    private final Object mBurstKey = new Object();
 
-    /** Camera state: Showing camera preview. */
-    private static final int STATE_IDLE = 0;
-    /** Camera state: Waiting for the focus to be locked. */
-    private static final int STATE_WAITING_LOCK = 1;
-    /** Camera state: Waiting for the exposure to be precapture state. */
-    private static final int STATE_WAITING_PRECAPTURE = 2;
-    /** Camera state: Waiting for a precapture to complete. */
-    private static final int STATE_WAITING_NON_PRECAPTURE = 3;
-    /** Camera state: Picture was taken. */
-    private static final int STATE_PICTURE_TAKEN = 4;
-
-    //Internal state tracker
-    private int mState = STATE_IDLE;
+    /**
+     * Receives the outcome of a burst, on the camera thread.
+     */
+    public interface BurstListener {
+        void onBurstComplete(BurstResult result);
+    }
+
+    //Capture sequence state, shared by presses and camera callbacks
+    private final CaptureStateMachine mStateMachine =
+            new CaptureStateMachine();
+    //Latency trace of the capture in progress, and of a queued one
+    private final CaptureTracer mTracer = CaptureTracer.getInstance();
+    private long mCaptureId = CaptureTracer.NO_CAPTURE;
+    private final AtomicLong mQueuedCaptureId =
+            new AtomicLong(CaptureTracer.NO_CAPTURE);
     private ImageSaver mCaptureTarget;
+    //Set from the main thread, read on the camera thread
+    private volatile ZslRingBuffer mZslTarget;
+
+    //Prebuilt requests, by REQUEST_* index
+    private static final int REQUEST_LOCK = 0;
+    private static final int REQUEST_PRECAPTURE = 1;
+    private static final int REQUEST_STILL = 2;
+    private static final int REQUEST_BURST = 3;
+    private static final int REQUEST_UNLOCK = 4;
+    private static final int REQUEST_COUNT = 5;
+
+    //Immutable requests for one session and capture target
+    private static class Requests {
+        final int generation;
+        final CaptureRequest[] requests = new CaptureRequest[REQUEST_COUNT];
+
+        Requests(int generation) {
+            this.generation = generation;
+        }
+    }
+
+    private volatile Requests mRequests;
+    //Bumped whenever the cached requests go stale
+    private final AtomicInteger mRequestGeneration = new AtomicInteger();
+    private volatile boolean mRequestCacheEnabled = true;
+
+    //Request setup cost, to compare with the cache on and off
+    private final AtomicLong mShots = new AtomicLong();
+    private final AtomicLong mTemplatesCreated = new AtomicLong();
+    private final AtomicLong mRequestsBuilt = new AtomicLong();
+    private final LatencyHistogram mRequestSetup = new LatencyHistogram();
+
+    //Burst to take with the next still, camera thread only
+    private int mNextBurstSize;
+    private BurstListener mNextBurstListener;
+    //Burst in progress, all only touched on the camera thread
+    private int mBurstSize;
+    private BurstListener mBurstListener;
+    private int mBurstSequenceId = -1;
+    private int mBurstCaptured;
+    private long mBurstFirstTimestamp;
+    private long mBurstLastTimestamp;
 
     public SingleImageCaptureCallback(CameraDevice device,
                                       SurfaceTexture surface,
-                                      Size targetPreviewSize) {
-        super(device, surface, targetPreviewSize);
+                                      Size targetPreviewSize,
+                                      CameraExecutor executor) {
+        super(device, surface, targetPreviewSize, executor);
     }
 
     //Request for a preview that supports image focus
@@ -66,6 +137,11 @@ public class SingleImageCaptureCallback extends PreviewCallback {
         builder.set(CaptureRequest.CONTROL_AE_MODE,
                 CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH);
 
+        //Keep the ZSL ring filled with every preview frame
+        if (mZslTarget != null) {
+            builder.addTarget(mZslTarget.getTargetSurface());
+        }
+
         return builder;
     }
 
@@ -74,6 +150,24 @@ public class SingleImageCaptureCallback extends PreviewCallback {
             mCaptureTarget.close();
         }
         mCaptureTarget = target;
+        invalidateRequests();
+    }
+
+    /**
+     * Attach (or remove, with null) a zero-shutter-lag frame ring.
+     * Takes effect with the next preview session.
+     */
+    public void setZslTarget(ZslRingBuffer target) {
+        if (mZslTarget != null) {
+            mZslTarget.close();
+        }
+        mZslTarget = target;
+    }
+
+    //Preview results feed the ZSL ring, and are ignored while idle
+    @Override
+    protected CameraCaptureSession.CaptureCallback getPreviewCaptureCallback() {
+        return mCaptureCallback;
     }
 
     /*
@@ -85,12 +179,48 @@ public class SingleImageCaptureCallback extends PreviewCallback {
         List<Surface> baseTargets = super.getCaptureTargets();
         //Include the surface for image saving
         baseTargets.add(mCaptureTarget.getTargetSurface());
+        if (mZslTarget != null) {
+            baseTargets.add(mZslTarget.getTargetSurface());
+        }
 
         return baseTargets;
     }
 
+    //Reset the capture sequence, a new session starts with the preview
+    @Override
+    public void startPreviewSession() throws CameraAccessException {
+        mStateMachine.reset();
+        invalidateRequests();
+        super.startPreviewSession();
+    }
+
+    @Override
+    public void restartPreview(int effect) throws CameraAccessException {
+        //Requests derived from the preview carry the old effect
+        invalidateRequests();
+        super.restartPreview(effect);
+    }
+
+    //Build the requests now, rather than on the first shot
+    @Override
+    protected void onPreviewStarted() {
+        if (!mRequestCacheEnabled) {
+            return;
+        }
+
+        try {
+            getRequests();
+        } catch (CameraAccessException e) {
+            Log.w(TAG, "Unable to prebuild capture requests", e);
+        }
+    }
+
+    public CaptureStateMachine getStateMachine() {
+        return mStateMachine;
+    }
+
     /*
-     * State machine that controls image capture sequence:
+     * Camera callbacks for the capture sequence:
      * 1. Auto-focus requested (are we locked?)
      * 2. Optional: Auto-exposure pre-capture analysis (do we need flash?)
      * 3. Obtain a single still image
@@ -98,50 +228,14 @@ public class SingleImageCaptureCallback extends PreviewCallback {
     private CameraCaptureSession.CaptureCallback mCaptureCallback =
             new CameraCaptureSession.CaptureCallback() {
         private void process(CaptureResult result) {
-            switch (mState) {
-                case STATE_IDLE: {
-                    // We have nothing to do, camera is in preview mode.
-                    break;
-                }
-                case STATE_WAITING_LOCK: {
-                    int afState = result.get(CONTROL_AF_STATE);
-                    int afMode = result.get(CONTROL_AF_MODE);
-                    //Focus is locked, or auto-focus is not enabled
-                    if (CONTROL_AF_MODE_OFF == afMode ||
-                            CONTROL_AF_STATE_FOCUSED_LOCKED == afState ||
-                            CONTROL_AF_STATE_NOT_FOCUSED_LOCKED == afState) {
-                        // CONTROL_AE_STATE can be null on some devices
-                        Integer aeState = result.get(CONTROL_AE_STATE);
-                        if (aeState == null ||
-                                aeState == CONTROL_AE_STATE_CONVERGED) {
-                            mState = STATE_WAITING_NON_PRECAPTURE;
-                        } else {
-                            runPrecaptureSequence();
-                        }
-                    }
-                    break;
-                }
-                case STATE_WAITING_PRECAPTURE: {
-                    // CONTROL_AE_STATE can be null on some devices
-                    Integer aeState = result.get(CONTROL_AE_STATE);
-                    if (aeState == null ||
-                            aeState == CONTROL_AE_STATE_PRECAPTURE ||
-                            aeState == CONTROL_AE_STATE_FLASH_REQUIRED) {
-                        mState = STATE_WAITING_NON_PRECAPTURE;
-                    }
-                    break;
-                }
-                case STATE_WAITING_NON_PRECAPTURE: {
-                    // CONTROL_AE_STATE can be null on some devices
-                    Integer aeState = result.get(CONTROL_AE_STATE);
-                    if (aeState == null
-                            || aeState != CONTROL_AE_STATE_PRECAPTURE) {
-                        mState = STATE_PICTURE_TAKEN;
-                        captureStillPicture();
-                    }
-                    break;
-                }
+            //Nothing to do in preview, skip the metadata lookups
+            if (!mStateMachine.isWaitingForResult()) {
+                return;
             }
+
+            perform(mStateMachine.onResult(result.get(CONTROL_AF_MODE),
+                    result.get(CONTROL_AF_STATE),
+                    result.get(CONTROL_AE_STATE)));
         }
 
         @Override
@@ -152,25 +246,214 @@ public class SingleImageCaptureCallback extends PreviewCallback {
             process(partialResult);
         }
 
+        @Override
+        public void onCaptureStarted(CameraCaptureSession session,
+                                     CaptureRequest request,
+                                     long timestamp,
+                                     long frameNumber) {
+            ZslRingBuffer zslTarget = mZslTarget;
+            if (zslTarget != null) {
+                zslTarget.onCaptureStarted(timestamp);
+            }
+        }
+
         @Override
         public void onCaptureCompleted(CameraCaptureSession session,
                                        CaptureRequest request,
                                        TotalCaptureResult result) {
+            ZslRingBuffer zslTarget = mZslTarget;
+            if (zslTarget != null) {
+                zslTarget.onCaptureCompleted(result);
+            }
+
             if (mCaptureKey == request.getTag()) {
+                mTracer.mark(mCaptureId,
+                        CaptureTracer.Stage.CAPTURE_COMPLETED);
                 Log.v(TAG, "Image Capture Complete…Unlocking Focus");
-                unlockFocus();
-            } else {
+                perform(mStateMachine.onStillCompleted());
+            } else if (mBurstKey == request.getTag()) {
+                recordBurstFrame(result);
+            } else if (mStateMachine.isWaitingForResult()) {
                 //Process next state in the capture sequence
                 process(result);
+            } else {
+                //Track convergence for the fast shutter path
+                mStateMachine.onPreviewResult(result.get(CONTROL_AF_MODE),
+                        result.get(CONTROL_AF_STATE),
+                        result.get(CONTROL_AE_STATE));
+            }
+        }
+
+        @Override
+        public void onCaptureFailed(CameraCaptureSession session,
+                                    CaptureRequest request,
+                                    CaptureFailure failure) {
+            //Without this the sequence would wait on the still forever
+            if (mCaptureKey == request.getTag()) {
+                Log.w(TAG, "Image Capture Failed…Unlocking Focus");
+                perform(mStateMachine.onStillCompleted());
+            }
+        }
+
+        @Override
+        public void onCaptureSequenceCompleted(CameraCaptureSession session,
+                                               int sequenceId,
+                                               long frameNumber) {
+            if (sequenceId == mBurstSequenceId) {
+                finishBurst();
+            }
+        }
+
+        @Override
+        public void onCaptureSequenceAborted(CameraCaptureSession session,
+                                             int sequenceId) {
+            if (sequenceId == mBurstSequenceId) {
+                finishBurst();
             }
         }
     };
 
+    //Carry out a state machine action; camera thread only
+    private void perform(CaptureStateMachine.Action action) {
+        switch (action) {
+            case FOCUS_LOCKED:
+                mTracer.mark(mCaptureId, CaptureTracer.Stage.AF_LOCKED);
+                break;
+            case RUN_PRECAPTURE:
+                mTracer.mark(mCaptureId, CaptureTracer.Stage.AF_LOCKED);
+                runPrecaptureSequence();
+                break;
+            case CAPTURE_STILL:
+                mTracer.mark(mCaptureId,
+                        CaptureTracer.Stage.PRECAPTURE_DONE);
+                captureStillPicture();
+                break;
+            case UNLOCK_FOCUS:
+                unlockFocus();
+                break;
+            case RELOCK_FOCUS:
+                Log.v(TAG, "Starting Queued Capture");
+                unlockFocus();
+                mCaptureId = mQueuedCaptureId.getAndSet(
+                        CaptureTracer.NO_CAPTURE);
+                lockFocus();
+                break;
+            default:
+                break;
+        }
+    }
+
     /**
-     * Initiate a still image capture.
+     * Initiate a still image capture. The press is registered with the
+     * state machine immediately; camera work is posted to the camera
+     * thread.
      */
     public void takePicture() {
-        lockFocus();
+        //Stamp the press now, before any thread hop
+        final long pressTime = SystemClock.elapsedRealtimeNanos();
+        final long captureId = mTracer.begin();
+        if (mZslTarget == null || !isIdle()) {
+            press(captureId);
+            return;
+        }
+
+        getCameraExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!saveZslFrame(pressTime, captureId)) {
+                    press(captureId);
+                }
+            }
+        });
+    }
+
+    private boolean isIdle() {
+        return mStateMachine.getState() == CaptureStateMachine.STATE_IDLE;
+    }
+
+    //Start a capture, or attach the press to the one in progress
+    private void press(final long captureId) {
+        switch (mStateMachine.onShutter()) {
+            case LOCK_FOCUS:
+                getCameraExecutor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        mCaptureId = captureId;
+                        lockFocus();
+                    }
+                });
+                break;
+            case CAPTURE_STILL_FAST:
+                mTracer.setPath(captureId, CaptureTracer.Path.FAST);
+                getCameraExecutor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        Log.v(TAG, "Preview Converged…Skipping Precapture");
+                        mCaptureId = captureId;
+                        captureStillPicture();
+                    }
+                });
+                break;
+            case QUEUE:
+                mQueuedCaptureId.set(captureId);
+                break;
+            default:
+                //Shares the still of an earlier press, no trace of its own
+                Log.v(TAG, "Shutter Press Coalesced");
+                break;
+        }
+    }
+
+    /*
+     * Save the ring frame closest to the shutter press, if ZSL is on.
+     * Returns false if the regular capture sequence should run instead.
+     */
+    private boolean saveZslFrame(long pressTime, long captureId) {
+        ZslRingBuffer zslTarget = mZslTarget;
+        if (zslTarget == null || !isIdle()) {
+            return false;
+        }
+
+        ZslRingBuffer.Frame frame = zslTarget.detachClosestFrame(pressTime);
+        if (frame == null) {
+            return false;
+        }
+
+        //The frame is released by the writer once it is on disk
+        mTracer.setPath(captureId, CaptureTracer.Path.ZSL);
+        if (!mCaptureTarget.saveYuvImage(frame.getImage(), frame,
+                captureId)) {
+            mTracer.setPath(captureId, CaptureTracer.Path.FULL);
+            frame.close();
+            return false;
+        }
+
+        Log.v(TAG, "Saved ZSL Frame");
+        return true;
+    }
+
+    /**
+     * Initiate a burst of still captures. Focus and exposure are locked
+     * once, then all frames are requested together. The capture target
+     * should be sized to hold the burst. Like a shutter press, a burst
+     * requested during a capture takes the place of its still, or of
+     * the queued one.
+     */
+    public void takeBurst(final int frameCount,
+                          final BurstListener listener) {
+        if (frameCount < 1) {
+            throw new IllegalArgumentException("Invalid burst size");
+        }
+
+        getCameraExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                mNextBurstSize = frameCount;
+                mNextBurstListener = listener;
+                //Bursts are not traced
+                press(CaptureTracer.NO_CAPTURE);
+            }
+        });
     }
 
     /*
@@ -179,17 +462,13 @@ public class SingleImageCaptureCallback extends PreviewCallback {
      */
     private void lockFocus() {
         try {
-            // This is how to tell the camera to lock focus.
-            final CaptureRequest.Builder builder = getPreviewRequestBuilder();
-            builder.set(CaptureRequest.CONTROL_AF_TRIGGER,
-                    CameraMetadata.CONTROL_AF_TRIGGER_START);
-
-            mState = STATE_WAITING_LOCK;
-            getActiveCaptureSession().capture(builder.build(),
+            getActiveCaptureSession().capture(getRequest(REQUEST_LOCK),
                     mCaptureCallback,
-                    null);
+                    getCameraHandler());
         } catch (CameraAccessException e) {
-            e.printStackTrace();
+            abortCapture("lock focus", e);
+        } catch (IllegalStateException e) {
+            abortCapture("lock focus", e);
         }
     }
 
@@ -199,17 +478,14 @@ public class SingleImageCaptureCallback extends PreviewCallback {
      */
     private void runPrecaptureSequence() {
         try {
-            // Pre-capture will trigger the flash if the AE is not converged
-            final CaptureRequest.Builder builder = getPreviewRequestBuilder();
-            builder.set(CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER,
-                    CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER_START);
-
-            mState = STATE_WAITING_PRECAPTURE;
-            getActiveCaptureSession().capture(builder.build(),
+            getActiveCaptureSession().capture(
+                    getRequest(REQUEST_PRECAPTURE),
                     mCaptureCallback,
-                    null);
+                    getCameraHandler());
         } catch (CameraAccessException e) {
-            e.printStackTrace();
+            abortCapture("run precapture", e);
+        } catch (IllegalStateException e) {
+            abortCapture("run precapture", e);
         }
     }
 
@@ -217,57 +493,289 @@ public class SingleImageCaptureCallback extends PreviewCallback {
      * Run the image capture sequence after focus/exposure.
      */
     private void captureStillPicture() {
+        mShots.incrementAndGet();
+        //A burst requested since the last still takes this one's place
+        mBurstSize = mNextBurstSize;
+        mBurstListener = mNextBurstListener;
+        mNextBurstSize = 0;
+        mNextBurstListener = null;
+        if (mBurstSize > 0) {
+            captureBurst();
+            return;
+        }
+
         try {
-            // This is the CaptureRequest.Builder we use to take a picture.
-            final CaptureRequest.Builder captureBuilder = getCameraDevice()
-                    .createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
-            captureBuilder.addTarget(mCaptureTarget.getTargetSurface());
-
-            // Use the same AE and AF modes as the preview.
-            captureBuilder.set(CaptureRequest.CONTROL_AF_MODE,
-                    CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
-            captureBuilder.set(CaptureRequest.CONTROL_AE_MODE,
-                    CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH);
-
-            /*
-             * Orient captured image properly with respect to the display.
-             * We are fixed in portrait, if the activity is allowed to
-             * rotate, that rotation will need to be accounted for as well.
-             */
-            int orientation = mCaptureTarget.getSensorOrientation();
-            captureBuilder.set(CaptureRequest.JPEG_ORIENTATION, orientation);
-
-            //Use the tag to find this request later
-            captureBuilder.setTag(mCaptureKey);
+            CaptureRequest request = getRequest(REQUEST_STILL);
 
             Log.v(TAG, "Triggering Capture Session");
-            getActiveCaptureSession().capture(captureBuilder.build(),
-                    mCaptureCallback, null);
+            mCaptureTarget.traceNextImage(mCaptureId);
+            getActiveCaptureSession().capture(request,
+                    mCaptureCallback, getCameraHandler());
+            mTracer.mark(mCaptureId,
+                    CaptureTracer.Stage.STILL_REQUEST_SUBMITTED);
         } catch (CameraAccessException e) {
-            e.printStackTrace();
+            abortCapture("capture still", e);
+        } catch (IllegalStateException e) {
+            abortCapture("capture still", e);
+        }
+    }
+
+    /*
+     * A request of the capture sequence was not submitted, so its
+     * result will never come. Put the preview back, and move the state
+     * machine on so the next press is served instead of merged into,
+     * or queued behind, this capture.
+     */
+    private void abortCapture(String step, Exception e) {
+        Log.w(TAG, "Unable to " + step + ", capture abandoned", e);
+        int state = mStateMachine.getState();
+        if (state == CaptureStateMachine.STATE_PICTURE_TAKEN
+                || state == CaptureStateMachine.STATE_PICTURE_TAKEN_QUEUED) {
+            //Unlocks, or starts the press queued behind this still
+            perform(mStateMachine.onStillCompleted());
+        } else {
+            //Presses so far were merged into this capture, and go with it
+            mStateMachine.reset();
+            unlockFocus();
+        }
+    }
+
+    /*
+     * Request every frame of the burst in one go, so the camera can
+     * deliver them back to back at its maximum still rate.
+     */
+    private void captureBurst() {
+        mBurstCaptured = 0;
+        mBurstFirstTimestamp = 0;
+        mBurstLastTimestamp = 0;
+
+        try {
+            CaptureRequest request = getRequest(REQUEST_BURST);
+            List<CaptureRequest> burst =
+                    new ArrayList<CaptureRequest>(mBurstSize);
+            for (int i = 0; i < mBurstSize; i++) {
+                burst.add(request);
+            }
+
+            Log.v(TAG, "Triggering Burst of " + mBurstSize);
+            mBurstSequenceId = getActiveCaptureSession().captureBurst(burst,
+                    mCaptureCallback, getCameraHandler());
+        } catch (CameraAccessException e) {
+            Log.w(TAG, "Unable to capture burst", e);
+            //Reported with no frames, and the sequence moves on
+            finishBurst();
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Unable to capture burst", e);
+            finishBurst();
+        }
+    }
+
+    private void recordBurstFrame(CaptureResult result) {
+        Long timestamp = result.get(SENSOR_TIMESTAMP);
+        if (timestamp != null) {
+            if (mBurstCaptured == 0) {
+                mBurstFirstTimestamp = timestamp;
+            }
+            mBurstLastTimestamp = timestamp;
+        }
+        mBurstCaptured++;
+    }
+
+    //All burst results are in (or the burst was aborted or never sent)
+    private void finishBurst() {
+        BurstResult result = new BurstResult(mBurstSize, mBurstCaptured,
+                mBurstFirstTimestamp, mBurstLastTimestamp);
+        Log.v(TAG, "Burst Complete: " + result);
+
+        BurstListener listener = mBurstListener;
+        mBurstSequenceId = -1;
+        mBurstSize = 0;
+        mBurstListener = null;
+
+        perform(mStateMachine.onStillCompleted());
+        if (listener != null) {
+            listener.onBurstComplete(result);
         }
     }
 
+    /**
+     * Reuse requests across shots (the default), or build each one as
+     * it is needed, to measure what the cache saves.
+     */
+    public void setRequestCacheEnabled(boolean enabled) {
+        mRequestCacheEnabled = enabled;
+        invalidateRequests();
+    }
+
+    //Any thread; stale requests are rebuilt on their next use
+    private void invalidateRequests() {
+        mRequestGeneration.incrementAndGet();
+    }
+
+    //Request for the current session and target, timed for the stats
+    private CaptureRequest getRequest(int type)
+            throws CameraAccessException {
+        long start = System.nanoTime();
+        CaptureRequest request = mRequestCacheEnabled
+                ? getRequests().requests[type]
+                : buildRequest(type);
+        mRequestSetup.record(System.nanoTime() - start);
+        return request;
+    }
+
+    private Requests getRequests() throws CameraAccessException {
+        int generation = mRequestGeneration.get();
+        Requests requests = mRequests;
+        if (requests != null && requests.generation == generation) {
+            return requests;
+        }
+
+        //Built against the target as of this generation; a change
+        // while building bumps it again, so these are replaced next use
+        requests = new Requests(generation);
+        for (int type = 0; type < REQUEST_COUNT; type++) {
+            requests.requests[type] = buildRequest(type);
+        }
+        mRequests = requests;
+        return requests;
+    }
+
+    /*
+     * Trigger requests are copies of the preview with one trigger set.
+     * The preview builder is shared, so each trigger is put back to
+     * idle once built, and later requests don't repeat it.
+     */
+    private CaptureRequest buildRequest(int type)
+            throws CameraAccessException {
+        CaptureRequest.Builder builder;
+        switch (type) {
+            case REQUEST_LOCK:
+                // This is how to tell the camera to lock focus.
+                builder = getPreviewRequestBuilder();
+                builder.set(CaptureRequest.CONTROL_AF_TRIGGER,
+                        CameraMetadata.CONTROL_AF_TRIGGER_START);
+                try {
+                    return build(builder);
+                } finally {
+                    builder.set(CaptureRequest.CONTROL_AF_TRIGGER,
+                            CameraMetadata.CONTROL_AF_TRIGGER_IDLE);
+                }
+            case REQUEST_PRECAPTURE:
+                // Pre-capture will trigger the flash if the AE is not
+                // converged
+                builder = getPreviewRequestBuilder();
+                builder.set(CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER,
+                        CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER_START);
+                try {
+                    return build(builder);
+                } finally {
+                    builder.set(CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER,
+                            CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER_IDLE);
+                }
+            case REQUEST_STILL:
+                builder = createStillRequestBuilder();
+                //Use the tag to find this request later
+                builder.setTag(mCaptureKey);
+                return build(builder);
+            case REQUEST_BURST:
+                builder = createStillRequestBuilder();
+                //Keep exposure identical across the burst
+                builder.set(CaptureRequest.CONTROL_AE_LOCK, true);
+                builder.setTag(mBurstKey);
+                return build(builder);
+            case REQUEST_UNLOCK:
+                // Reset the auto-focus trigger
+                builder = getPreviewRequestBuilder();
+                builder.set(CaptureRequest.CONTROL_AF_TRIGGER,
+                        CameraMetadata.CONTROL_AF_TRIGGER_CANCEL);
+                builder.set(CaptureRequest.CONTROL_AE_MODE,
+                        CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH);
+                try {
+                    return build(builder);
+                } finally {
+                    builder.set(CaptureRequest.CONTROL_AF_TRIGGER,
+                            CameraMetadata.CONTROL_AF_TRIGGER_IDLE);
+                }
+            default:
+                throw new IllegalArgumentException("Unknown request");
+        }
+    }
+
+    private CaptureRequest build(CaptureRequest.Builder builder) {
+        mRequestsBuilt.incrementAndGet();
+        return builder.build();
+    }
+
+    //Still request with the same AE/AF modes as the preview
+    private CaptureRequest.Builder createStillRequestBuilder()
+            throws CameraAccessException {
+        //A call into the camera service
+        mTemplatesCreated.incrementAndGet();
+        final CaptureRequest.Builder captureBuilder = getCameraDevice()
+                .createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
+        captureBuilder.addTarget(mCaptureTarget.getTargetSurface());
+
+        // Use the same AE and AF modes as the preview.
+        captureBuilder.set(CaptureRequest.CONTROL_AF_MODE,
+                CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
+        captureBuilder.set(CaptureRequest.CONTROL_AE_MODE,
+                CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH);
+
+        /*
+         * Orient captured image properly with respect to the display.
+         * We are fixed in portrait, if the activity is allowed to
+         * rotate, that rotation will need to be accounted for as well.
+         */
+        int orientation = mCaptureTarget.getSensorOrientation();
+        captureBuilder.set(CaptureRequest.JPEG_ORIENTATION, orientation);
+
+        return captureBuilder;
+    }
+
     /**
      * Unlock the focus.
      * This method should be called when still image capture is finished.
      */
     private void unlockFocus() {
         try {
-            // Reset the auto-focus trigger
-            final CaptureRequest.Builder builder = getPreviewRequestBuilder();
-            builder.set(CaptureRequest.CONTROL_AF_TRIGGER,
-                    CameraMetadata.CONTROL_AF_TRIGGER_CANCEL);
-            builder.set(CaptureRequest.CONTROL_AE_MODE,
-                    CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH);
-
             // After this, the camera will go back to the normal preview.
-            mState = STATE_IDLE;
-            getActiveCaptureSession().setRepeatingRequest(builder.build(),
-                    mCaptureCallback,
-                    null);
+            getActiveCaptureSession().setRepeatingRequest(
+                    getRequest(REQUEST_UNLOCK),
+                    getRepeatingCaptureCallback(),
+                    getCameraHandler());
         } catch (CameraAccessException e) {
-            e.printStackTrace();
+            Log.w(TAG, "Unable to unlock focus", e);
+        } catch (IllegalStateException e) {
+            //Session already closed, the next one starts unlocked
+            Log.w(TAG, "Unable to unlock focus", e);
+        }
+    }
+
+    /**
+     * Print the cost of setting up requests, per shot, e.g. from
+     * Activity.dump(). Prebuilt requests are counted too, so the
+     * numbers compare directly with the cache off.
+     */
+    public void dumpRequestStats(String prefix, PrintWriter writer) {
+        long shots = mShots.get();
+        writer.print(prefix);
+        writer.print("Capture requests: cache=");
+        writer.print(mRequestCacheEnabled ? "on" : "off");
+        writer.print(" shots=");
+        writer.print(shots);
+        writer.print(" templates=");
+        writer.print(mTemplatesCreated.get());
+        writer.print(" built=");
+        writer.println(mRequestsBuilt.get());
+        if (shots > 0) {
+            writer.print(prefix);
+            writer.println(String.format("  Per shot: templates=%.2f "
+                            + "built=%.2f",
+                    mTemplatesCreated.get() / (double) shots,
+                    mRequestsBuilt.get() / (double) shots));
         }
+        writer.print(prefix);
+        writer.print("  Setup per request: ");
+        writer.println(mRequestSetup);
     }
 }
@@ -0,0 +1,182 @@
+package com.example.android.enhancedcamera.image;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import com.example.android.enhancedcamera.processing.BandKernel;
+import com.example.android.enhancedcamera.processing.SharpenKernel;
+import com.example.android.enhancedcamera.processing.TiledProcessor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Optional processing of full resolution stills before they are saved.
+ * The JPEG is decoded, sharpened in parallel bands by a
+ * {@link TiledProcessor}, and encoded again.
+ *
+ * The bitmap is sharpened in place. Each band copies its rows out into
+ * band-sized buffers of the worker thread, and writes them back once
+ * done. The rows on either side of a band belong to its neighbors,
+ * which may already have written theirs, so the first and last row of
+ * every band are kept aside before processing starts.
+ *
+ * The bitmap, edge rows, band buffers and output stream are kept from
+ * one image to the next, so a run of same-sized captures allocates
+ * nothing after the first. Beyond the bitmap, that is two rows per band
+ * and two bands per worker. Not thread safe: process one image at a
+ * time.
+ */
+public class StillPostProcessor {
+
+    private static final int JPEG_QUALITY = 95;
+
+    //Output stream whose buffer can be used in place
+    private static class ReusableOutputStream extends ByteArrayOutputStream {
+        ByteBuffer asBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
+    private final TiledProcessor mProcessor;
+    private final SharpenKernel mKernel;
+    private final BitmapFactory.Options mOptions = new BitmapFactory.Options();
+    private final ReusableOutputStream mOutput = new ReusableOutputStream();
+
+    private byte[] mInput = new byte[0];
+    private Bitmap mBitmap;
+    //Original first and last row of each band, in band order
+    private int[] mEdges = new int[0];
+    private int mBandRows;
+
+    /**
+     * @param parallelism Threads to process each image with
+     * @param strength Sharpening, see {@link SharpenKernel}
+     */
+    public StillPostProcessor(int parallelism, int strength) {
+        mProcessor = new TiledProcessor(parallelism);
+        mKernel = new SharpenKernel(strength);
+        mOptions.inMutable = true;
+    }
+
+    /**
+     * Process the remaining bytes of a JPEG. The result is valid until
+     * the next call.
+     */
+    public ByteBuffer process(ByteBuffer jpeg) throws IOException {
+        int length = jpeg.remaining();
+        if (mInput.length < length) {
+            mInput = new byte[length];
+        }
+        jpeg.duplicate().get(mInput, 0, length);
+
+        Bitmap bitmap = decode(length);
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        saveEdges(bitmap, width, height);
+        mProcessor.process(mBandKernel, height, width * 4);
+
+        mOutput.reset();
+        if (!bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY,
+                mOutput)) {
+            throw new IOException("Unable to encode processed image");
+        }
+        return mOutput.asBuffer();
+    }
+
+    private void saveEdges(Bitmap bitmap, int width, int height) {
+        mBandRows = TiledProcessor.getBandRows(width * 4, height);
+        int bands = (height + mBandRows - 1) / mBandRows;
+        if (mEdges.length < 2 * bands * width) {
+            mEdges = new int[2 * bands * width];
+        }
+
+        for (int band = 0; band < bands; band++) {
+            int rowStart = band * mBandRows;
+            int rowEnd = Math.min(height, rowStart + mBandRows);
+            bitmap.getPixels(mEdges, 2 * band * width, width,
+                    0, rowStart, width, 1);
+            bitmap.getPixels(mEdges, (2 * band + 1) * width, width,
+                    0, rowEnd - 1, width, 1);
+        }
+    }
+
+    //Sharpens the bitmap one band at a time, in the worker's buffers
+    private final BandKernel mBandKernel = new BandKernel() {
+        @Override
+        public void processBand(int rowStart, int rowEnd) {
+            Bitmap bitmap = mBitmap;
+            int width = bitmap.getWidth();
+            int height = bitmap.getHeight();
+            //The band plus a row either side, where there is one
+            int top = Math.max(0, rowStart - 1);
+            int bottom = Math.min(height, rowEnd + 1);
+            int rows = bottom - top;
+            int[][] buffers = mBandBuffers.get();
+            if (buffers[0].length < rows * width) {
+                buffers[0] = new int[rows * width];
+                buffers[1] = new int[rows * width];
+            }
+            int[] src = buffers[0];
+            int[] dst = buffers[1];
+
+            int band = rowStart / mBandRows;
+            if (top < rowStart) {
+                //Last row of the band above
+                System.arraycopy(mEdges, (2 * band - 1) * width,
+                        src, 0, width);
+            }
+            int offset = (rowStart - top) * width;
+            bitmap.getPixels(src, offset, width, 0, rowStart, width,
+                    rowEnd - rowStart);
+            if (bottom > rowEnd) {
+                //First row of the band below
+                System.arraycopy(mEdges, (2 * band + 2) * width,
+                        src, (rows - 1) * width, width);
+            }
+
+            mKernel.sharpenRows(src, dst, width, rows,
+                    rowStart - top, rowEnd - top);
+            bitmap.setPixels(dst, offset, width, 0, rowStart, width,
+                    rowEnd - rowStart);
+        }
+    };
+
+    //Source and output rows of one band, per worker thread
+    private final ThreadLocal<int[][]> mBandBuffers =
+            new ThreadLocal<int[][]>() {
+        @Override
+        protected int[][] initialValue() {
+            return new int[][] { new int[0], new int[0] };
+        }
+    };
+
+    //Decode into the last bitmap, if there is one it can be reused for
+    private Bitmap decode(int length) throws IOException {
+        mOptions.inBitmap = mBitmap;
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeByteArray(mInput, 0, length,
+                    mOptions);
+        } catch (IllegalArgumentException e) {
+            //Image is larger than the one before
+            mOptions.inBitmap = null;
+            bitmap = BitmapFactory.decodeByteArray(mInput, 0, length,
+                    mOptions);
+        }
+        if (bitmap == null) {
+            throw new IOException("Unable to decode captured image");
+        }
+        mBitmap = bitmap;
+        return bitmap;
+    }
+
+    public void close() {
+        mProcessor.shutdown();
+        if (mBitmap != null) {
+            mBitmap.recycle();
+            mBitmap = null;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.example.android.enhancedcamera.image;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.media.Image;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes YUV_420_888 frames as JPEG, for stills taken from a YUV
+ * stream such as the {@link ZslRingBuffer}. The planes are packed into
+ * NV21, whatever their row and pixel strides, and compressed with
+ * YuvImage.
+ *
+ * Not thread safe; the packing buffers are kept between frames, so use
+ * one encoder per thread.
+ */
+public class YuvJpegEncoder {
+
+    private final int mQuality;
+    private final ByteArrayOutputStream mOutput = new ByteArrayOutputStream();
+    private byte[] mNv21;
+    private byte[] mRow;
+
+    public YuvJpegEncoder(int quality) {
+        mQuality = quality;
+    }
+
+    /**
+     * Encode the image, which stays open. The returned buffer is not
+     * shared with the encoder.
+     */
+    public ByteBuffer encode(Image image) {
+        if (image.getFormat() != ImageFormat.YUV_420_888) {
+            throw new IllegalArgumentException("Not a YUV_420_888 image");
+        }
+
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int lumaSize = width * height;
+        int size = lumaSize + 2 * (width / 2) * (height / 2);
+        if (mNv21 == null || mNv21.length != size) {
+            mNv21 = new byte[size];
+        }
+
+        Image.Plane[] planes = image.getPlanes();
+        copyPlane(planes[0], width, height, 0, 1);
+        //NV21 interleaves V and U at half resolution, V first
+        copyPlane(planes[2], width / 2, height / 2, lumaSize, 2);
+        copyPlane(planes[1], width / 2, height / 2, lumaSize + 1, 2);
+
+        YuvImage yuvImage = new YuvImage(mNv21, ImageFormat.NV21,
+                width, height, null);
+        mOutput.reset();
+        yuvImage.compressToJpeg(new Rect(0, 0, width, height), mQuality,
+                mOutput);
+        return ByteBuffer.wrap(mOutput.toByteArray());
+    }
+
+    //Copy a plane into the NV21 buffer, every outputStride bytes
+    private void copyPlane(Image.Plane plane, int width, int height,
+                           int offset, int outputStride) {
+        ByteBuffer buffer = plane.getBuffer();
+        int rowStride = plane.getRowStride();
+        int pixelStride = plane.getPixelStride();
+        if (mRow == null || mRow.length < rowStride) {
+            mRow = new byte[rowStride];
+        }
+
+        int output = offset;
+        for (int y = 0; y < height; y++) {
+            int rowStart = y * rowStride;
+            //The last row need not be padded out to the full stride
+            int length = Math.min(rowStride, buffer.limit() - rowStart);
+            buffer.position(rowStart);
+            if (pixelStride == 1 && outputStride == 1) {
+                buffer.get(mNv21, output, width);
+                output += width;
+                continue;
+            }
+
+            buffer.get(mRow, 0, length);
+            for (int x = 0; x < width; x++) {
+                mNv21[output] = mRow[x * pixelStride];
+                output += outputStride;
+            }
+        }
+        buffer.rewind();
+    }
+}
@@ -0,0 +1,209 @@
+package com.example.android.enhancedcamera.image;
+
+import android.graphics.ImageFormat;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.Size;
+import android.view.Surface;
+
+import com.example.android.enhancedcamera.common.CameraExecutor;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Zero-shutter-lag frame store. A YUV stream runs alongside the
+ * preview, and the most recent frames are kept here with their capture
+ * results so that a shutter press can be served from a frame that was
+ * already exposed, without issuing a new request. Frames are encoded
+ * only once one is saved (see {@link YuvJpegEncoder}).
+ *
+ * YUV streams have no stall, so the ring never slows the preview down.
+ * Size it with ResolutionPlanner.pickYuvSize(), so that the preview,
+ * the ring and the JPEG still form a guaranteed stream combination;
+ * that is smaller than the still on most devices.
+ *
+ * Memory is bounded: at most {@code capacity} frames are retained, and
+ * the oldest is released before a new one is acquired, so the reader
+ * always has a free buffer and the camera never waits on us.
+ */
+public class ZslRingBuffer implements ImageReader.OnImageAvailableListener {
+    private static final String TAG = ZslRingBuffer.class.getSimpleName();
+
+    //Frames that may be handed out for saving at the same time
+    private static final int MAX_DETACHED = 1;
+
+    /**
+     * A frame removed from the ring. Close it once the image data is
+     * no longer needed, to return its buffer to the camera.
+     */
+    public final class Frame implements AutoCloseable {
+        private final Image mImage;
+        private final TotalCaptureResult mResult;
+        private boolean mReleased;
+
+        private Frame(Image image, TotalCaptureResult result) {
+            mImage = image;
+            mResult = result;
+        }
+
+        public Image getImage() {
+            return mImage;
+        }
+
+        //May be null if the result had not arrived yet
+        public TotalCaptureResult getResult() {
+            return mResult;
+        }
+
+        @Override
+        public void close() {
+            synchronized (ZslRingBuffer.this) {
+                if (mReleased) {
+                    return;
+                }
+                mReleased = true;
+                mImage.close();
+                mDetached--;
+                closeReaderIfIdle();
+            }
+        }
+    }
+
+    private final int mCapacity;
+    private final ImageReader mImageReader;
+    //Oldest frame first
+    private final ArrayDeque<Image> mFrames;
+    //Recent results keyed by sensor timestamp, bounded like the frames
+    private final Map<Long, TotalCaptureResult> mResults;
+
+    //Estimated sensor timestamp minus elapsedRealtimeNanos
+    private long mClockOffsetNs = Long.MIN_VALUE;
+    private int mDetached;
+    private boolean mClosed;
+
+    public ZslRingBuffer(Size imageSize, int capacity,
+                         CameraExecutor executor) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Invalid ring capacity");
+        }
+        mCapacity = capacity;
+        mFrames = new ArrayDeque<Image>(capacity);
+        mResults = new LinkedHashMap<Long, TotalCaptureResult>() {
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<Long, TotalCaptureResult> eldest) {
+                return size() > 2 * mCapacity;
+            }
+        };
+
+        mImageReader = ImageReader.newInstance(
+                imageSize.getWidth(),
+                imageSize.getHeight(),
+                ImageFormat.YUV_420_888, /* ImageFormat */
+                capacity + MAX_DETACHED /* MaxImages */ );
+        mImageReader.setOnImageAvailableListener(this,
+                executor.getHandler());
+    }
+
+    public Surface getTargetSurface() {
+        return mImageReader.getSurface();
+    }
+
+    @Override
+    public synchronized void onImageAvailable(ImageReader reader) {
+        if (mClosed) {
+            return;
+        }
+
+        //Evict first, so acquiring can never exceed the reader capacity
+        if (mFrames.size() >= mCapacity) {
+            mFrames.removeFirst().close();
+        }
+
+        Image image = reader.acquireNextImage();
+        if (image != null) {
+            mFrames.addLast(image);
+        }
+    }
+
+    /**
+     * Called as each preview frame starts exposing, to keep track of
+     * how the sensor clock relates to elapsedRealtimeNanos.
+     */
+    public synchronized void onCaptureStarted(long sensorTimestamp) {
+        //Callback latency only shrinks the difference, keep the largest
+        long offset = sensorTimestamp - SystemClock.elapsedRealtimeNanos();
+        if (offset > mClockOffsetNs) {
+            mClockOffsetNs = offset;
+        }
+    }
+
+    public synchronized void onCaptureCompleted(TotalCaptureResult result) {
+        Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+        if (timestamp != null) {
+            mResults.put(timestamp, result);
+        }
+    }
+
+    /**
+     * Remove and return the frame whose exposure started closest to the
+     * given time (in elapsedRealtimeNanos). Returns null if no frame is
+     * available or too many frames are already out for saving.
+     */
+    public synchronized Frame detachClosestFrame(long elapsedRealtimeNs) {
+        if (mClosed || mFrames.isEmpty() || mDetached >= MAX_DETACHED) {
+            return null;
+        }
+
+        long offset = (mClockOffsetNs == Long.MIN_VALUE) ? 0 : mClockOffsetNs;
+        long target = elapsedRealtimeNs + offset;
+
+        Image closest = null;
+        long closestDelta = Long.MAX_VALUE;
+        for (Image image : mFrames) {
+            long delta = Math.abs(image.getTimestamp() - target);
+            if (delta < closestDelta) {
+                closest = image;
+                closestDelta = delta;
+            }
+        }
+
+        Iterator<Image> iterator = mFrames.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next() == closest) {
+                iterator.remove();
+                break;
+            }
+        }
+        mDetached++;
+
+        Log.v(TAG, "Selected frame " + (closestDelta / 1000) + "us from press");
+        return new Frame(closest, mResults.get(closest.getTimestamp()));
+    }
+
+    /**
+     * Release every retained frame. The reader itself is closed once
+     * any detached frame has been returned.
+     */
+    public synchronized void close() {
+        mClosed = true;
+        while (!mFrames.isEmpty()) {
+            mFrames.removeFirst().close();
+        }
+        mResults.clear();
+        closeReaderIfIdle();
+    }
+
+    private void closeReaderIfIdle() {
+        if (mClosed && mDetached == 0) {
+            mImageReader.close();
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.example.android.enhancedcamera.processing;
+
+/**
+ * Per-pixel work over one horizontal band of a frame, as scheduled by
+ * {@link TiledProcessor}.
+ *
+ * Bands run concurrently and in no particular order. For the output to
+ * be the same every time, a kernel must only write the rows of its own
+ * band, and only read from buffers that no band writes to.
+ */
+public interface BandKernel {
+
+    /** Process rows from rowStart up to, not including, rowEnd */
+    void processBand(int rowStart, int rowEnd);
+}
@@ -0,0 +1,85 @@
+package com.example.android.enhancedcamera.processing;
+
+/**
+ * 3x3 sharpen of packed ARGB pixels: each color channel is pushed away
+ * from the average of its four neighbors. Edge pixels are copied as is.
+ * Reads from one buffer and writes another, so bands never see each
+ * other's output.
+ */
+public class SharpenKernel implements BandKernel {
+
+    /** Strength at which the full difference is added */
+    public static final int FULL_STRENGTH = 16;
+
+    private final int mStrength;
+
+    private int[] mSrc;
+    private int[] mDst;
+    private int mWidth;
+    private int mHeight;
+
+    /**
+     * @param strength Amount of sharpening, in sixteenths
+     */
+    public SharpenKernel(int strength) {
+        mStrength = strength;
+    }
+
+    /**
+     * Set the buffers for the next frame, width * height pixels each.
+     */
+    public void setFrame(int[] src, int[] dst, int width, int height) {
+        mSrc = src;
+        mDst = dst;
+        mWidth = width;
+        mHeight = height;
+    }
+
+    @Override
+    public void processBand(int rowStart, int rowEnd) {
+        sharpenRows(mSrc, mDst, mWidth, mHeight, rowStart, rowEnd);
+    }
+
+    /**
+     * Sharpen rows of any pair of buffers, width * height pixels each,
+     * without touching the frame set on the kernel. Safe to call from
+     * several threads at once.
+     */
+    public void sharpenRows(int[] src, int[] dst, int width, int height,
+                            int rowStart, int rowEnd) {
+        int lastRow = height - 1;
+
+        for (int row = rowStart; row < rowEnd; row++) {
+            int offset = row * width;
+            if (row == 0 || row == lastRow || width < 3) {
+                System.arraycopy(src, offset, dst, offset, width);
+                continue;
+            }
+
+            dst[offset] = src[offset];
+            for (int i = offset + 1; i < offset + width - 1; i++) {
+                int center = src[i];
+                int up = src[i - width];
+                int down = src[i + width];
+                int left = src[i - 1];
+                int right = src[i + 1];
+
+                dst[i] = (center & 0xFF000000)
+                        | (sharpen(center, up, down, left, right, 16) << 16)
+                        | (sharpen(center, up, down, left, right, 8) << 8)
+                        | sharpen(center, up, down, left, right, 0);
+            }
+            dst[offset + width - 1] = src[offset + width - 1];
+        }
+    }
+
+    //One channel, picked out by its shift
+    private int sharpen(int center, int up, int down, int left, int right,
+                        int shift) {
+        int c = (center >> shift) & 0xFF;
+        int detail = 4 * c - ((up >> shift) & 0xFF) - ((down >> shift) & 0xFF)
+                - ((left >> shift) & 0xFF) - ((right >> shift) & 0xFF);
+        int value = c + ((detail * mStrength) >> 4);
+        return (value < 0) ? 0 : (value > 255) ? 255 : value;
+    }
+}
@@ -0,0 +1,78 @@
+package com.example.android.enhancedcamera.processing;
+
+/**
+ * Time taken by a kernel over a frame at each thread count from one up
+ * to a maximum, and the speed-up of each over a single thread. Shows
+ * where adding cores stops paying off, usually at memory bandwidth.
+ *
+ * Pure Java, so it can be measured on a plain JVM as well as on a
+ * device.
+ */
+public final class SpeedupCurve {
+
+    //Untimed runs at each thread count, to settle the JIT and pools
+    private static final int WARMUP_RUNS = 2;
+
+    //Best time for parallelism i + 1
+    private final long[] mBestNs;
+
+    private SpeedupCurve(long[] bestNs) {
+        mBestNs = bestNs;
+    }
+
+    /**
+     * Run the kernel over a frame of the given geometry with 1 to
+     * maxParallelism threads, keeping the best of the timed runs.
+     * Blocks for the duration.
+     */
+    public static SpeedupCurve measure(BandKernel kernel, int height,
+                                       int bytesPerRow, int maxParallelism,
+                                       int runs) {
+        long[] bestNs = new long[maxParallelism];
+        for (int parallelism = 1; parallelism <= maxParallelism;
+                parallelism++) {
+            TiledProcessor processor = new TiledProcessor(parallelism);
+            try {
+                for (int i = 0; i < WARMUP_RUNS; i++) {
+                    processor.process(kernel, height, bytesPerRow);
+                }
+
+                long best = Long.MAX_VALUE;
+                for (int i = 0; i < runs; i++) {
+                    long start = System.nanoTime();
+                    processor.process(kernel, height, bytesPerRow);
+                    best = Math.min(best, System.nanoTime() - start);
+                }
+                bestNs[parallelism - 1] = best;
+            } finally {
+                processor.shutdown();
+            }
+        }
+        return new SpeedupCurve(bestNs);
+    }
+
+    public int getMaxParallelism() {
+        return mBestNs.length;
+    }
+
+    public long getBestNs(int parallelism) {
+        return mBestNs[parallelism - 1];
+    }
+
+    //Single thread time over the time with this many threads
+    public double getSpeedup(int parallelism) {
+        return (double) mBestNs[0] / Math.max(1, getBestNs(parallelism));
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (int parallelism = 1; parallelism <= mBestNs.length;
+                parallelism++) {
+            builder.append(String.format("%2d threads: %8.2fms %5.2fx%n",
+                    parallelism,
+                    getBestNs(parallelism) / 1e6, getSpeedup(parallelism)));
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,95 @@
+package com.example.android.enhancedcamera.processing;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs a {@link BandKernel} over a frame in parallel, on a fork-join
+ * pool. The frame is cut into bands of whole rows, sized to stay in a
+ * core's cache, and the range of bands is split in halves until each
+ * task holds a single band; idle workers steal the rest.
+ *
+ * Band boundaries depend only on the frame geometry, never on the
+ * number of threads, so a kernel sees the same bands whatever the
+ * parallelism. Works for any layout with rows: packed RGB, or the
+ * planes of a YUV frame.
+ */
+public class TiledProcessor {
+
+    //Bands of about this size fit a core's L2 cache with room to spare
+    private static final int TARGET_BAND_BYTES = 64 * 1024;
+
+    private final ForkJoinPool mPool;
+
+    public TiledProcessor(int parallelism) {
+        mPool = new ForkJoinPool(parallelism);
+    }
+
+    public int getParallelism() {
+        return mPool.getParallelism();
+    }
+
+    /**
+     * Rows in each band, for rows of the given size.
+     */
+    public static int getBandRows(int bytesPerRow, int height) {
+        int rows = TARGET_BAND_BYTES / Math.max(1, bytesPerRow);
+        return Math.max(1, Math.min(height, rows));
+    }
+
+    /**
+     * Run the kernel over every row of the frame, and return once all
+     * bands are done. Anything the kernel throws is rethrown here.
+     */
+    public void process(BandKernel kernel, int height, int bytesPerRow) {
+        if (height <= 0) {
+            return;
+        }
+        int bandRows = getBandRows(bytesPerRow, height);
+        int bands = (height + bandRows - 1) / bandRows;
+        mPool.invoke(new BandTask(kernel, height, bandRows, 0, bands));
+    }
+
+    /**
+     * Stop the workers. Processing already underway runs to the end.
+     */
+    public void shutdown() {
+        mPool.shutdown();
+    }
+
+    //A range of bands, split until it is a single band. Never serialized
+    @SuppressWarnings("serial")
+    private static class BandTask extends RecursiveAction {
+        private final BandKernel mKernel;
+        private final int mHeight;
+        private final int mBandRows;
+        private final int mFirstBand;
+        private final int mEndBand;
+
+        BandTask(BandKernel kernel, int height, int bandRows,
+                 int firstBand, int endBand) {
+            mKernel = kernel;
+            mHeight = height;
+            mBandRows = bandRows;
+            mFirstBand = firstBand;
+            mEndBand = endBand;
+        }
+
+        @Override
+        protected void compute() {
+            if (mEndBand - mFirstBand == 1) {
+                int rowStart = mFirstBand * mBandRows;
+                mKernel.processBand(rowStart,
+                        Math.min(mHeight, rowStart + mBandRows));
+                return;
+            }
+
+            int middle = (mFirstBand + mEndBand) >>> 1;
+            invokeAll(
+                    new BandTask(mKernel, mHeight, mBandRows,
+                            mFirstBand, middle),
+                    new BandTask(mKernel, mHeight, mBandRows,
+                            middle, mEndBand));
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package com.example.android.enhancedcamera.video;
+
+import android.util.Log;
+import android.util.Size;
+
+/**
+ * Picks the video bitrate for a recording from its pixel rate and a
+ * quality tier, instead of one fixed rate for every resolution.
+ *
+ * During a recording the engine reports the data it hands to its
+ * output, and the policy compares that with how far the output file
+ * has actually grown. The muxer writes on its own thread, so a write
+ * returning says nothing about storage. If the data not yet in the
+ * file grows past what the muxer buffers anyway, and keeps growing,
+ * the bitrate steps down, to no less than a floor relative to the
+ * starting rate. It never steps back up within a recording.
+ *
+ * Getters are safe to call from any thread, to audit the budget.
+ */
+public class BitratePolicy {
+    private static final String TAG = BitratePolicy.class.getSimpleName();
+
+    /** Returned when the bitrate should stay as it is */
+    public static final int NO_CHANGE = 0;
+
+    public enum Quality {
+        LOW(0.05f),
+        STANDARD(0.1f),
+        HIGH(0.2f);
+
+        //Encoded bits spent per pixel of each frame
+        private final float mBitsPerPixel;
+
+        Quality(float bitsPerPixel) {
+            mBitsPerPixel = bitsPerPixel;
+        }
+
+        public float getBitsPerPixel() {
+            return mBitsPerPixel;
+        }
+    }
+
+    //Bounds for any computed bitrate
+    private static final int MIN_BIT_RATE = 500000;
+    private static final int MAX_BIT_RATE = 40000000;
+
+    //Storage throughput is judged over windows of this length
+    private static final long WINDOW_NS = 1000000000L;
+    //The muxer holds samples back to interleave its chunks, so this
+    //much of the stream may be missing from the file at any time
+    private static final long MAX_BACKLOG_NS = 2000000000L;
+    //Storage probed ahead of a recording must sustain this multiple of
+    //the stream's byte rate
+    static final float HEADROOM = 1.5f;
+    //Each adjustment keeps this fraction of the current bitrate
+    private static final float STEP_DOWN = 0.75f;
+    //Adjustments never go below this fraction of the starting bitrate
+    private static final float FLOOR = 0.25f;
+
+    private final Size mVideoSize;
+    private final int mFrameRate;
+    private final Quality mQuality;
+    private final int mInitialBitRate;
+    private final int mMinimumBitRate;
+
+    private volatile int mBitRate;
+    private volatile long mMeasuredWriteRate;
+    private volatile int mStepDowns;
+
+    //Current measurement window, only touched by the writing thread
+    private long mWindowStartNs;
+    private long mWindowStoredBytes;
+    private long mWrittenBytes;
+    private long mBacklogBytes;
+
+    public BitratePolicy(Size videoSize, int frameRate, Quality quality) {
+        mVideoSize = videoSize;
+        mFrameRate = frameRate;
+        mQuality = quality;
+        mInitialBitRate = computeBitRate(videoSize, frameRate, quality);
+        mMinimumBitRate = Math.max(MIN_BIT_RATE,
+                (int) (mInitialBitRate * FLOOR));
+        reset();
+    }
+
+    /**
+     * Bitrate for the given stream: pixels per second times the bits
+     * per pixel of the quality tier, within fixed bounds.
+     */
+    public static int computeBitRate(Size videoSize, int frameRate,
+                                     Quality quality) {
+        long pixelRate = (long) videoSize.getWidth() * videoSize.getHeight()
+                * frameRate;
+        long bitRate = (long) (pixelRate * quality.getBitsPerPixel());
+        return (int) Math.max(MIN_BIT_RATE, Math.min(MAX_BIT_RATE, bitRate));
+    }
+
+    /**
+     * Return to the starting bitrate, ahead of a new recording.
+     */
+    public void reset() {
+        mBitRate = mInitialBitRate;
+        mMeasuredWriteRate = 0;
+        mStepDowns = 0;
+        mWindowStartNs = 0;
+        mWindowStoredBytes = 0;
+        mWrittenBytes = 0;
+        mBacklogBytes = 0;
+    }
+
+    /**
+     * Account for encoded data handed to the output. Once per window the
+     * output's file size is read, to see what storage actually kept up
+     * with. Returns the new bitrate if the encoder should slow down, or
+     * {@link #NO_CHANGE}.
+     */
+    int onDataWritten(long bytes, VideoOutput output, long nowNs) {
+        mWrittenBytes += bytes;
+        if (mWindowStartNs == 0) {
+            mWindowStartNs = nowNs;
+            mWindowStoredBytes = output.getStoredBytes();
+            return NO_CHANGE;
+        }
+        if (nowNs - mWindowStartNs < WINDOW_NS) {
+            return NO_CHANGE;
+        }
+
+        //What reached the file over the window, in wall time
+        long storedBytes = output.getStoredBytes();
+        long writeRate = (storedBytes - mWindowStoredBytes) * 1000000000L
+                / (nowNs - mWindowStartNs);
+        long backlog = mWrittenBytes - storedBytes;
+        long lastBacklog = mBacklogBytes;
+        mMeasuredWriteRate = Math.max(0, writeRate);
+        mWindowStartNs = nowNs;
+        mWindowStoredBytes = storedBytes;
+        mBacklogBytes = backlog;
+
+        long maxBacklog = getByteRate() * MAX_BACKLOG_NS / 1000000000L;
+        if (backlog <= maxBacklog || backlog <= lastBacklog) {
+            return NO_CHANGE;
+        }
+        int bitRate = Math.max(mMinimumBitRate, (int) (mBitRate * STEP_DOWN));
+        if (bitRate >= mBitRate) {
+            //Already at the floor
+            return NO_CHANGE;
+        }
+
+        Log.w(TAG, "Storage at " + (writeRate / 1024) + "KB/s, "
+                + (backlog / 1024) + "KB behind, reducing to "
+                + (bitRate / 1000) + "kbps");
+        mBitRate = bitRate;
+        mStepDowns++;
+        return bitRate;
+    }
+
+    public Size getVideoSize() {
+        return mVideoSize;
+    }
+
+    public int getFrameRate() {
+        return mFrameRate;
+    }
+
+    public Quality getQuality() {
+        return mQuality;
+    }
+
+    public int getInitialBitRate() {
+        return mInitialBitRate;
+    }
+
+    //Current target, lower than the initial rate after any step down
+    public int getBitRate() {
+        return mBitRate;
+    }
+
+    //Bytes per second the current bitrate commits to storage
+    public long getByteRate() {
+        return mBitRate / 8;
+    }
+
+    //Bytes per second the file grew by in the last full window, or 0
+    public long getMeasuredWriteRate() {
+        return mMeasuredWriteRate;
+    }
+
+    public int getStepDowns() {
+        return mStepDowns;
+    }
+
+    @Override
+    public String toString() {
+        return mVideoSize + "@" + mFrameRate + "fps " + mQuality
+                + ": " + (mBitRate / 1000) + "kbps ("
+                + (getByteRate() / 1024) + "KB/s) of "
+                + (mInitialBitRate / 1000) + "kbps, "
+                + mStepDowns + " step downs";
+    }
+}
@@ -0,0 +1,390 @@
+package com.example.android.enhancedcamera.video;
+
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Bundle;
+import android.os.Environment;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.Size;
+import android.view.Surface;
+
+import com.example.android.enhancedcamera.common.MediaIndexer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Recording engine that feeds camera frames into a MediaCodec input
+ * surface and muxes the encoded stream with MediaMuxer, so the encoder
+ * settings are under our control. Video only, there is no audio track.
+ *
+ * The encoder runs from {@link #prepare()} on, since the camera is
+ * already rendering into its surface. Output is discarded until
+ * recording starts; a key frame is requested at that point and muxing
+ * begins with it.
+ *
+ * With a {@link BitratePolicy}, the data handed to the output is
+ * reported to it, checked against what reached storage, and the
+ * encoder bitrate is lowered when it asks.
+ *
+ * Storage is checked when the encoder is prepared. Once a recording
+ * has used up its storage budget, further output is dropped and the
+ * stop listener is told, so the file can still be finished cleanly.
+ */
+public class CodecVideoSaver implements RecordingEngine {
+    private static final String TAG = CodecVideoSaver.class.getSimpleName();
+
+    //How long the drain thread waits for each output buffer
+    private static final long DRAIN_TIMEOUT_US = 10000;
+    //How long to wait for the encoder to flush out at the end
+    private static final long STOP_TIMEOUT_MS = 2000;
+
+    private final Context mContext;
+    private final File mPicturesDirectory;
+    private final int mSensorOrientation;
+    private final Size mVideoSize;
+    private final EncoderSettings mSettings;
+    private final BitratePolicy mBitratePolicy;
+    private final RecordingStorage mStorage;
+
+    private MediaCodec mEncoder;
+    private Surface mInputSurface;
+    private VideoOutput mOutput;
+    private Thread mDrainThread;
+    private volatile boolean mDraining;
+    private volatile boolean mRecording;
+    private volatile StopListener mStopListener;
+    //Bytes this recording may write, set when prepared
+    private volatile long mStorageBudget;
+    private long mStorageByteRate;
+
+    //Only touched on the drain thread while it runs
+    private MediaFormat mOutputFormat;
+    private long mFirstPresentationUs;
+    private long mFirstFrameNs;
+    private long mRecordedBytes;
+    //Set on the drain thread or the storage watcher, under this lock
+    private boolean mStopRequested;
+
+    //Written on the drain thread only, readable anywhere
+    private volatile long mEncodedFrames;
+    private volatile long mKeyFrames;
+    private volatile long mEncodedBytes;
+    private volatile long mMediaDurationUs;
+    private volatile long mElapsedNs;
+
+    public CodecVideoSaver(Context context, Size videoSize,
+                           int sensorOrientation, EncoderSettings settings) {
+        this(context, videoSize, sensorOrientation, settings, null);
+    }
+
+    //Bitrate adapts to storage under the given policy, if not null
+    public CodecVideoSaver(Context context, Size videoSize,
+                           int sensorOrientation, EncoderSettings settings,
+                           BitratePolicy bitratePolicy) {
+        mContext = context.getApplicationContext();
+        mVideoSize = videoSize;
+        mSensorOrientation = sensorOrientation;
+        mSettings = settings;
+        mBitratePolicy = bitratePolicy;
+
+        //Save all videos in the default public pictures directory
+        mPicturesDirectory = Environment.getExternalStoragePublicDirectory(
+                Environment.DIRECTORY_PICTURES);
+        mStorage = new RecordingStorage(mPicturesDirectory);
+    }
+
+    @Override
+    public void setStopListener(StopListener listener) {
+        mStopListener = listener;
+    }
+
+    //Where encoded frames go, a single file unless overridden
+    VideoOutput createOutput() {
+        return new SingleFileOutput(mPicturesDirectory, mSensorOrientation);
+    }
+
+    /*
+     * Pre-flight storage check for a recording at the given byte rate,
+     * returning its budget. The default is a single file in Pictures,
+     * whose volume is also watched while recording.
+     */
+    long checkStorage(long byteRate) throws IOException {
+        return mStorage.checkRecording(byteRate);
+    }
+
+    public Size getVideoSize() {
+        return mVideoSize;
+    }
+
+    public EncoderSettings getSettings() {
+        return mSettings;
+    }
+
+    /**
+     * Counters since the encoder was last prepared. Output discarded
+     * before recording started is counted too.
+     */
+    public EncoderStats getStats() {
+        return new EncoderStats(mEncodedFrames, mKeyFrames, mEncodedBytes,
+                mMediaDurationUs, mElapsedNs);
+    }
+
+    @Override
+    public void prepare() throws IOException {
+        //Last prepare didn't result in a real recording
+        close();
+
+        long byteRate = (mBitratePolicy != null)
+                ? mBitratePolicy.getByteRate()
+                : mSettings.getBitRate() / 8;
+        mStorageBudget = checkStorage(byteRate);
+        mStorageByteRate = byteRate;
+
+        mEncoder = MediaCodec.createEncoderByType(
+                MediaFormat.MIMETYPE_VIDEO_AVC);
+        try {
+            mEncoder.configure(mSettings.createFormat(mVideoSize),
+                    null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            mInputSurface = mEncoder.createInputSurface();
+            mEncoder.start();
+
+            mOutput = createOutput();
+            mOutput.open();
+        } catch (IOException e) {
+            close();
+            throw e;
+        } catch (IllegalStateException e) {
+            //Settings the encoder doesn't support end up here
+            close();
+            throw new IOException("Unable to configure encoder: "
+                    + mSettings, e);
+        }
+
+        resetCounters();
+        if (mBitratePolicy != null) {
+            mBitratePolicy.reset();
+        }
+        mRecording = false;
+        mDraining = true;
+        mDrainThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drainEncoder();
+            }
+        }, "EncoderDrain");
+        mDrainThread.start();
+        Log.d(TAG, "Encoder prepared: " + mSettings);
+    }
+
+    @Override
+    public Surface getRecorderSurface() {
+        return mInputSurface;
+    }
+
+    @Override
+    public void startRecording() {
+        Log.d(TAG, "Video Recording Start!");
+        if (mEncoder == null) {
+            throw new IllegalStateException("Encoder is not prepared");
+        }
+
+        //Start the file on a fresh key frame
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        mEncoder.setParameters(params);
+        mRecording = true;
+
+        if (mStorageBudget != RecordingStorage.UNLIMITED) {
+            //Other writers may take the space the budget counted on
+            mStorage.startWatching(mStorageByteRate, new Runnable() {
+                @Override
+                public void run() {
+                    requestStop("Storage is full");
+                }
+            });
+        }
+    }
+
+    @Override
+    public File stopRecording() {
+        Log.d(TAG, "Video Recording Stop!");
+        File videoFile = finishRecording();
+
+        //Let the framework know about the file
+        MediaIndexer.getInstance(mContext)
+                .add(videoFile.getAbsolutePath(), "video/mp4");
+        return videoFile;
+    }
+
+    /*
+     * Flush the encoder and complete the output without publishing it.
+     * Throws if nothing was written.
+     */
+    File finishRecording() {
+        if (mEncoder == null) {
+            throw new IllegalStateException("Encoder is not prepared");
+        }
+
+        mStorage.stopWatching();
+        mEncoder.signalEndOfInputStream();
+        joinDrainThread(STOP_TIMEOUT_MS);
+        mRecording = false;
+        releaseEncoder();
+        Log.d(TAG, "Encoder: " + getStats());
+
+        File videoFile = mOutput.finish();
+        mOutput = null;
+        if (videoFile == null) {
+            throw new IllegalStateException("No frames were recorded");
+        }
+        return videoFile;
+    }
+
+    @Override
+    public void close() {
+        mStorage.stopWatching();
+        releaseEncoder();
+        //Last prepare didn't result in a real recording
+        if (mOutput != null) {
+            mOutput.discard();
+            mOutput = null;
+        }
+    }
+
+    //Wait for end of stream, for up to the timeout, then stop draining
+    private void joinDrainThread(long timeoutMs) {
+        if (mDrainThread == null) {
+            return;
+        }
+
+        try {
+            if (timeoutMs > 0) {
+                mDrainThread.join(timeoutMs);
+            }
+            mDraining = false;
+            mDrainThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mDrainThread = null;
+    }
+
+    private void releaseEncoder() {
+        joinDrainThread(0);
+
+        if (mEncoder != null) {
+            try {
+                mEncoder.stop();
+            } catch (IllegalStateException e) {
+                Log.w(TAG, "Encoder failed to stop", e);
+            }
+            mEncoder.release();
+            mEncoder = null;
+        }
+        if (mInputSurface != null) {
+            mInputSurface.release();
+            mInputSurface = null;
+        }
+        mRecording = false;
+    }
+
+    private void resetCounters() {
+        mOutputFormat = null;
+        mRecordedBytes = 0;
+        mStopRequested = false;
+        mEncodedFrames = 0;
+        mKeyFrames = 0;
+        mEncodedBytes = 0;
+        mMediaDurationUs = 0;
+        mElapsedNs = 0;
+    }
+
+    //Runs on the drain thread until end of stream, or until told to stop
+    private void drainEncoder() {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        while (mDraining) {
+            int index = mEncoder.dequeueOutputBuffer(info, DRAIN_TIMEOUT_US);
+            if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                mOutputFormat = mEncoder.getOutputFormat();
+                continue;
+            }
+            if (index < 0) {
+                //Nothing ready yet, or output buffers changed
+                continue;
+            }
+
+            //Codec config is already part of the output format
+            if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0
+                    && info.size > 0) {
+                writeSample(mEncoder.getOutputBuffer(index), info);
+            }
+            mEncoder.releaseOutputBuffer(index, false);
+
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                break;
+            }
+        }
+    }
+
+    private void writeSample(ByteBuffer data, MediaCodec.BufferInfo info) {
+        boolean keyFrame =
+                (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+
+        long now = SystemClock.elapsedRealtimeNanos();
+        if (mEncodedFrames == 0) {
+            mFirstFrameNs = now;
+            mFirstPresentationUs = info.presentationTimeUs;
+        }
+        mEncodedFrames++;
+        mEncodedBytes += info.size;
+        if (keyFrame) {
+            mKeyFrames++;
+        }
+        mMediaDurationUs = info.presentationTimeUs - mFirstPresentationUs;
+        mElapsedNs = now - mFirstFrameNs;
+
+        if (!mRecording || mOutputFormat == null) {
+            return;
+        }
+        if (mRecordedBytes + info.size > mStorageBudget) {
+            if (requestStop("Storage budget reached")) {
+                Log.w(TAG, "Storage budget of " + mStorageBudget
+                        + " bytes reached");
+            }
+            return;
+        }
+        mRecordedBytes += info.size;
+
+        data.position(info.offset);
+        data.limit(info.offset + info.size);
+        mOutput.writeSample(mOutputFormat, data, info, keyFrame);
+
+        if (mBitratePolicy != null) {
+            int bitRate = mBitratePolicy.onDataWritten(info.size, mOutput,
+                    SystemClock.elapsedRealtimeNanos());
+            if (bitRate != BitratePolicy.NO_CHANGE) {
+                Bundle params = new Bundle();
+                params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitRate);
+                mEncoder.setParameters(params);
+            }
+        }
+    }
+
+    //Storage is used up, have the recording stopped once. Called on
+    //the drain thread or the storage watcher; true if this call asked
+    private boolean requestStop(String reason) {
+        StopListener listener = mStopListener;
+        synchronized (this) {
+            if (mStopRequested || listener == null) {
+                return false;
+            }
+            mStopRequested = true;
+        }
+        listener.onStopRequested(this, reason);
+        return true;
+    }
+}
@@ -0,0 +1,127 @@
+package com.example.android.enhancedcamera.video;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.util.Size;
+
+/**
+ * Immutable H.264 encoder configuration for {@link CodecVideoSaver}.
+ * Profile, level and bitrate mode may be left {@link #UNSET}, in which
+ * case the encoder picks its own.
+ */
+public final class EncoderSettings {
+
+    public static final int UNSET = -1;
+
+    //Same as the MediaRecorder engine
+    private static final int DEFAULT_BIT_RATE = 10000000;
+    private static final int DEFAULT_FRAME_RATE = 30;
+    private static final int DEFAULT_I_FRAME_INTERVAL = 1;
+
+    //MediaFormat.KEY_LEVEL is only public from API 23, the key is older
+    private static final String KEY_LEVEL = "level";
+
+    private final int mBitRate;
+    private final int mFrameRate;
+    private final int mIFrameInterval;
+    private final int mProfile;
+    private final int mLevel;
+    private final int mBitRateMode;
+
+    /**
+     * @param bitRate Target bitrate, in bits per second
+     * @param frameRate Expected frame rate
+     * @param iFrameInterval Seconds between key frames
+     * @param profile A MediaCodecInfo.CodecProfileLevel AVC profile
+     * @param level A MediaCodecInfo.CodecProfileLevel AVC level
+     * @param bitRateMode A MediaCodecInfo.EncoderCapabilities mode
+     */
+    public EncoderSettings(int bitRate, int frameRate, int iFrameInterval,
+                           int profile, int level, int bitRateMode) {
+        if (bitRate <= 0 || frameRate <= 0 || iFrameInterval < 0) {
+            throw new IllegalArgumentException("Invalid encoder settings");
+        }
+        mBitRate = bitRate;
+        mFrameRate = frameRate;
+        mIFrameInterval = iFrameInterval;
+        mProfile = profile;
+        mLevel = level;
+        mBitRateMode = bitRateMode;
+    }
+
+    public static EncoderSettings getDefault() {
+        return new EncoderSettings(DEFAULT_BIT_RATE, DEFAULT_FRAME_RATE,
+                DEFAULT_I_FRAME_INTERVAL, UNSET, UNSET,
+                MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR);
+    }
+
+    /**
+     * Default settings at the starting bitrate and frame rate of the
+     * given policy.
+     */
+    public static EncoderSettings forPolicy(BitratePolicy policy) {
+        return new EncoderSettings(policy.getInitialBitRate(),
+                policy.getFrameRate(), DEFAULT_I_FRAME_INTERVAL,
+                UNSET, UNSET,
+                MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR);
+    }
+
+    public int getBitRate() {
+        return mBitRate;
+    }
+
+    public int getFrameRate() {
+        return mFrameRate;
+    }
+
+    public int getIFrameInterval() {
+        return mIFrameInterval;
+    }
+
+    public int getProfile() {
+        return mProfile;
+    }
+
+    public int getLevel() {
+        return mLevel;
+    }
+
+    public int getBitRateMode() {
+        return mBitRateMode;
+    }
+
+    /**
+     * Build the format to configure an encoder fed from a Surface.
+     */
+    public MediaFormat createFormat(Size videoSize) {
+        MediaFormat format = MediaFormat.createVideoFormat(
+                MediaFormat.MIMETYPE_VIDEO_AVC,
+                videoSize.getWidth(), videoSize.getHeight());
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+                MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, mBitRate);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, mFrameRate);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, mIFrameInterval);
+
+        if (mProfile != UNSET) {
+            format.setInteger(MediaFormat.KEY_PROFILE, mProfile);
+            //Encoders ignore a level without a profile
+            if (mLevel != UNSET) {
+                format.setInteger(KEY_LEVEL, mLevel);
+            }
+        }
+        if (mBitRateMode != UNSET) {
+            format.setInteger(MediaFormat.KEY_BITRATE_MODE, mBitRateMode);
+        }
+
+        return format;
+    }
+
+    @Override
+    public String toString() {
+        return (mBitRate / 1000) + "kbps @" + mFrameRate + "fps"
+                + ", I-frame every " + mIFrameInterval + "s"
+                + ", profile " + mProfile + ", level " + mLevel
+                + ", mode " + mBitRateMode;
+    }
+}
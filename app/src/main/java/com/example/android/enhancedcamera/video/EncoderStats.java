@@ -0,0 +1,57 @@
+package com.example.android.enhancedcamera.video;
+
+/**
+ * Throughput counters for one encoder run, from the first encoded
+ * frame to the last.
+ */
+public class EncoderStats {
+    private final long mFrames;
+    private final long mKeyFrames;
+    private final long mBytes;
+    private final long mMediaDurationUs;
+    private final long mElapsedNs;
+
+    public EncoderStats(long frames, long keyFrames, long bytes,
+                        long mediaDurationUs, long elapsedNs) {
+        mFrames = frames;
+        mKeyFrames = keyFrames;
+        mBytes = bytes;
+        mMediaDurationUs = mediaDurationUs;
+        mElapsedNs = elapsedNs;
+    }
+
+    public long getFrames() {
+        return mFrames;
+    }
+
+    public long getKeyFrames() {
+        return mKeyFrames;
+    }
+
+    public long getBytes() {
+        return mBytes;
+    }
+
+    //Frames out of the encoder per second of wall time
+    public double getFramesPerSecond() {
+        if (mFrames < 2 || mElapsedNs <= 0) {
+            return 0;
+        }
+        return (mFrames - 1) * 1000000000.0 / mElapsedNs;
+    }
+
+    //Bits per second of recorded media
+    public double getBitRate() {
+        if (mMediaDurationUs <= 0) {
+            return 0;
+        }
+        return mBytes * 8 * 1000000.0 / mMediaDurationUs;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d frames (%d key), %.1f fps, %.0f kbps",
+                mFrames, mKeyFrames, getFramesPerSecond(),
+                getBitRate() / 1000);
+    }
+}
@@ -0,0 +1,105 @@
+package com.example.android.enhancedcamera.video;
+
+import android.content.Context;
+import android.os.Environment;
+import android.util.Size;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Continuous "dashcam" recording. The stream is split into segments
+ * of a fixed duration, and only the most recent segments are kept, by
+ * recycling the oldest file. Segments live in app storage; one that is
+ * locked while recording is kept for good and published instead.
+ *
+ * Since the ring is bounded, storage only has to hold the full ring
+ * up front, and the recording has no budget to run out of.
+ */
+public class LoopRecordingSaver extends CodecVideoSaver {
+
+    private final Context mContext;
+    private final int mSensorOrientation;
+    private final long mSegmentDurationMs;
+    private final int mSegmentCount;
+    private final File mRingDirectory;
+    private volatile SegmentedOutput mOutput;
+
+    /**
+     * @param segmentDurationMs Length of each segment
+     * @param segmentCount Segments kept, which bounds storage use
+     */
+    public LoopRecordingSaver(Context context, Size videoSize,
+                              int sensorOrientation,
+                              EncoderSettings settings,
+                              BitratePolicy bitratePolicy,
+                              long segmentDurationMs, int segmentCount) {
+        super(context, videoSize, sensorOrientation, settings,
+                bitratePolicy);
+        mContext = context.getApplicationContext();
+        mSensorOrientation = sensorOrientation;
+        mSegmentDurationMs = segmentDurationMs;
+        mSegmentCount = segmentCount;
+        mRingDirectory = new File(mContext.getExternalFilesDir(
+                Environment.DIRECTORY_MOVIES), "loop");
+    }
+
+    @Override
+    long checkStorage(long byteRate) throws IOException {
+        RecordingStorage storage = new RecordingStorage(mRingDirectory);
+        storage.checkWriteRate(byteRate);
+
+        //Files already in the ring get overwritten, not added to
+        long ringBytes = byteRate * mSegmentDurationMs / 1000 * mSegmentCount;
+        File[] existing = mRingDirectory.listFiles();
+        if (existing != null) {
+            for (File file : existing) {
+                ringBytes -= file.length();
+            }
+        }
+        storage.checkSpace(ringBytes);
+        return RecordingStorage.UNLIMITED;
+    }
+
+    @Override
+    VideoOutput createOutput() {
+        File lockedDirectory = Environment.getExternalStoragePublicDirectory(
+                Environment.DIRECTORY_PICTURES);
+
+        mOutput = new SegmentedOutput(mContext, mRingDirectory,
+                lockedDirectory, mSensorOrientation,
+                mSegmentDurationMs, mSegmentCount);
+        return mOutput;
+    }
+
+    /**
+     * Keep the segment being recorded once it is complete, rather than
+     * letting it be recycled. Returns false if not recording.
+     */
+    public boolean lockCurrentSegment() {
+        SegmentedOutput output = mOutput;
+        return output != null && output.lockCurrentSegment();
+    }
+
+    /**
+     * Figures for the most recently completed segments, oldest first.
+     */
+    public List<SegmentStats> getSegmentStats() {
+        SegmentedOutput output = mOutput;
+        if (output == null) {
+            return Collections.emptyList();
+        }
+        return output.getSegmentStats();
+    }
+
+    /*
+     * Segments stay in the ring rather than being published, only
+     * locked segments are. Returns the last segment written.
+     */
+    @Override
+    public File stopRecording() {
+        return finishRecording();
+    }
+}
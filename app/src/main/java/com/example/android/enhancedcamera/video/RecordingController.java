@@ -0,0 +1,310 @@
+package com.example.android.enhancedcamera.video;
+
+import android.hardware.camera2.CameraAccessException;
+import android.os.Process;
+import android.util.Log;
+
+import com.example.android.enhancedcamera.common.CameraExecutor;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives a {@link VideoCaptureCallback} through the recording lifecycle
+ * on a dedicated background thread. MediaRecorder prepare, stop and
+ * reset can each block for a long time, so none of them may run on the
+ * main thread.
+ *
+ * Commands return immediately and are executed in order. A command
+ * that arrives early, such as a start while the recorder is still
+ * preparing, simply waits its turn. A start that finds the recorder
+ * not ready is refused and reported, so the UI can fall back in line.
+ * State changes are reported to the listener on the main thread.
+ *
+ * An engine may also ask for its recording to be stopped, when it runs
+ * out of storage. That stop is queued like any other command.
+ */
+public class RecordingController {
+    private static final String TAG =
+            RecordingController.class.getSimpleName();
+
+    public enum State {
+        /** No recorder is configured */
+        IDLE,
+        /** Recorder and preview session are being set up */
+        PREPARING,
+        /** Recorder is prepared, recording can start */
+        READY,
+        /** Recording in progress */
+        RECORDING,
+        /** Recorder is finalizing the file */
+        STOPPING
+    }
+
+    /**
+     * Recording events, delivered on the main thread.
+     */
+    public interface Listener {
+        void onStateChanged(State state);
+        void onRecordingSaved(File file);
+        /** Recording ended without being asked to, it is still saved */
+        void onRecordingStopped(String reason);
+        void onRecordingFailed(Exception e);
+        /** A start was refused, as the recorder was in this state */
+        void onStartRejected(State state);
+    }
+
+    private final VideoCaptureCallback mCallback;
+    private final CameraExecutor mCameraExecutor;
+    private final Listener mListener;
+    private final ExecutorService mRecorderThread;
+
+    //Only written on the recorder thread
+    private volatile State mState = State.IDLE;
+    private volatile boolean mReleased;
+    //Only touched on the recorder thread
+    private RecordingEngine mCaptureTarget;
+
+    public RecordingController(VideoCaptureCallback callback,
+                               CameraExecutor executor,
+                               Listener listener) {
+        mCallback = callback;
+        mCameraExecutor = executor;
+        mListener = listener;
+
+        mRecorderThread = new ThreadPoolExecutor(1, 1,
+                0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(
+                                        Process.THREAD_PRIORITY_FOREGROUND);
+                                r.run();
+                            }
+                        }, "RecorderThread");
+                    }
+                });
+    }
+
+    public State getState() {
+        return mState;
+    }
+
+    /**
+     * Replace the recorder, stopping (and saving) any recording in
+     * progress, then prepare the new one and restart the preview.
+     */
+    public void setCaptureTarget(final RecordingEngine captureTarget) {
+        submit(new Runnable() {
+            @Override
+            public void run() {
+                if (mState == State.RECORDING) {
+                    stopRecorder();
+                }
+                mCallback.setCaptureTarget(captureTarget);
+                mCaptureTarget = captureTarget;
+                if (captureTarget != null) {
+                    captureTarget.setStopListener(mStopListener);
+                }
+                setState(State.IDLE);
+                prepareRecorder();
+            }
+        });
+    }
+
+    /**
+     * Start recording as soon as the recorder is ready.
+     */
+    public void startRecording() {
+        submit(new Runnable() {
+            @Override
+            public void run() {
+                if (mState != State.READY) {
+                    Log.w(TAG, "Recorder not ready, ignoring start");
+                    notifyStartRejected(mState);
+                    return;
+                }
+
+                try {
+                    mCallback.startRecording();
+                    setState(State.RECORDING);
+                } catch (IllegalStateException e) {
+                    Log.w(TAG, "Unable to start recording", e);
+                    notifyFailed(e);
+                    //Recorder state is unknown, set it up from scratch
+                    setState(State.IDLE);
+                    prepareRecorder();
+                }
+            }
+        });
+    }
+
+    /**
+     * Stop the current recording, then prepare for the next one.
+     */
+    public void stopRecording() {
+        submit(new Runnable() {
+            @Override
+            public void run() {
+                if (mState != State.RECORDING) {
+                    Log.w(TAG, "Not recording, ignoring stop");
+                    return;
+                }
+
+                stopRecorder();
+                //Restart preview after recording is over
+                prepareRecorder();
+            }
+        });
+    }
+
+    /**
+     * Stop any recording in progress and release the recorder. Queued
+     * commands that have not started yet are dropped. Call this before
+     * the camera device is closed.
+     */
+    public void release() {
+        mReleased = true;
+        mRecorderThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mState == State.RECORDING) {
+                    stopRecorder();
+                }
+                mCallback.setCaptureTarget(null);
+                mCaptureTarget = null;
+                setState(State.IDLE);
+            }
+        });
+        mRecorderThread.shutdown();
+    }
+
+    private void submit(final Runnable command) {
+        if (mReleased) {
+            return;
+        }
+
+        mRecorderThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!mReleased) {
+                    command.run();
+                }
+            }
+        });
+    }
+
+    //Runs on the recorder thread
+    private void prepareRecorder() {
+        if (mReleased) {
+            return;
+        }
+
+        setState(State.PREPARING);
+        try {
+            mCallback.prepareRecorder();
+            mCallback.startPreviewSession();
+            setState(State.READY);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to initialize video recorder", e);
+            failPrepare(e);
+        } catch (CameraAccessException e) {
+            Log.w(TAG, "Error starting camera preview", e);
+            failPrepare(e);
+        } catch (IllegalStateException e) {
+            //Camera was closed while we were preparing
+            Log.w(TAG, "Error starting camera preview", e);
+            failPrepare(e);
+        }
+    }
+
+    private void failPrepare(Exception e) {
+        setState(State.IDLE);
+        notifyFailed(e);
+    }
+
+    //Runs on the recorder thread
+    private void stopRecorder() {
+        setState(State.STOPPING);
+        try {
+            final File file = mCallback.stopRecording();
+            mCameraExecutor.executeOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    mListener.onRecordingSaved(file);
+                }
+            });
+        } catch (RuntimeException e) {
+            //No usable data was recorded, nothing was saved
+            Log.w(TAG, "Recording stopped without data", e);
+            notifyFailed(e);
+        }
+        setState(State.IDLE);
+    }
+
+    //Engines call in from their own threads
+    private final RecordingEngine.StopListener mStopListener =
+            new RecordingEngine.StopListener() {
+        @Override
+        public void onStopRequested(final RecordingEngine engine,
+                                    final String reason) {
+            submit(new Runnable() {
+                @Override
+                public void run() {
+                    //Recording may have been stopped, or replaced, since
+                    if (engine != mCaptureTarget
+                            || mState != State.RECORDING) {
+                        return;
+                    }
+
+                    Log.w(TAG, "Stopping recording: " + reason);
+                    stopRecorder();
+                    mCameraExecutor.executeOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            mListener.onRecordingStopped(reason);
+                        }
+                    });
+                    prepareRecorder();
+                }
+            });
+        }
+    };
+
+    private void setState(final State state) {
+        mState = state;
+        mCameraExecutor.executeOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onStateChanged(state);
+            }
+        });
+    }
+
+    private void notifyStartRejected(final State state) {
+        mCameraExecutor.executeOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onStartRejected(state);
+            }
+        });
+    }
+
+    private void notifyFailed(final Exception e) {
+        mCameraExecutor.executeOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onRecordingFailed(e);
+            }
+        });
+    }
+}
@@ -0,0 +1,46 @@
+package com.example.android.enhancedcamera.video;
+
+import android.view.Surface;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A destination for recorded camera frames. The camera renders into
+ * the recorder surface, which is only valid after {@link #prepare()},
+ * and is recreated each time the engine is prepared again.
+ *
+ * All methods may block, and should be called from a background thread.
+ */
+public interface RecordingEngine {
+
+    /**
+     * Told when a recording has to end on its own, such as when its
+     * storage budget runs out. Called on an arbitrary thread; the
+     * recording still has to be stopped as usual.
+     */
+    interface StopListener {
+        void onStopRequested(RecordingEngine engine, String reason);
+    }
+
+    void setStopListener(StopListener listener);
+
+    /**
+     * Set up a new output file and the recorder surface. Throws if
+     * storage can't hold or keep up with the recording.
+     */
+    void prepare() throws IOException;
+
+    Surface getRecorderSurface();
+
+    void startRecording();
+
+    /**
+     * Finish the recording and return the saved file. Throws a
+     * RuntimeException, and saves nothing, if no frames were recorded.
+     */
+    File stopRecording();
+
+    /** Release all resources, discarding any unfinished recording */
+    void close();
+}
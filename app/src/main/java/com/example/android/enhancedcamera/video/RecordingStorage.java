@@ -0,0 +1,216 @@
+package com.example.android.enhancedcamera.video;
+
+import android.os.StatFs;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks the volume behind a recording directory before a recording
+ * starts, so a full or slow disk is caught up front rather than part
+ * way through, with a truncated file to show for it.
+ *
+ * Recording time is forecast from free space and the stream's byte
+ * rate. A recording is refused if it would not last a minimum time, or
+ * if measured write throughput can't keep up with the stream. An
+ * accepted recording gets a byte budget: the free space above a
+ * high-water margin when it starts. Nothing is held back, and other
+ * writers share the volume, so free space is also watched while
+ * recording, and the engine is told to stop before the margin is
+ * reached.
+ */
+public class RecordingStorage {
+    private static final String TAG = RecordingStorage.class.getSimpleName();
+
+    /** Budget of a recording that has no storage limit */
+    public static final long UNLIMITED = Long.MAX_VALUE;
+
+    //Always left free, for the file index and everything else
+    private static final long HIGH_WATER_BYTES = 32 * 1024 * 1024;
+    //Shortest recording worth starting
+    private static final long MIN_RECORDING_SECONDS = 10;
+    //How often free space is checked while recording
+    private static final long WATCH_INTERVAL_MS = 1000;
+    //Stream time kept above the margin, to finish the file in
+    private static final long STOP_LEAD_SECONDS = 2;
+
+    //Size of the throughput probe, and of each write making it up
+    private static final int PROBE_BYTES = 4 * 1024 * 1024;
+    private static final int PROBE_CHUNK_BYTES = 256 * 1024;
+
+    //Measured throughput per directory, probing is not free
+    private static final Map<String, Long> sWriteRates =
+            new HashMap<String, Long>();
+
+    private final File mDirectory;
+    private ScheduledExecutorService mWatcher;
+
+    public RecordingStorage(File directory) {
+        mDirectory = directory;
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    /**
+     * Bytes a recording may still use, above the high-water margin.
+     */
+    public long getUsableBytes() {
+        File volume = mDirectory;
+        //StatFs needs an existing path on the same volume
+        while (volume != null && !volume.exists()) {
+            volume = volume.getParentFile();
+        }
+        if (volume == null) {
+            return 0;
+        }
+
+        long available = new StatFs(volume.getAbsolutePath())
+                .getAvailableBytes();
+        return Math.max(0, available - HIGH_WATER_BYTES);
+    }
+
+    /**
+     * Seconds of recording left at the given byte rate.
+     */
+    public long forecastSeconds(long byteRate) {
+        return getUsableBytes() / Math.max(1, byteRate);
+    }
+
+    /**
+     * Sustained write throughput of the volume, in bytes per second.
+     * Measured once per directory by writing and syncing a probe file,
+     * which blocks; call from a background thread.
+     */
+    public long getWriteRate() throws IOException {
+        String key = mDirectory.getAbsolutePath();
+        synchronized (sWriteRates) {
+            Long rate = sWriteRates.get(key);
+            if (rate != null) {
+                return rate;
+            }
+        }
+
+        long rate = measureWriteRate();
+        synchronized (sWriteRates) {
+            sWriteRates.put(key, rate);
+        }
+        return rate;
+    }
+
+    private long measureWriteRate() throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Unable to create " + mDirectory);
+        }
+        if (getUsableBytes() < PROBE_BYTES) {
+            throw new IOException("No room to measure " + mDirectory);
+        }
+
+        File probe = new File(mDirectory, ".write_probe");
+        byte[] chunk = new byte[PROBE_CHUNK_BYTES];
+        long start = SystemClock.elapsedRealtimeNanos();
+        FileOutputStream out = new FileOutputStream(probe);
+        try {
+            for (int written = 0; written < PROBE_BYTES;
+                    written += chunk.length) {
+                out.write(chunk);
+            }
+            //Count the time to reach the disk, not just the page cache
+            out.getFD().sync();
+        } finally {
+            out.close();
+            probe.delete();
+        }
+        long elapsedNs = Math.max(1,
+                SystemClock.elapsedRealtimeNanos() - start);
+
+        long rate = PROBE_BYTES * 1000000000L / elapsedNs;
+        Log.d(TAG, mDirectory + " writes at " + (rate / 1024) + "KB/s");
+        return rate;
+    }
+
+    /**
+     * Require that storage can keep up with the byte rate, with the
+     * same headroom {@link BitratePolicy} expects. Throws otherwise.
+     */
+    public void checkWriteRate(long byteRate) throws IOException {
+        long required = (long) (byteRate * BitratePolicy.HEADROOM);
+        long writeRate = getWriteRate();
+        if (writeRate < required) {
+            throw new IOException("Storage writes " + (writeRate / 1024)
+                    + "KB/s, recording needs " + (required / 1024) + "KB/s");
+        }
+    }
+
+    /**
+     * Require room for the given number of bytes. Throws otherwise.
+     */
+    public void checkSpace(long bytes) throws IOException {
+        long usable = getUsableBytes();
+        if (usable < bytes) {
+            throw new IOException("Storage has " + (usable >> 20)
+                    + "MB free, recording needs " + (bytes >> 20) + "MB");
+        }
+    }
+
+    /**
+     * Pre-flight check for a recording at the given byte rate. Returns
+     * the free space above the margin as of now, which bounds what it
+     * may write; other writers can still take that space, see
+     * {@link #startWatching(long, Runnable)}.
+     */
+    public long checkRecording(long byteRate) throws IOException {
+        checkSpace(byteRate * MIN_RECORDING_SECONDS);
+        checkWriteRate(byteRate);
+
+        long budget = getUsableBytes();
+        Log.d(TAG, "Room for " + (budget / Math.max(1, byteRate))
+                + "s at " + (byteRate / 1024) + "KB/s");
+        return budget;
+    }
+
+    /**
+     * Check free space every second during a recording at the given
+     * byte rate. Once it is within a couple of seconds of the margin,
+     * the listener is called, once, on the watcher's thread.
+     */
+    public synchronized void startWatching(final long byteRate,
+                                           final Runnable onLow) {
+        stopWatching();
+        final ScheduledExecutorService watcher =
+                Executors.newSingleThreadScheduledExecutor();
+        watcher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                long usable = getUsableBytes();
+                if (usable > byteRate * STOP_LEAD_SECONDS) {
+                    return;
+                }
+                Log.w(TAG, "Only " + (usable >> 20) + "MB left above the"
+                        + " margin on " + mDirectory);
+                watcher.shutdown();
+                onLow.run();
+            }
+        }, WATCH_INTERVAL_MS, WATCH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        mWatcher = watcher;
+    }
+
+    /**
+     * Stop watching free space, at the end of a recording.
+     */
+    public synchronized void stopWatching() {
+        if (mWatcher != null) {
+            mWatcher.shutdownNow();
+            mWatcher = null;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.example.android.enhancedcamera.video;
+
+import com.example.android.enhancedcamera.common.LatencyHistogram;
+
+import java.io.File;
+
+/**
+ * Write figures for one segment of a loop recording.
+ *
+ * MediaMuxer queues samples and writes them on its own thread, so the
+ * time each frame is handed over for only shows whether the encoder was
+ * held up. How storage kept up shows in the data still missing from the
+ * file when the segment ended, and in the time taken to close it, which
+ * flushes that data out.
+ */
+public final class SegmentStats {
+    private final long mSequence;
+    private final File mFile;
+    private final boolean mLocked;
+    private final long mDurationUs;
+    private final long mFrames;
+    private final long mBytes;
+    private final long mStoredBytes;
+    private final long mUnwrittenBytes;
+    private final long mHandoffP50Ns;
+    private final long mHandoffP99Ns;
+    private final long mHandoffMaxNs;
+    private final long mSwitchNs;
+    private final long mFinalizeNs;
+
+    SegmentStats(long sequence, File file, boolean locked, long durationUs,
+                 long frames, long bytes, long storedBytes,
+                 long unwrittenBytes, LatencyHistogram handoffLatency,
+                 long switchNs, long finalizeNs) {
+        mSequence = sequence;
+        mFile = file;
+        mLocked = locked;
+        mDurationUs = durationUs;
+        mFrames = frames;
+        mBytes = bytes;
+        mStoredBytes = storedBytes;
+        mUnwrittenBytes = unwrittenBytes;
+        mHandoffP50Ns = handoffLatency.getPercentileNs(50);
+        mHandoffP99Ns = handoffLatency.getPercentileNs(99);
+        mHandoffMaxNs = handoffLatency.getMaxNs();
+        mSwitchNs = switchNs;
+        mFinalizeNs = finalizeNs;
+    }
+
+    //Counts up from the start of the loop
+    public long getSequence() {
+        return mSequence;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public boolean isLocked() {
+        return mLocked;
+    }
+
+    public long getDurationUs() {
+        return mDurationUs;
+    }
+
+    public long getFrames() {
+        return mFrames;
+    }
+
+    //Encoded bytes handed to the muxer
+    public long getBytes() {
+        return mBytes;
+    }
+
+    //Size of the closed file, container included
+    public long getStoredBytes() {
+        return mStoredBytes;
+    }
+
+    //Encoded bytes not yet in the file when the segment ended
+    public long getUnwrittenBytes() {
+        return mUnwrittenBytes;
+    }
+
+    //Time each frame's handoff to the muxer blocked the encoder for
+    public long getHandoffP50Ns() {
+        return mHandoffP50Ns;
+    }
+
+    public long getHandoffP99Ns() {
+        return mHandoffP99Ns;
+    }
+
+    public long getHandoffMaxNs() {
+        return mHandoffMaxNs;
+    }
+
+    //Time to open this segment, during which the encoder waited
+    public long getSwitchNs() {
+        return mSwitchNs;
+    }
+
+    //Time to flush and close the file, spent off the encoder's path
+    public long getFinalizeNs() {
+        return mFinalizeNs;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("#%d %s%.1fs, %d frames, %dKB, stored %dKB,"
+                        + " unwritten %dKB at end,"
+                        + " handoff p50 %.2fms p99 %.2fms max %.2fms,"
+                        + " switch %.2fms, finalize %.2fms",
+                mSequence, mLocked ? "(locked) " : "",
+                mDurationUs / 1000000.0, mFrames, mBytes / 1024,
+                mStoredBytes / 1024, mUnwrittenBytes / 1024,
+                mHandoffP50Ns / 1000000.0, mHandoffP99Ns / 1000000.0,
+                mHandoffMaxNs / 1000000.0, mSwitchNs / 1000000.0,
+                mFinalizeNs / 1000000.0);
+    }
+}
@@ -0,0 +1,329 @@
+package com.example.android.enhancedcamera.video;
+
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.enhancedcamera.common.LatencyHistogram;
+import com.example.android.enhancedcamera.common.MediaIndexer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splits the encoded stream into fixed-duration MP4 segments, written
+ * round-robin over a fixed set of files so storage use stays bounded.
+ *
+ * A new segment starts on the first key frame past the segment
+ * duration, so segments run long by up to one I-frame interval. The
+ * next file is opened before the last one is closed, and the (slow)
+ * close happens on a separate thread, so no frame is ever dropped or
+ * held back for long at a switch.
+ *
+ * A locked segment is moved out of the ring once it is complete, and
+ * published like a regular recording.
+ */
+class SegmentedOutput implements VideoOutput {
+    private static final String TAG = SegmentedOutput.class.getSimpleName();
+
+    private static final long FINISH_TIMEOUT_MS = 5000;
+
+    //A segment being written, only touched on the drain thread
+    private static class Segment {
+        final long sequence;
+        final File file;
+        final MediaMuxer muxer;
+        final int trackIndex;
+        final long startPresentationUs;
+        final long switchNs;
+        final LatencyHistogram handoffLatency = new LatencyHistogram();
+        long lastPresentationUs;
+        long frames;
+        long bytes;
+        long unwrittenBytes;
+        volatile boolean locked;
+
+        Segment(long sequence, File file, MediaMuxer muxer, int trackIndex,
+                long startPresentationUs, long switchNs) {
+            this.sequence = sequence;
+            this.file = file;
+            this.muxer = muxer;
+            this.trackIndex = trackIndex;
+            this.startPresentationUs = startPresentationUs;
+            this.lastPresentationUs = startPresentationUs;
+            this.switchNs = switchNs;
+        }
+    }
+
+    private final Context mContext;
+    private final File mLockedDirectory;
+    private final int mOrientation;
+    private final long mSegmentDurationUs;
+    private final File[] mSlots;
+    //Completed segments, most recent last
+    private final ArrayDeque<SegmentStats> mHistory;
+    //Segments handed to the finalizer, still being written out
+    private final List<Segment> mClosing = new ArrayList<Segment>();
+
+    private ExecutorService mFinalizer;
+    private int mNextSlot;
+    private long mNextSequence;
+    //Size of the segments closed so far, guarded by mClosing
+    private long mClosedBytes;
+    private volatile Segment mCurrent;
+
+    SegmentedOutput(Context context, File ringDirectory,
+                    File lockedDirectory, int orientation,
+                    long segmentDurationMs, int segmentCount) {
+        if (segmentDurationMs <= 0 || segmentCount < 2) {
+            throw new IllegalArgumentException("Invalid loop dimensions");
+        }
+        mContext = context.getApplicationContext();
+        mLockedDirectory = lockedDirectory;
+        mOrientation = orientation;
+        mSegmentDurationUs = segmentDurationMs * 1000;
+        mHistory = new ArrayDeque<SegmentStats>(segmentCount);
+
+        mSlots = new File[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            mSlots[i] = new File(ringDirectory,
+                    String.format("loop_%02d.mp4", i));
+        }
+    }
+
+    @Override
+    public void open() throws IOException {
+        File ringDirectory = mSlots[0].getParentFile();
+        if (!ringDirectory.isDirectory() && !ringDirectory.mkdirs()) {
+            throw new IOException("Unable to create " + ringDirectory);
+        }
+
+        //Carry on over the oldest segment from any earlier loop
+        mNextSlot = 0;
+        for (int i = 1; i < mSlots.length; i++) {
+            if (mSlots[i].lastModified() < mSlots[mNextSlot].lastModified()) {
+                mNextSlot = i;
+            }
+        }
+
+        synchronized (mClosing) {
+            mClosing.clear();
+            mClosedBytes = 0;
+        }
+        mFinalizer = Executors.newSingleThreadExecutor();
+    }
+
+    /**
+     * Protect the segment being written from being recycled. Returns
+     * false if no segment is being written.
+     */
+    public boolean lockCurrentSegment() {
+        Segment segment = mCurrent;
+        if (segment == null) {
+            return false;
+        }
+        segment.locked = true;
+        return true;
+    }
+
+    public List<SegmentStats> getSegmentStats() {
+        synchronized (mHistory) {
+            return new ArrayList<SegmentStats>(mHistory);
+        }
+    }
+
+    @Override
+    public long getStoredBytes() {
+        Segment current = mCurrent;
+        long bytes = (current != null) ? current.file.length() : 0;
+        synchronized (mClosing) {
+            bytes += mClosedBytes;
+            for (Segment segment : mClosing) {
+                bytes += segment.file.length();
+            }
+        }
+        return bytes;
+    }
+
+    @Override
+    public void writeSample(MediaFormat format, ByteBuffer data,
+                            MediaCodec.BufferInfo info, boolean keyFrame) {
+        Segment segment = mCurrent;
+        if (segment == null) {
+            if (!keyFrame) {
+                return;
+            }
+            segment = startSegment(format, info.presentationTimeUs);
+        } else if (keyFrame && info.presentationTimeUs
+                - segment.startPresentationUs >= mSegmentDurationUs) {
+            //Open the next file first, the old one is closed elsewhere
+            Segment finished = segment;
+            finished.unwrittenBytes = Math.max(0,
+                    finished.bytes - finished.file.length());
+            segment = startSegment(format, info.presentationTimeUs);
+            finishSegmentAsync(finished);
+        }
+        if (segment == null) {
+            return;
+        }
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        int size = info.size;
+        segment.muxer.writeSampleData(segment.trackIndex, data, info);
+        segment.handoffLatency.record(
+                SystemClock.elapsedRealtimeNanos() - start);
+        segment.lastPresentationUs = info.presentationTimeUs;
+        segment.frames++;
+        segment.bytes += size;
+    }
+
+    //Returns null, and leaves no segment current, if the file fails
+    private Segment startSegment(MediaFormat format, long presentationUs) {
+        long start = SystemClock.elapsedRealtimeNanos();
+        File file = mSlots[mNextSlot];
+        mNextSlot = (mNextSlot + 1) % mSlots.length;
+
+        Segment segment = null;
+        try {
+            MediaMuxer muxer = new MediaMuxer(file.getAbsolutePath(),
+                    MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            muxer.setOrientationHint(mOrientation);
+            int trackIndex = muxer.addTrack(format);
+            muxer.start();
+
+            segment = new Segment(mNextSequence++, file, muxer, trackIndex,
+                    presentationUs, SystemClock.elapsedRealtimeNanos() - start);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to start segment " + file, e);
+        }
+        mCurrent = segment;
+        return segment;
+    }
+
+    private void finishSegmentAsync(final Segment segment) {
+        synchronized (mClosing) {
+            mClosing.add(segment);
+        }
+        mFinalizer.execute(new Runnable() {
+            @Override
+            public void run() {
+                finishSegment(segment);
+            }
+        });
+    }
+
+    //Runs on the finalizer thread
+    private File finishSegment(Segment segment) {
+        long start = SystemClock.elapsedRealtimeNanos();
+        try {
+            segment.muxer.stop();
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Segment " + segment.sequence + " not closed", e);
+        }
+        segment.muxer.release();
+        long finalizeNs = SystemClock.elapsedRealtimeNanos() - start;
+        //Before the file can move out of the ring
+        long storedBytes = segment.file.length();
+        synchronized (mClosing) {
+            mClosedBytes += storedBytes;
+            mClosing.remove(segment);
+        }
+
+        File file = segment.file;
+        if (segment.locked) {
+            file = moveOutOfRing(segment);
+        }
+
+        SegmentStats stats = new SegmentStats(segment.sequence, file,
+                segment.locked,
+                segment.lastPresentationUs - segment.startPresentationUs,
+                segment.frames, segment.bytes, storedBytes,
+                segment.unwrittenBytes, segment.handoffLatency,
+                segment.switchNs, finalizeNs);
+        Log.d(TAG, "Segment " + stats);
+        synchronized (mHistory) {
+            if (mHistory.size() == mSlots.length) {
+                mHistory.removeFirst();
+            }
+            mHistory.addLast(stats);
+        }
+        return file;
+    }
+
+    private File moveOutOfRing(Segment segment) {
+        File locked = new File(mLockedDirectory, "NewCircle_"
+                + System.currentTimeMillis() + "_Loop.mp4");
+        if (!segment.file.renameTo(locked)) {
+            Log.w(TAG, "Unable to lock segment " + segment.sequence);
+            return segment.file;
+        }
+
+        //Let the framework know about the file
+        MediaIndexer.getInstance(mContext)
+                .add(locked.getAbsolutePath(), "video/mp4");
+        return locked;
+    }
+
+    @Override
+    public File finish() {
+        final Segment segment = mCurrent;
+        mCurrent = null;
+        if (mFinalizer == null) {
+            return null;
+        }
+
+        Future<File> result = null;
+        if (segment != null) {
+            segment.unwrittenBytes = Math.max(0,
+                    segment.bytes - segment.file.length());
+            result = mFinalizer.submit(new Callable<File>() {
+                @Override
+                public File call() {
+                    return finishSegment(segment);
+                }
+            });
+        }
+        awaitFinalizer();
+
+        try {
+            return (result != null && result.isDone()) ? result.get() : null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.w(TAG, "Unable to close the last segment", e.getCause());
+        }
+        return null;
+    }
+
+    @Override
+    public void discard() {
+        //Segments already in the ring are kept, they are the loop
+        finish();
+    }
+
+    private void awaitFinalizer() {
+        mFinalizer.shutdown();
+        try {
+            if (!mFinalizer.awaitTermination(FINISH_TIMEOUT_MS,
+                    TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "Segments still closing");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mFinalizer = null;
+    }
+}
@@ -0,0 +1,92 @@
+package com.example.android.enhancedcamera.video;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Muxes the whole recording into one MP4 file.
+ */
+class SingleFileOutput implements VideoOutput {
+
+    private final File mDirectory;
+    private final int mOrientation;
+
+    private File mFile;
+    private MediaMuxer mMuxer;
+    private int mTrackIndex;
+    private boolean mStarted;
+
+    SingleFileOutput(File directory, int orientation) {
+        mDirectory = directory;
+        mOrientation = orientation;
+    }
+
+    @Override
+    public void open() throws IOException {
+        String filename = "NewCircle_" + System.currentTimeMillis()
+                + "_Video.mp4";
+        mFile = new File(mDirectory, filename);
+        mMuxer = new MediaMuxer(mFile.getAbsolutePath(),
+                MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        mMuxer.setOrientationHint(mOrientation);
+    }
+
+    @Override
+    public void writeSample(MediaFormat format, ByteBuffer data,
+                            MediaCodec.BufferInfo info, boolean keyFrame) {
+        if (!mStarted) {
+            if (!keyFrame) {
+                return;
+            }
+            mTrackIndex = mMuxer.addTrack(format);
+            mMuxer.start();
+            mStarted = true;
+        }
+
+        mMuxer.writeSampleData(mTrackIndex, data, info);
+    }
+
+    @Override
+    public long getStoredBytes() {
+        return (mFile != null) ? mFile.length() : 0;
+    }
+
+    @Override
+    public File finish() {
+        File file = mFile;
+        boolean saved = mStarted;
+        release();
+
+        if (!saved) {
+            file.delete();
+            return null;
+        }
+        return file;
+    }
+
+    @Override
+    public void discard() {
+        File file = mFile;
+        release();
+        if (file != null) {
+            file.delete();
+        }
+    }
+
+    private void release() {
+        if (mMuxer != null) {
+            if (mStarted) {
+                mMuxer.stop();
+            }
+            mMuxer.release();
+            mMuxer = null;
+        }
+        mStarted = false;
+        mFile = null;
+    }
+}
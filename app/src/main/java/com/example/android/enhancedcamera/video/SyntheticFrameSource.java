@@ -0,0 +1,157 @@
+package com.example.android.enhancedcamera.video;
+
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLExt;
+import android.opengl.EGLSurface;
+import android.opengl.GLES20;
+import android.util.Size;
+import android.view.Surface;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Renders generated frames into an encoder input surface with OpenGL
+ * ES, standing in for the camera so encoder throughput can be measured
+ * on its own. Each frame is a solid color with a moving block, so the
+ * encoder has both flat areas and motion to deal with.
+ *
+ * The EGL context is bound to the creating thread; render and release
+ * from that same thread, which should not be the main thread.
+ */
+public class SyntheticFrameSource {
+
+    //Marks the config as usable for an encoder surface
+    private static final int EGL_RECORDABLE_ANDROID = 0x3142;
+
+    private final int mWidth;
+    private final int mHeight;
+    private final long mFrameIntervalNs;
+
+    private EGLDisplay mDisplay = EGL14.EGL_NO_DISPLAY;
+    private EGLContext mContext = EGL14.EGL_NO_CONTEXT;
+    private EGLSurface mSurface = EGL14.EGL_NO_SURFACE;
+    private long mFrameIndex;
+
+    public SyntheticFrameSource(Surface target, int width, int height,
+                                int frameRate) {
+        mWidth = width;
+        mHeight = height;
+        mFrameIntervalNs = 1000000000L / frameRate;
+
+        mDisplay = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+        int[] version = new int[2];
+        if (!EGL14.eglInitialize(mDisplay, version, 0, version, 1)) {
+            throw new IllegalStateException("Unable to initialize EGL");
+        }
+
+        int[] configAttributes = {
+                EGL14.EGL_RED_SIZE, 8,
+                EGL14.EGL_GREEN_SIZE, 8,
+                EGL14.EGL_BLUE_SIZE, 8,
+                EGL14.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,
+                EGL_RECORDABLE_ANDROID, 1,
+                EGL14.EGL_NONE
+        };
+        EGLConfig[] configs = new EGLConfig[1];
+        int[] configCount = new int[1];
+        if (!EGL14.eglChooseConfig(mDisplay, configAttributes, 0,
+                configs, 0, 1, configCount, 0) || configCount[0] == 0) {
+            release();
+            throw new IllegalStateException("No recordable EGL config");
+        }
+
+        int[] contextAttributes = {
+                EGL14.EGL_CONTEXT_CLIENT_VERSION, 2,
+                EGL14.EGL_NONE
+        };
+        mContext = EGL14.eglCreateContext(mDisplay, configs[0],
+                EGL14.EGL_NO_CONTEXT, contextAttributes, 0);
+        int[] surfaceAttributes = { EGL14.EGL_NONE };
+        mSurface = EGL14.eglCreateWindowSurface(mDisplay, configs[0],
+                target, surfaceAttributes, 0);
+        if (mContext == EGL14.EGL_NO_CONTEXT
+                || mSurface == EGL14.EGL_NO_SURFACE
+                || !EGL14.eglMakeCurrent(mDisplay, mSurface, mSurface,
+                        mContext)) {
+            release();
+            throw new IllegalStateException("Unable to bind encoder surface");
+        }
+    }
+
+    /**
+     * Render frames as fast as the encoder accepts them. Presentation
+     * times advance at the nominal frame rate regardless.
+     */
+    public void renderFrames(int count) {
+        int blockSize = Math.max(1, mHeight / 4);
+        for (int i = 0; i < count; i++) {
+            long frame = mFrameIndex++;
+            float phase = (frame % 60) / 60f;
+
+            GLES20.glDisable(GLES20.GL_SCISSOR_TEST);
+            GLES20.glClearColor(phase, 0.5f, 1f - phase, 1f);
+            GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+
+            GLES20.glEnable(GLES20.GL_SCISSOR_TEST);
+            int x = (int) ((frame * 8) % Math.max(1, mWidth - blockSize));
+            GLES20.glScissor(x, (mHeight - blockSize) / 2,
+                    blockSize, blockSize);
+            GLES20.glClearColor(1f, 1f, 1f, 1f);
+            GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+
+            EGLExt.eglPresentationTimeANDROID(mDisplay, mSurface,
+                    frame * mFrameIntervalNs);
+            //Blocks once the encoder input queue is full
+            EGL14.eglSwapBuffers(mDisplay, mSurface);
+        }
+    }
+
+    public void release() {
+        if (mDisplay != EGL14.EGL_NO_DISPLAY) {
+            EGL14.eglMakeCurrent(mDisplay, EGL14.EGL_NO_SURFACE,
+                    EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
+            if (mSurface != EGL14.EGL_NO_SURFACE) {
+                EGL14.eglDestroySurface(mDisplay, mSurface);
+            }
+            if (mContext != EGL14.EGL_NO_CONTEXT) {
+                EGL14.eglDestroyContext(mDisplay, mContext);
+            }
+            EGL14.eglTerminate(mDisplay);
+        }
+        mDisplay = EGL14.EGL_NO_DISPLAY;
+        mContext = EGL14.EGL_NO_CONTEXT;
+        mSurface = EGL14.EGL_NO_SURFACE;
+    }
+
+    /**
+     * Encode the given number of synthetic frames through the engine,
+     * without a camera, and report the encoder throughput. The output
+     * file is discarded. Call from a background thread.
+     */
+    public static EncoderStats measureThroughput(CodecVideoSaver engine,
+                                                 int frameCount)
+            throws IOException {
+        engine.prepare();
+        SyntheticFrameSource source = null;
+        try {
+            Size size = engine.getVideoSize();
+            source = new SyntheticFrameSource(engine.getRecorderSurface(),
+                    size.getWidth(), size.getHeight(),
+                    engine.getSettings().getFrameRate());
+            engine.startRecording();
+            source.renderFrames(frameCount);
+            File output = engine.finishRecording();
+            output.delete();
+            return engine.getStats();
+        } finally {
+            if (source != null) {
+                source.release();
+            }
+            engine.close();
+        }
+    }
+}
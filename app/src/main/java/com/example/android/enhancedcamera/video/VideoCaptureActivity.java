@@ -5,8 +5,6 @@ import android.graphics.SurfaceTexture;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraDevice;
-import android.hardware.camera2.params.StreamConfigurationMap;
-import android.media.MediaRecorder;
 import android.os.Bundle;
 import android.util.Log;
 import android.util.Size;
@@ -16,14 +14,25 @@ import android.view.WindowManager;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
+import android.widget.CheckBox;
 import android.widget.RadioGroup;
 import android.widget.Spinner;
 import android.widget.Toast;
 
 import com.example.android.enhancedcamera.R;
 import com.example.android.enhancedcamera.common.CameraHelper;
+import com.example.android.enhancedcamera.common.CameraStarter;
+import com.example.android.enhancedcamera.common.MediaIndexer;
+import com.example.android.enhancedcamera.common.ResolutionPlanner;
+import com.example.android.enhancedcamera.common.StartupTrace;
 
+import java.io.File;
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 public class VideoCaptureActivity extends Activity implements
         TextureView.SurfaceTextureListener,
@@ -32,9 +41,23 @@ public class VideoCaptureActivity extends Activity implements
     private static final String TAG =
             VideoCaptureActivity.class.getSimpleName();
 
+    private static final int VIDEO_FRAME_RATE = 30;
+    private static final long VIDEO_FRAME_DURATION_NS =
+            1000000000L / VIDEO_FRAME_RATE;
+    private static final BitratePolicy.Quality VIDEO_QUALITY =
+            BitratePolicy.Quality.STANDARD;
+    //Loop recording keeps the last five minutes
+    private static final long LOOP_SEGMENT_MS = 60000;
+    private static final int LOOP_SEGMENT_COUNT = 5;
+    //dumpsys argument that runs the synthetic encoder throughput test
+    private static final String ARG_ENCODER_THROUGHPUT = "encoder-throughput";
+    private static final int THROUGHPUT_FRAMES = 300;
+    private static final Size DEFAULT_THROUGHPUT_SIZE = new Size(1280, 720);
+
     private TextureView mPreviewTexture;
     private RadioGroup mCameraSelector;
     private Button mRecordButton;
+    private Button mLockButton;
     private Spinner mResolutionSelector;
     private ArrayAdapter<Size> mResolutionAdapter;
 
@@ -42,24 +65,57 @@ public class VideoCaptureActivity extends Activity implements
     private String mFrontCameraId = null;
     private String mBackCameraId = null;
 
+    //Record through MediaCodec instead of MediaRecorder
+    private boolean mCodecEnabled;
+    //Record continuously into a ring of segments
+    private boolean mLoopEnabled;
+    //Current engine, if it is recording in a loop
+    private LoopRecordingSaver mLoopSaver;
+
+    //Kept across instances, so every cold start and switch is counted
+    private static final StartupTrace sStartupTrace =
+            new StartupTrace(VideoCaptureActivity.class.getSimpleName()
+                    + " startup");
+    //Result of the last synthetic encoder run, kept across instances
+    private static volatile String sEncoderThroughput;
+
+    private static final StartupTrace sSwitchTrace =
+            new StartupTrace(VideoCaptureActivity.class.getSimpleName()
+                    + " switch");
+
     private CameraHelper mCameraHelper;
-    private CameraDevice mCameraDevice;
+    private CameraStarter mCameraStarter;
+    //Run being traced, startup or the latest switch
+    private volatile StartupTrace mCurrentTrace = sStartupTrace;
+    //Resolutions for each camera, worked out on first use
+    private final Map<String, List<Size>> mResolutions =
+            new HashMap<String, List<Size>>();
+    //Resolutions in the adapter now
+    private List<Size> mShownResolutions;
+    //Written from camera thread callbacks, read on the main thread
+    private volatile CameraDevice mCameraDevice;
     private VideoCaptureCallback mCameraCallback;
+    private RecordingController mRecordingController;
 
-    //Internal tracker of recording state
+    //Whether the user has asked for a recording, the controller
+    // catches up with this in the background
     private boolean mIsRecording = false;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        sStartupTrace.begin();
+        mCurrentTrace = sStartupTrace;
         setContentView(R.layout.activity_video);
 
         mCameraHelper = new CameraHelper(this);
+        mCameraStarter = new CameraStarter(mCameraHelper, sStartupTrace);
 
         mResolutionSelector = (Spinner) findViewById(R.id.selector_resolution);
         mPreviewTexture = (TextureView) findViewById(R.id.preview);
         mCameraSelector = (RadioGroup) findViewById(R.id.options_camera);
         mRecordButton = (Button) findViewById(R.id.button_record);
+        mLockButton = (Button) findViewById(R.id.button_lock);
 
         mResolutionAdapter = new ArrayAdapter<Size>(this,
                 android.R.layout.simple_spinner_item);
@@ -83,21 +139,86 @@ public class VideoCaptureActivity extends Activity implements
     protected void onResume() {
         super.onResume();
 
+        // Start opening the camera now, while the views are laid out.
         // When the screen is turned off and turned back on,
-        // SurfaceTexture is already available. In that case, we can open
-        // a camera and start preview from here (otherwise, we wait until
-        // the surface is ready in the SurfaceTextureListener).
-        if (mPreviewTexture.isAvailable()) {
-            openCamera();
-        } else {
+        // SurfaceTexture is already available. Otherwise preview starts
+        // once the surface is ready in the SurfaceTextureListener.
+        if (!mPreviewTexture.isAvailable()) {
             mPreviewTexture.setSurfaceTextureListener(this);
         }
+        openCamera();
     }
 
     @Override
     protected void onPause() {
         super.onPause();
         closeCamera();
+        //Don't leave captures waiting on a batch while in the background
+        MediaIndexer.getInstance(this).flush();
+    }
+
+    /*
+     * Report startup and camera switch latency, and preview frame
+     * statistics. View with:
+     * adb shell dumpsys activity <package>/.video.VideoCaptureActivity
+     *
+     * Add "encoder-throughput" to encode synthetic frames at the
+     * selected size through the MediaCodec engine, without the camera;
+     * the result shows in the next dump. Run it while not recording.
+     */
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer,
+                     String[] args) {
+        if (args != null && args.length > 0
+                && ARG_ENCODER_THROUGHPUT.equals(args[0])) {
+            startEncoderThroughputRun();
+            writer.print(prefix);
+            writer.println("Encoder throughput run started");
+            return;
+        }
+
+        super.dump(prefix, fd, writer, args);
+        writer.print(prefix);
+        writer.print("Encoder throughput: ");
+        writer.println(sEncoderThroughput);
+        sStartupTrace.dump(prefix, writer);
+        sSwitchTrace.dump(prefix, writer);
+        dumpSwitches(prefix, writer);
+        mCameraHelper.dumpPlans(prefix, writer);
+        VideoCaptureCallback callback = mCameraCallback;
+        if (callback != null) {
+            callback.getFrameStats().dump(prefix, writer);
+        }
+    }
+
+    //Synthetic frames through a MediaCodec engine, on its own thread
+    private void startEncoderThroughputRun() {
+        Object selected = mResolutionSelector.getSelectedItem();
+        final Size size = (selected instanceof Size)
+                ? (Size) selected : DEFAULT_THROUGHPUT_SIZE;
+        final EncoderSettings settings = EncoderSettings.forPolicy(
+                new BitratePolicy(size, VIDEO_FRAME_RATE, VIDEO_QUALITY));
+        final CodecVideoSaver engine =
+                new CodecVideoSaver(this, size, 0, settings);
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                String result;
+                try {
+                    result = size + ": " + SyntheticFrameSource
+                            .measureThroughput(engine, THROUGHPUT_FRAMES);
+                } catch (IOException e) {
+                    Log.w(TAG, "Encoder throughput run failed", e);
+                    result = size + ": failed, " + e;
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Encoder throughput run failed", e);
+                    result = size + ": failed, " + e;
+                }
+                Log.i(TAG, "Encoder throughput " + result);
+                sEncoderThroughput = result;
+            }
+        }, "EncoderThroughput").start();
     }
 
     //Handle resolution change events
@@ -114,11 +235,28 @@ public class VideoCaptureActivity extends Activity implements
                     .getSensorOrientation(mCameraDevice.getId());
             Size videoSize = mResolutionAdapter.getItem(selectedPosition);
 
-            VideoSaver captureTarget = new VideoSaver(this, videoSize,
-                    orientation);
-            mCameraCallback.setCaptureTarget(captureTarget);
-
-            startPreview();
+            //Bitrate follows the resolution, rather than one fixed rate
+            BitratePolicy bitratePolicy = new BitratePolicy(videoSize,
+                    VIDEO_FRAME_RATE, VIDEO_QUALITY);
+            EncoderSettings settings =
+                    EncoderSettings.forPolicy(bitratePolicy);
+            RecordingEngine captureTarget;
+            mLoopSaver = null;
+            if (mLoopEnabled) {
+                mLoopSaver = new LoopRecordingSaver(this, videoSize,
+                        orientation, settings, bitratePolicy,
+                        LOOP_SEGMENT_MS, LOOP_SEGMENT_COUNT);
+                captureTarget = mLoopSaver;
+            } else if (mCodecEnabled) {
+                captureTarget = new CodecVideoSaver(this, videoSize,
+                        orientation, settings, bitratePolicy);
+            } else {
+                captureTarget = new VideoSaver(this, orientation,
+                        bitratePolicy);
+            }
+            //Any recording in progress is saved before the switch
+            setRecording(false);
+            mRecordingController.setCaptureTarget(captureTarget);
         } catch (CameraAccessException e) {
             e.printStackTrace();
         }
@@ -130,26 +268,113 @@ public class VideoCaptureActivity extends Activity implements
     //Handle camera selection events
     @Override
     public void onCheckedChanged(RadioGroup group, int checkedId) {
-        //Restart the camera session with the new selection
-        closeCamera();
-        openCamera();
+        switchCamera();
+    }
+
+    //Handle encoder engine changes, which need a new session
+    public void onCodecClick(View v) {
+        mCodecEnabled = ((CheckBox) v).isChecked();
+
+        int position = mResolutionSelector.getSelectedItemPosition();
+        if (mRecordingController != null
+                && position != AdapterView.INVALID_POSITION) {
+            setCameraResolution(position);
+        }
+    }
+
+    //Loop recording always runs on the MediaCodec engine
+    public void onLoopClick(View v) {
+        mLoopEnabled = ((CheckBox) v).isChecked();
+
+        int position = mResolutionSelector.getSelectedItemPosition();
+        if (mRecordingController != null
+                && position != AdapterView.INVALID_POSITION) {
+            setCameraResolution(position);
+        }
+    }
+
+    //Protect the current loop segment from being recycled
+    public void onLockClick(View v) {
+        if (mLoopSaver != null && mLoopSaver.lockCurrentSegment()) {
+            Toast.makeText(this, "Segment Locked",
+                    Toast.LENGTH_SHORT).show();
+        }
     }
 
     //Handle user recording requests
     public void onRecordClick(View v) {
+        if (mRecordingController == null) {
+            return;
+        }
+
+        //Recorder work happens in the background, never wait for it here
         if (mIsRecording) {
-            mRecordButton.setText(R.string.button_record);
-            mCameraCallback.stopRecording();
-            //Restart preview after recording is over
-            startPreview();
-            mIsRecording = false;
+            mRecordingController.stopRecording();
+            setRecording(false);
         } else {
-            mRecordButton.setText(R.string.button_stop);
-            mCameraCallback.startRecording();
-            mIsRecording = true;
+            mRecordingController.startRecording();
+            setRecording(true);
         }
     }
 
+    private void setRecording(boolean recording) {
+        mIsRecording = recording;
+        mRecordButton.setText(recording
+                ? R.string.button_stop : R.string.button_record);
+    }
+
+    /*
+     * Handle progress of the background recorder
+     */
+    private final RecordingController.Listener mRecordingListener =
+            new RecordingController.Listener() {
+        @Override
+        public void onStateChanged(RecordingController.State state) {
+            Log.v(TAG, "Recorder state: " + state);
+            //File is being finalized, wait before recording again
+            mRecordButton.setEnabled(
+                    state != RecordingController.State.STOPPING);
+            mLockButton.setEnabled(mLoopSaver != null
+                    && state == RecordingController.State.RECORDING);
+        }
+
+        @Override
+        public void onRecordingSaved(File file) {
+            if (mLoopSaver != null) {
+                for (SegmentStats stats : mLoopSaver.getSegmentStats()) {
+                    Log.d(TAG, "Loop segment " + stats);
+                }
+            }
+            Toast.makeText(VideoCaptureActivity.this,
+                    "Video Record Complete", Toast.LENGTH_SHORT).show();
+        }
+
+        @Override
+        public void onRecordingStopped(String reason) {
+            setRecording(false);
+            Toast.makeText(VideoCaptureActivity.this,
+                    "Recording Stopped: " + reason, Toast.LENGTH_LONG).show();
+        }
+
+        @Override
+        public void onRecordingFailed(Exception e) {
+            setRecording(false);
+            //Storage refusals explain themselves
+            String message = (e instanceof IOException)
+                    ? e.getMessage() : "Unable to record video";
+            Toast.makeText(VideoCaptureActivity.this,
+                    message, Toast.LENGTH_SHORT).show();
+        }
+
+        @Override
+        public void onStartRejected(RecordingController.State state) {
+            //Button already shows Stop, put it back in line
+            setRecording(state == RecordingController.State.RECORDING);
+            Toast.makeText(VideoCaptureActivity.this,
+                    "Recorder not ready", Toast.LENGTH_SHORT).show();
+        }
+    };
+
     /*
      * Texture creation is asynchronous. We can't handle preview until
      * we have a surface onto which we can render.
@@ -157,8 +382,8 @@ public class VideoCaptureActivity extends Activity implements
     @Override
     public void onSurfaceTextureAvailable(SurfaceTexture surface,
                                           int width, int height) {
-        //Camera is now safe to open
-        openCamera();
+        //Camera can now be handed over, if it is open
+        mCameraStarter.onSurfaceReady();
     }
 
     @Override
@@ -171,7 +396,9 @@ public class VideoCaptureActivity extends Activity implements
     }
 
     @Override
-    public void onSurfaceTextureUpdated(SurfaceTexture surface) { }
+    public void onSurfaceTextureUpdated(SurfaceTexture surface) {
+        mCurrentTrace.mark(StartupTrace.Stage.FIRST_FRAME);
+    }
 
     /** Methods to connect with the camera devices */
 
@@ -216,18 +443,6 @@ public class VideoCaptureActivity extends Activity implements
         }
     }
 
-    //Begin preview, or resume after the latest recording is finished
-    private void startPreview() {
-        try {
-            mCameraCallback.setUpMediaRecorder();
-            mCameraCallback.startPreviewSession();
-        } catch (CameraAccessException e) {
-            Log.w(TAG, "Error starting camera preview", e);
-        } catch (IOException e) {
-            Log.w(TAG, "Unable to initialize video recorder", e);
-        }
-    }
-
     /*
      * Handle state changes regarding the actual camera device
      */
@@ -235,39 +450,64 @@ public class VideoCaptureActivity extends Activity implements
             new CameraDeviceCallback();
     private class CameraDeviceCallback extends CameraDevice.StateCallback {
         @Override
-        public void onOpened(CameraDevice cameraDevice) {
+        public void onOpened(final CameraDevice cameraDevice) {
             Log.d(TAG, "StateCallback.onOpened");
             // The camera is open, we can start a preview here.
             mCameraDevice = cameraDevice;
 
             try {
-                //Determine the optimal target preview size
-                Size targetPreviewSize = mCameraHelper.getTargetPreviewSize(
-                        mCameraDevice.getId(),
+                //Choose the preview and recording sizes together
+                ResolutionPlanner.Plan plan = mCameraHelper.getResolutionPlan(
+                        cameraDevice.getId(),
+                        ResolutionPlanner.UseCase.VIDEO,
                         mPreviewTexture.getWidth(),
-                        mPreviewTexture.getHeight());
-
-                mCameraCallback = new VideoCaptureCallback(mCameraDevice,
+                        mPreviewTexture.getHeight(),
+                        VIDEO_FRAME_DURATION_NS);
+                Size targetPreviewSize = (plan != null)
+                        ? plan.getPreviewSize()
+                        : mCameraHelper.getTargetPreviewSize(
+                                cameraDevice.getId(),
+                                mPreviewTexture.getWidth(),
+                                mPreviewTexture.getHeight());
+                final Size plannedSize =
+                        (plan != null) ? plan.getRecordSize() : null;
+
+                final VideoCaptureCallback callback = new VideoCaptureCallback(
+                        cameraDevice,
                         mPreviewTexture.getSurfaceTexture(),
-                        targetPreviewSize);
-
-                //Update list of available sizes
-                StreamConfigurationMap map = mCameraHelper
-                        .getConfiguration(mCameraDevice.getId());
-                mResolutionAdapter.clear();
-                for (Size size : map.getOutputSizes(MediaRecorder.class)) {
-                    //Add items that are safe to record
-                    if (CameraHelper.verifyVideoSize(size)) {
-                        mResolutionAdapter.add(size);
+                        targetPreviewSize,
+                        mCameraHelper.getCameraExecutor());
+                callback.setStartupTrace(mCurrentTrace);
+                callback.setFrameStatsEnabled(true);
+
+                //Query available sizes here, off the main thread
+                final List<Size> outputSizes =
+                        getResolutions(cameraDevice.getId());
+
+                //Only the UI updates are posted back to the main thread
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        //Camera was closed before we got here
+                        if (mCameraDevice != cameraDevice) {
+                            return;
+                        }
+                        mCameraCallback = callback;
+                        mRecordingController = new RecordingController(
+                                callback,
+                                mCameraHelper.getCameraExecutor(),
+                                mRecordingListener);
+
+                        //Update list of available sizes
+                        showResolutions(outputSizes, plannedSize);
+                        //If there is already a selection, update it here
+                        int position =
+                                mResolutionSelector.getSelectedItemPosition();
+                        if (position != AdapterView.INVALID_POSITION) {
+                            setCameraResolution(position);
+                        }
                     }
-                }
-                mResolutionAdapter.notifyDataSetChanged();
-                //If there is already a selection, update resolution here
-                if (mResolutionSelector.getSelectedItemPosition()
-                        != AdapterView.INVALID_POSITION) {
-                    setCameraResolution(
-                            mResolutionSelector.getSelectedItemPosition());
-                }
+                });
             } catch (CameraAccessException e) {
                 Log.w(TAG, "Error starting camera preview", e);
             }
@@ -295,7 +535,8 @@ public class VideoCaptureActivity extends Activity implements
         final String cameraId = getSelectedCameraId();
 
         try {
-            mCameraHelper.openCamera(cameraId, mStateCallback);
+            mCameraStarter.open(cameraId,
+                    mPreviewTexture.isAvailable(), mStateCallback);
         } catch (CameraAccessException e) {
             Toast.makeText(this, "Unable to access camera",
                     Toast.LENGTH_SHORT).show();
@@ -303,19 +544,100 @@ public class VideoCaptureActivity extends Activity implements
         }
     }
 
+    /*
+     * Move to the newly selected camera. The old camera closes while
+     * the new one opens, and the camera thread is kept.
+     */
+    private void switchCamera() {
+        sSwitchTrace.begin();
+        mCurrentTrace = sSwitchTrace;
+        releaseSession();
+        //The starter closes the old camera
+        mCameraDevice = null;
+
+        final String cameraId = getSelectedCameraId();
+        try {
+            mCameraStarter.switchCamera(cameraId,
+                    mPreviewTexture.isAvailable(), mStateCallback,
+                    sSwitchTrace);
+        } catch (CameraAccessException e) {
+            Log.w(TAG, "Unable to access camera: "+cameraId, e);
+        }
+    }
+
+    private void dumpSwitches(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.print("  Overlapped switches: ");
+        writer.print(mCameraStarter.getOverlappedSwitches());
+        writer.print(", deferred: ");
+        writer.println(mCameraStarter.getDeferredSwitches());
+    }
+
+    //Sizes the selected camera offers, cached per camera
+    private List<Size> getResolutions(String cameraId)
+            throws CameraAccessException {
+        synchronized (mResolutions) {
+            List<Size> sizes = mResolutions.get(cameraId);
+            if (sizes == null) {
+                //Sizes that sustain the frame rate next to a preview
+                sizes = mCameraHelper.getRecordableSizes(cameraId,
+                        VIDEO_FRAME_DURATION_NS);
+                mResolutions.put(cameraId, sizes);
+            }
+            return sizes;
+        }
+    }
+
+    /*
+     * Only rebuild the adapter if the sizes have changed, and then
+     * start from the planned size. Otherwise the user's choice stays.
+     */
+    private void showResolutions(List<Size> sizes, Size plannedSize) {
+        if (sizes.equals(mShownResolutions)) {
+            return;
+        }
+        mShownResolutions = sizes;
+
+        mResolutionAdapter.clear();
+        for (Size size : sizes) {
+            mResolutionAdapter.add(size);
+        }
+        mResolutionAdapter.notifyDataSetChanged();
+
+        int planned = sizes.indexOf(plannedSize);
+        if (planned >= 0) {
+            mResolutionSelector.setSelection(planned);
+        }
+    }
+
     /*
      * Terminate the active camera session
      */
     private void closeCamera() {
-        if (mCameraCallback != null) {
-            mCameraCallback.cancelActiveCaptureSession();
-            mCameraCallback.setCaptureTarget(null);
-            mCameraCallback = null;
-        }
+        releaseSession();
 
+        //Also closes a camera that opened before the surface was ready
+        mCameraStarter.cancel();
         if (mCameraDevice != null) {
             mCameraDevice.close();
             mCameraDevice = null;
         }
+
+        mCameraHelper.closeCamera();
+    }
+
+    //Stop recording and preview, leaving the camera open
+    private void releaseSession() {
+        //Saves any recording in progress, then releases the recorder
+        if (mRecordingController != null) {
+            mRecordingController.release();
+            mRecordingController = null;
+        }
+        setRecording(false);
+
+        if (mCameraCallback != null) {
+            mCameraCallback.cancelActiveCaptureSession();
+            mCameraCallback = null;
+        }
     }
 }
@@ -8,8 +8,10 @@ import android.hardware.camera2.CaptureRequest;
 import android.util.Size;
 import android.view.Surface;
 
+import com.example.android.enhancedcamera.common.CameraExecutor;
 import com.example.android.enhancedcamera.common.PreviewCallback;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.List;
 
@@ -23,12 +25,14 @@ public class VideoCaptureCallback extends PreviewCallback {
     private static final String TAG =
             VideoCaptureCallback.class.getSimpleName();
 
-    private VideoSaver mVideoSaver;
+    //Either engine may be used, chosen per session
+    private RecordingEngine mVideoSaver;
 
     public VideoCaptureCallback(CameraDevice device,
                                 SurfaceTexture surface,
-                                Size targetPreviewSize) {
-        super(device, surface, targetPreviewSize);
+                                Size targetPreviewSize,
+                                CameraExecutor executor) {
+        super(device, surface, targetPreviewSize, executor);
     }
 
     //Request for a preview that supports video
@@ -48,7 +52,7 @@ public class VideoCaptureCallback extends PreviewCallback {
         return builder;
     }
 
-    public void setCaptureTarget(VideoSaver captureTarget) {
+    public void setCaptureTarget(RecordingEngine captureTarget) {
         if (mVideoSaver != null) {
             mVideoSaver.close();
         }
@@ -63,15 +67,15 @@ public class VideoCaptureCallback extends PreviewCallback {
         return baseTargets;
     }
 
-    public void setUpMediaRecorder() throws IOException {
-        mVideoSaver.setUpMediaRecorder();
+    public void prepareRecorder() throws IOException {
+        mVideoSaver.prepare();
     }
 
     public void startRecording() {
         mVideoSaver.startRecording();
     }
 
-    public void stopRecording() {
-        mVideoSaver.stopRecording();
+    public File stopRecording() {
+        return mVideoSaver.stopRecording();
     }
 }
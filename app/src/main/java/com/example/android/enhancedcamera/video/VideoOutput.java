@@ -0,0 +1,42 @@
+package com.example.android.enhancedcamera.video;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Destination for the encoded stream of a {@link CodecVideoSaver}.
+ * Samples arrive on the encoder drain thread; the other calls are made
+ * by the recording thread while the drain thread is not running.
+ */
+interface VideoOutput {
+
+    /** Create the output ahead of a recording */
+    void open() throws IOException;
+
+    /**
+     * Write one encoded frame. The output should not start before a
+     * key frame, which players need to open a file.
+     */
+    void writeSample(MediaFormat format, ByteBuffer data,
+                     MediaCodec.BufferInfo info, boolean keyFrame);
+
+    /**
+     * Bytes of the recording in storage so far, from the size of the
+     * files written rather than the samples handed over. Called on the
+     * drain thread.
+     */
+    long getStoredBytes();
+
+    /**
+     * Complete the output and return the file that was written, or
+     * null, after deleting anything left behind, if nothing was.
+     */
+    File finish();
+
+    /** Drop anything written, if the output was never finished */
+    void discard();
+}
@@ -2,13 +2,12 @@ package com.example.android.enhancedcamera.video;
 
 import android.content.Context;
 import android.media.MediaRecorder;
-import android.media.MediaScannerConnection;
-import android.net.Uri;
 import android.os.Environment;
 import android.util.Log;
 import android.util.Size;
 import android.view.Surface;
-import android.widget.Toast;
+
+import com.example.android.enhancedcamera.common.MediaIndexer;
 
 import java.io.File;
 import java.io.IOException;
@@ -16,35 +15,59 @@ import java.io.IOException;
 /**
  * Save destination for still video captures. Videos are stored in the
  * Pictures directory of the device's external storage.
+ *
+ * This engine hands everything to MediaRecorder, including audio. See
+ * {@link CodecVideoSaver} for control over the video encoder.
  */
-public class VideoSaver {
+public class VideoSaver implements RecordingEngine {
     private static final String TAG = VideoSaver.class.getSimpleName();
 
+    //Allowance for the audio track, on top of the video bitrate
+    private static final long AUDIO_BYTE_RATE = 16 * 1024;
+
     private Context mContext;
     private File mPicturesDirectory;
     private File mCurrentRecordingFile;
     private int mSensorOrientation;
     private MediaRecorder mMediaRecorder;
     private Size mVideoSize;
-
-    public VideoSaver(Context context, Size videoSize,
-                      int sensorOrientation) {
+    private BitratePolicy mBitratePolicy;
+    private RecordingStorage mStorage;
+    private volatile StopListener mStopListener;
+
+    /*
+     * MediaRecorder can't change bitrate mid-recording, so only the
+     * policy's starting bitrate is used here.
+     */
+    public VideoSaver(Context context, int sensorOrientation,
+                      BitratePolicy bitratePolicy) {
         mContext = context.getApplicationContext();
         mSensorOrientation = sensorOrientation;
-        mVideoSize = videoSize;
+        mVideoSize = bitratePolicy.getVideoSize();
+        mBitratePolicy = bitratePolicy;
 
         //Save all photos in the default public pictures directory
         mPicturesDirectory = Environment.getExternalStoragePublicDirectory(
                 Environment.DIRECTORY_PICTURES);
+        mStorage = new RecordingStorage(mPicturesDirectory);
 
         mMediaRecorder = new MediaRecorder();
+        mMediaRecorder.setOnInfoListener(mInfoListener);
     }
 
+    @Override
+    public void setStopListener(StopListener listener) {
+        mStopListener = listener;
+    }
+
+    @Override
     public Surface getRecorderSurface() {
         return mMediaRecorder.getSurface();
     }
 
+    @Override
     public void close() {
+        mStorage.stopWatching();
         //Last prepare didn't result in a real recording
         if (mCurrentRecordingFile != null) {
             mCurrentRecordingFile.delete();
@@ -62,54 +85,106 @@ public class VideoSaver {
         return mCurrentRecordingFile;
     }
 
-    public void setUpMediaRecorder() throws IOException {
+    @Override
+    public void prepare() throws IOException {
         //Last prepare didn't result in a real recording
         if (mCurrentRecordingFile != null) {
             mCurrentRecordingFile.delete();
         }
 
-        mMediaRecorder.setAudioSource(MediaRecorder.AudioSource.MIC);
-        mMediaRecorder.setVideoSource(MediaRecorder.VideoSource.SURFACE);
-
-        mMediaRecorder.setOutputFormat(MediaRecorder.OutputFormat.MPEG_4);
-        mMediaRecorder.setOutputFile(getVideoFile().getAbsolutePath());
-
-        mMediaRecorder.setVideoEncodingBitRate(10000000);
-        mMediaRecorder.setVideoFrameRate(30);
-        mMediaRecorder.setVideoSize(mVideoSize.getWidth(),
-                mVideoSize.getHeight());
-
-        mMediaRecorder.setVideoEncoder(MediaRecorder.VideoEncoder.H264);
-        mMediaRecorder.setAudioEncoder(MediaRecorder.AudioEncoder.AAC);
-
-        mMediaRecorder.setOrientationHint(mSensorOrientation);
-        mMediaRecorder.prepare();
+        //Stop short of filling up the volume. Checked first, so a full
+        //volume doesn't leave the recorder half configured
+        long budget = mStorage.checkRecording(getByteRate());
+
+        boolean prepared = false;
+        try {
+            mMediaRecorder.setAudioSource(MediaRecorder.AudioSource.MIC);
+            mMediaRecorder.setVideoSource(MediaRecorder.VideoSource.SURFACE);
+
+            mMediaRecorder.setOutputFormat(MediaRecorder.OutputFormat.MPEG_4);
+            mMediaRecorder.setOutputFile(getVideoFile().getAbsolutePath());
+
+            mMediaRecorder.setVideoEncodingBitRate(
+                    mBitratePolicy.getInitialBitRate());
+            mMediaRecorder.setVideoFrameRate(mBitratePolicy.getFrameRate());
+            mMediaRecorder.setVideoSize(mVideoSize.getWidth(),
+                    mVideoSize.getHeight());
+
+            mMediaRecorder.setVideoEncoder(MediaRecorder.VideoEncoder.H264);
+            mMediaRecorder.setAudioEncoder(MediaRecorder.AudioEncoder.AAC);
+
+            mMediaRecorder.setOrientationHint(mSensorOrientation);
+            mMediaRecorder.setMaxFileSize(budget);
+
+            mMediaRecorder.prepare();
+            prepared = true;
+        } finally {
+            //Back to the initial state, so the next prepare can start over
+            if (!prepared) {
+                mMediaRecorder.reset();
+            }
+        }
+        Log.d(TAG, "Recorder prepared: " + mBitratePolicy);
     }
 
+    @Override
     public void startRecording() {
         Log.d(TAG, "Video Recording Start!");
         mMediaRecorder.start();
-    }
 
-    public void stopRecording() {
-        Log.d(TAG, "Video Recording Stop!");
-        mMediaRecorder.stop();
-        mMediaRecorder.reset();
+        //Other writers may take the space the size limit counted on
+        mStorage.startWatching(getByteRate(), new Runnable() {
+            @Override
+            public void run() {
+                StopListener listener = mStopListener;
+                if (listener != null) {
+                    listener.onStopRequested(VideoSaver.this,
+                            "Storage is full");
+                }
+            }
+        });
+    }
 
-        //Let the framework know about the file
-        MediaScannerConnection.scanFile(mContext,
-                new String[]{getVideoFile().getAbsolutePath()},
-                new String[]{"video/mp4"},
-                new MediaScannerConnection.OnScanCompletedListener() {
-                    public void onScanCompleted(String path, Uri uri) {
-                        Log.i(TAG, "Scanned " + path + ":");
-                        Log.i(TAG, "-> uri=" + uri);
-                    }
-                });
-        Toast.makeText(mContext, "Video Record Complete",
-                Toast.LENGTH_SHORT).show();
+    private long getByteRate() {
+        return mBitratePolicy.getByteRate() + AUDIO_BYTE_RATE;
+    }
 
+    //Blocks while the recorder finalizes the file
+    @Override
+    public File stopRecording() {
+        Log.d(TAG, "Video Recording Stop!");
+        mStorage.stopWatching();
+        File videoFile = getVideoFile();
         //Clear out the media file reference, we're done with it.
         mCurrentRecordingFile = null;
+
+        try {
+            mMediaRecorder.stop();
+        } catch (RuntimeException e) {
+            //Stopped before any frames arrived, the file is unusable
+            videoFile.delete();
+            throw e;
+        } finally {
+            mMediaRecorder.reset();
+        }
+
+        //Let the framework know about the file
+        MediaIndexer.getInstance(mContext)
+                .add(videoFile.getAbsolutePath(), "video/mp4");
+        return videoFile;
     }
+
+    private final MediaRecorder.OnInfoListener mInfoListener =
+            new MediaRecorder.OnInfoListener() {
+        @Override
+        public void onInfo(MediaRecorder mr, int what, int extra) {
+            //The recorder has already stopped writing at this point
+            StopListener listener = mStopListener;
+            if (what == MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_REACHED
+                    && listener != null) {
+                listener.onStopRequested(VideoSaver.this,
+                        "Storage budget reached");
+            }
+        }
+    };
 }
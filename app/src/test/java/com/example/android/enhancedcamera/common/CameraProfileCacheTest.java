@@ -0,0 +1,151 @@
+package com.example.android.enhancedcamera.common;
+
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraManager;
+import android.util.Size;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class CameraProfileCacheTest {
+
+    private StaticCameraProfileSource mSource;
+    private CameraProfileCache mCache;
+
+    @Before
+    public void setUp() {
+        mSource = new StaticCameraProfileSource();
+        mSource.addProfile(createProfile("0"));
+        mSource.addProfile(createProfile("1"));
+        mCache = new CameraProfileCache(mSource);
+    }
+
+    @Test
+    public void firstLookupMissesThenHits() throws CameraAccessException {
+        CameraProfile first = mCache.getProfile("0");
+        CameraProfile second = mCache.getProfile("0");
+
+        assertSame(first, second);
+        assertEquals(1, mCache.getMissCount());
+        assertEquals(1, mCache.getHitCount());
+        assertEquals(1, mSource.getProfileLoadCount());
+    }
+
+    @Test
+    public void camerasAreCachedSeparately() throws CameraAccessException {
+        mCache.getProfile("0");
+        mCache.getProfile("1");
+        mCache.getProfile("1");
+
+        assertEquals(2, mCache.getMissCount());
+        assertEquals(1, mCache.getHitCount());
+        assertEquals(2, mSource.getProfileLoadCount());
+    }
+
+    @Test
+    public void idListIsLoadedOnce() throws CameraAccessException {
+        String[] ids = mCache.getCameraIdList();
+        //Callers get their own copy
+        ids[0] = "9";
+
+        assertArrayEquals(new String[] {"0", "1"}, mCache.getCameraIdList());
+        assertEquals(1, mSource.getIdListLoadCount());
+    }
+
+    @Test
+    public void failedLoadIsNotCached() {
+        for (int i = 0; i < 2; i++) {
+            try {
+                mCache.getProfile("5");
+                fail("Unknown camera loaded");
+            } catch (CameraAccessException expected) {
+            }
+        }
+
+        assertEquals(2, mCache.getMissCount());
+        assertEquals(2, mSource.getProfileLoadCount());
+    }
+
+    @Test
+    public void invalidateReloadsOnlyThatCamera()
+            throws CameraAccessException {
+        mCache.getCameraIdList();
+        mCache.getProfile("0");
+        mCache.getProfile("1");
+
+        mCache.invalidate("0");
+        mCache.getProfile("0");
+        mCache.getProfile("1");
+        mCache.getCameraIdList();
+
+        assertEquals(3, mCache.getMissCount());
+        assertEquals(1, mCache.getHitCount());
+        assertEquals(2, mSource.getIdListLoadCount());
+    }
+
+    @Test
+    public void invalidateAllReloadsEverything()
+            throws CameraAccessException {
+        mCache.getCameraIdList();
+        mCache.getProfile("0");
+        mCache.getProfile("1");
+
+        mCache.invalidateAll();
+        mCache.getProfile("0");
+        mCache.getProfile("1");
+        mCache.getCameraIdList();
+
+        assertEquals(4, mCache.getMissCount());
+        assertEquals(0, mCache.getHitCount());
+        assertEquals(2, mSource.getIdListLoadCount());
+    }
+
+    @Test
+    public void knownCameraBecomingAvailableKeepsCache()
+            throws CameraAccessException {
+        CameraManager.AvailabilityCallback callback =
+                mCache.getAvailabilityCallback();
+        mCache.getCameraIdList();
+        mCache.getProfile("0");
+
+        //Another app closing the camera
+        callback.onCameraAvailable("0");
+        mCache.getProfile("0");
+        mCache.getCameraIdList();
+
+        assertEquals(1, mCache.getHitCount());
+        assertEquals(1, mSource.getIdListLoadCount());
+    }
+
+    @Test
+    public void newCameraInvalidatesIdList() throws CameraAccessException {
+        CameraManager.AvailabilityCallback callback =
+                mCache.getAvailabilityCallback();
+        mCache.getCameraIdList();
+        mCache.getProfile("0");
+
+        mSource.addProfile(createProfile("2"));
+        callback.onCameraAvailable("2");
+
+        assertArrayEquals(new String[] {"0", "1", "2"},
+                mCache.getCameraIdList());
+        assertEquals(2, mSource.getIdListLoadCount());
+        //Profiles of the cameras already known are kept
+        mCache.getProfile("0");
+        assertEquals(1, mCache.getHitCount());
+    }
+
+    private static CameraProfile createProfile(String cameraId) {
+        return new CameraProfile(cameraId,
+                CameraProfile.LENS_FACING_UNKNOWN, 90, null, 0, null,
+                new HashMap<Integer, Size[]>(),
+                new HashMap<Class<?>, Size[]>());
+    }
+}
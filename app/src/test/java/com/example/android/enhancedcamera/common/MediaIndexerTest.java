@@ -0,0 +1,169 @@
+package com.example.android.enhancedcamera.common;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MediaIndexerTest {
+    private static final int BATCH_SIZE = 8;
+    //Short enough to wait out, long enough to tell from an early flush
+    private static final long WINDOW_MS = 200;
+    //Longer than any test, so only the batch size can trigger a flush
+    private static final long NO_WINDOW_MS = 60000;
+
+    private RecordingScanner mScanner;
+
+    @Before
+    public void setUp() {
+        mScanner = new RecordingScanner();
+    }
+
+    @Test
+    public void fullBatchIsSentAtOnce() {
+        MediaIndexer indexer =
+                new MediaIndexer(mScanner, BATCH_SIZE, NO_WINDOW_MS);
+        String[] paths = addFiles(indexer, "a", BATCH_SIZE - 1);
+        assertNull(mScanner.mBatches.peek());
+        assertEquals(BATCH_SIZE - 1, indexer.getPendingCount());
+
+        String[] last = addFiles(indexer, "b", 1);
+
+        //Sent on the adding thread, no wait needed
+        String[] batch = mScanner.mBatches.poll();
+        assertNotNull(batch);
+        List<String> expected = new ArrayList<String>(Arrays.asList(paths));
+        expected.add(last[0]);
+        assertEquals(expected, Arrays.asList(batch));
+        assertEquals(0, indexer.getPendingCount());
+    }
+
+    @Test
+    public void partialBatchIsSentAfterWindow()
+            throws InterruptedException {
+        MediaIndexer indexer =
+                new MediaIndexer(mScanner, BATCH_SIZE, WINDOW_MS);
+        long start = System.nanoTime();
+        String[] paths = addFiles(indexer, "a", 3);
+
+        String[] batch = mScanner.mBatches.poll(WINDOW_MS * 10,
+                TimeUnit.MILLISECONDS);
+        long waitedMs = TimeUnit.NANOSECONDS.toMillis(
+                System.nanoTime() - start);
+
+        assertNotNull("Window never closed", batch);
+        assertArrayEquals(paths, batch);
+        assertTrue("Sent after " + waitedMs + "ms", waitedMs >= WINDOW_MS);
+        assertEquals(0, indexer.getPendingCount());
+    }
+
+    @Test
+    public void windowStartsWithFirstFile() throws InterruptedException {
+        MediaIndexer indexer =
+                new MediaIndexer(mScanner, BATCH_SIZE, WINDOW_MS);
+        addFiles(indexer, "a", 1);
+        Thread.sleep(WINDOW_MS * 3 / 4);
+        //Later files don't push the window back
+        addFiles(indexer, "b", 1);
+
+        String[] batch = mScanner.mBatches.poll(WINDOW_MS / 2,
+                TimeUnit.MILLISECONDS);
+        assertNotNull("Window was restarted", batch);
+        assertEquals(2, batch.length);
+    }
+
+    @Test
+    public void fullBatchCancelsWindow() throws InterruptedException {
+        MediaIndexer indexer =
+                new MediaIndexer(mScanner, BATCH_SIZE, WINDOW_MS);
+        addFiles(indexer, "a", BATCH_SIZE);
+        assertEquals(BATCH_SIZE, mScanner.mBatches.take().length);
+
+        Thread.sleep(WINDOW_MS * 2);
+        assertNull(mScanner.mBatches.peek());
+    }
+
+    @Test
+    public void flushSendsPendingFiles() throws InterruptedException {
+        MediaIndexer indexer =
+                new MediaIndexer(mScanner, BATCH_SIZE, WINDOW_MS);
+        String[] paths = addFiles(indexer, "a", 2);
+
+        //As done when the activity pauses
+        indexer.flush();
+        assertArrayEquals(paths, mScanner.mBatches.poll());
+
+        //Nothing left for the window to send, and no empty batches
+        indexer.flush();
+        Thread.sleep(WINDOW_MS * 2);
+        assertNull(mScanner.mBatches.peek());
+    }
+
+    @Test
+    public void callbacksFollowTheirFiles() {
+        MediaIndexer indexer =
+                new MediaIndexer(mScanner, BATCH_SIZE, NO_WINDOW_MS);
+        final List<String> scanned = new ArrayList<String>();
+        MediaScanner.Callback callback = new MediaScanner.Callback() {
+            @Override
+            public void onScanCompleted(String path) {
+                scanned.add(path);
+            }
+        };
+        indexer.add("/a.jpg", "image/jpeg", callback);
+        indexer.add("/b.jpg", "image/jpeg");
+        indexer.add("/c.mp4", "video/mp4", callback);
+        indexer.flush();
+
+        assertEquals(Arrays.asList("image/jpeg", "image/jpeg", "video/mp4"),
+                Arrays.asList(mScanner.mLastTypes));
+        mScanner.completeAll();
+        assertEquals(Arrays.asList("/a.jpg", "/c.mp4"), scanned);
+    }
+
+    private static String[] addFiles(MediaIndexer indexer, String prefix,
+                                     int count) {
+        String[] paths = new String[count];
+        for (int i = 0; i < count; i++) {
+            paths[i] = "/" + prefix + i + ".jpg";
+            indexer.add(paths[i], "image/jpeg");
+        }
+        return paths;
+    }
+
+    //Keeps each batch it is asked to scan
+    private static class RecordingScanner implements MediaScanner {
+        final BlockingQueue<String[]> mBatches =
+                new LinkedBlockingQueue<String[]>();
+        volatile String[] mLastPaths;
+        volatile String[] mLastTypes;
+        volatile Callback mLastCallback;
+
+        @Override
+        public void scanFiles(String[] paths, String[] mimeTypes,
+                              Callback callback) {
+            assertEquals(paths.length, mimeTypes.length);
+            mLastPaths = paths;
+            mLastTypes = mimeTypes;
+            mLastCallback = callback;
+            mBatches.add(paths);
+        }
+
+        void completeAll() {
+            for (String path : mLastPaths) {
+                mLastCallback.onScanCompleted(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.example.android.enhancedcamera.common;
+
+import android.os.Handler;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plain-Java stand-in for {@link CameraThread}. Camera and UI work each
+ * run on their own single thread, so the threading contract can be
+ * checked on a JVM without a Looper. No Handler is provided, which
+ * makes the Camera2 APIs fall back to the calling thread.
+ */
+public class SerialCameraExecutor implements CameraExecutor {
+
+    private final ExecutorService mCameraThread;
+    private final ExecutorService mUiThread;
+    private volatile Thread mCameraThreadRef;
+
+    public SerialCameraExecutor() {
+        mCameraThread = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                mCameraThreadRef = new Thread(r, "CameraThread");
+                return mCameraThreadRef;
+            }
+        });
+        mUiThread = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "UiThread");
+            }
+        });
+    }
+
+    @Override
+    public Handler getHandler() {
+        return null;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        try {
+            mCameraThread.execute(task);
+        } catch (RejectedExecutionException e) {
+            //Mirror the HandlerThread behavior: work after shutdown is dropped
+        }
+    }
+
+    @Override
+    public void executeOnUiThread(Runnable task) {
+        try {
+            mUiThread.execute(task);
+        } catch (RejectedExecutionException e) {
+            //UI is gone, nothing left to update
+        }
+    }
+
+    @Override
+    public boolean isCameraThread() {
+        return Thread.currentThread() == mCameraThreadRef;
+    }
+
+    @Override
+    public void shutdown() {
+        mCameraThread.shutdown();
+        mUiThread.shutdown();
+        if (isCameraThread()) {
+            return;
+        }
+
+        try {
+            mCameraThread.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
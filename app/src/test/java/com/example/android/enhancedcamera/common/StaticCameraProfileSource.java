@@ -0,0 +1,54 @@
+package com.example.android.enhancedcamera.common;
+
+import android.hardware.camera2.CameraAccessException;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fixed set of camera profiles, standing in for the CameraManager in
+ * tests. Counts every lookup so cache hits and misses can be checked.
+ */
+public class StaticCameraProfileSource implements CameraProfileSource {
+
+    private final Map<String, CameraProfile> mProfiles =
+            new LinkedHashMap<String, CameraProfile>();
+    private final AtomicInteger mIdListLoads = new AtomicInteger();
+    private final AtomicInteger mProfileLoads = new AtomicInteger();
+
+    public synchronized void addProfile(CameraProfile profile) {
+        mProfiles.put(profile.getCameraId(), profile);
+    }
+
+    public synchronized void removeProfile(String cameraId) {
+        mProfiles.remove(cameraId);
+    }
+
+    @Override
+    public synchronized String[] getCameraIdList() {
+        mIdListLoads.incrementAndGet();
+        return mProfiles.keySet().toArray(new String[mProfiles.size()]);
+    }
+
+    @Override
+    public synchronized CameraProfile loadProfile(String cameraId)
+            throws CameraAccessException {
+        mProfileLoads.incrementAndGet();
+        CameraProfile profile = mProfiles.get(cameraId);
+        if (profile == null) {
+            throw new CameraAccessException(
+                    CameraAccessException.CAMERA_DISCONNECTED,
+                    "Unknown camera: " + cameraId);
+        }
+        return profile;
+    }
+
+    public int getIdListLoadCount() {
+        return mIdListLoads.get();
+    }
+
+    public int getProfileLoadCount() {
+        return mProfileLoads.get();
+    }
+}
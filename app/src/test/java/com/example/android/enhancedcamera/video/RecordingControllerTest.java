@@ -0,0 +1,221 @@
+package com.example.android.enhancedcamera.video;
+
+import android.view.Surface;
+
+import com.example.android.enhancedcamera.common.SerialCameraExecutor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Runs the controller against a {@link SerialCameraExecutor}, checking
+ * that recorder work stays off the UI thread and that every listener
+ * event arrives on it.
+ */
+public class RecordingControllerTest {
+    private static final long TIMEOUT_MS = 2000;
+    private static final File VIDEO_FILE = new File("video.mp4");
+
+    private SerialCameraExecutor mExecutor;
+    private TestEngine mEngine;
+    private RecordingController mController;
+
+    //Events in the order the listener saw them
+    private final BlockingQueue<String> mEvents =
+            new LinkedBlockingQueue<String>();
+    //Threads that did work they should not have
+    private final List<String> mWrongThreads =
+            new CopyOnWriteArrayList<String>();
+    private volatile Thread mTestThread;
+
+    @Before
+    public void setUp() {
+        mTestThread = Thread.currentThread();
+        mExecutor = new SerialCameraExecutor();
+        mEngine = new TestEngine();
+        VideoCaptureCallback callback =
+                new VideoCaptureCallback(null, null, null, mExecutor) {
+            @Override
+            public void startPreviewSession() {
+                checkRecorderThread("startPreviewSession");
+            }
+        };
+        mController = new RecordingController(callback, mExecutor,
+                mListener);
+    }
+
+    @After
+    public void tearDown() {
+        mController.release();
+        mExecutor.shutdown();
+    }
+
+    @Test
+    public void recordingCycle() throws InterruptedException {
+        mController.setCaptureTarget(mEngine);
+        expect("IDLE", "PREPARING", "READY");
+
+        mController.startRecording();
+        expect("RECORDING");
+
+        mController.stopRecording();
+        expect("STOPPING", "saved " + VIDEO_FILE.getName(), "IDLE",
+                "PREPARING", "READY");
+        assertEquals(2, mEngine.mPrepareCount);
+        assertEquals(Collections.<String>emptyList(), mWrongThreads);
+    }
+
+    @Test
+    public void startBeforeReadyIsRejected() throws InterruptedException {
+        mController.startRecording();
+        expect("rejected IDLE");
+        assertEquals(Collections.<String>emptyList(), mWrongThreads);
+    }
+
+    @Test
+    public void failedPrepareIsReported() throws InterruptedException {
+        mEngine.mFailPrepare = true;
+        mController.setCaptureTarget(mEngine);
+        expect("IDLE", "PREPARING", "IDLE", "failed");
+
+        //Nothing to record with
+        mController.startRecording();
+        expect("rejected IDLE");
+        assertEquals(Collections.<String>emptyList(), mWrongThreads);
+    }
+
+    @Test
+    public void engineStopIsQueued() throws InterruptedException {
+        mController.setCaptureTarget(mEngine);
+        mController.startRecording();
+        expect("IDLE", "PREPARING", "READY", "RECORDING");
+
+        //Engines ask from their own threads
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                mEngine.mStopListener.onStopRequested(mEngine,
+                        "Storage is full");
+            }
+        });
+        writer.start();
+        writer.join();
+        expect("STOPPING", "saved " + VIDEO_FILE.getName(), "IDLE",
+                "stopped Storage is full", "PREPARING", "READY");
+
+        //A late request, after the recording ended, is dropped
+        mEngine.mStopListener.onStopRequested(mEngine, "Storage is full");
+        mController.startRecording();
+        expect("RECORDING");
+        assertEquals(Collections.<String>emptyList(), mWrongThreads);
+    }
+
+    private void expect(String... events) throws InterruptedException {
+        for (String event : events) {
+            String actual = mEvents.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            assertNotNull("Timed out waiting for " + event, actual);
+            assertEquals(event, actual);
+        }
+    }
+
+    private void checkRecorderThread(String work) {
+        Thread thread = Thread.currentThread();
+        if (thread == mTestThread || isUiThread()) {
+            mWrongThreads.add(work + " on " + thread.getName());
+        }
+    }
+
+    private void onEvent(String event) {
+        if (!isUiThread()) {
+            mWrongThreads.add(event + " on "
+                    + Thread.currentThread().getName());
+        }
+        mEvents.add(event);
+    }
+
+    private static boolean isUiThread() {
+        return "UiThread".equals(Thread.currentThread().getName());
+    }
+
+    private final RecordingController.Listener mListener =
+            new RecordingController.Listener() {
+        @Override
+        public void onStateChanged(RecordingController.State state) {
+            onEvent(state.name());
+        }
+
+        @Override
+        public void onRecordingSaved(File file) {
+            onEvent("saved " + file.getName());
+        }
+
+        @Override
+        public void onRecordingStopped(String reason) {
+            onEvent("stopped " + reason);
+        }
+
+        @Override
+        public void onRecordingFailed(Exception e) {
+            onEvent("failed");
+        }
+
+        @Override
+        public void onStartRejected(RecordingController.State state) {
+            onEvent("rejected " + state.name());
+        }
+    };
+
+    private class TestEngine implements RecordingEngine {
+        volatile StopListener mStopListener;
+        volatile boolean mFailPrepare;
+        volatile int mPrepareCount;
+
+        @Override
+        public void setStopListener(StopListener listener) {
+            mStopListener = listener;
+        }
+
+        @Override
+        public void prepare() throws IOException {
+            checkRecorderThread("prepare");
+            mPrepareCount++;
+            if (mFailPrepare) {
+                throw new IOException("No space left");
+            }
+        }
+
+        @Override
+        public Surface getRecorderSurface() {
+            return null;
+        }
+
+        @Override
+        public void startRecording() {
+            checkRecorderThread("startRecording");
+        }
+
+        @Override
+        public File stopRecording() {
+            checkRecorderThread("stopRecording");
+            return VIDEO_FILE;
+        }
+
+        @Override
+        public void close() {
+            checkRecorderThread("close");
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package android.hardware.camera2;
+
+/**
+ * Stand-in for the framework class, with just the effect modes the
+ * software effects are keyed on, the focus/exposure values the
+ * capture state machine reads and the hardware levels the resolution
+ * planner reads. Values match the framework.
+ */
+public abstract class CameraMetadata<TKey> {
+    public static final int CONTROL_EFFECT_MODE_OFF = 0;
+    public static final int CONTROL_EFFECT_MODE_MONO = 1;
+    public static final int CONTROL_EFFECT_MODE_NEGATIVE = 2;
+    public static final int CONTROL_EFFECT_MODE_SOLARIZE = 3;
+    public static final int CONTROL_EFFECT_MODE_SEPIA = 4;
+    public static final int CONTROL_EFFECT_MODE_POSTERIZE = 5;
+    public static final int CONTROL_EFFECT_MODE_WHITEBOARD = 6;
+    public static final int CONTROL_EFFECT_MODE_BLACKBOARD = 7;
+    public static final int CONTROL_EFFECT_MODE_AQUA = 8;
+
+    public static final int CONTROL_AF_MODE_OFF = 0;
+    public static final int CONTROL_AF_MODE_CONTINUOUS_PICTURE = 4;
+    public static final int CONTROL_AF_STATE_PASSIVE_FOCUSED = 2;
+    public static final int CONTROL_AF_STATE_ACTIVE_SCAN = 3;
+    public static final int CONTROL_AF_STATE_FOCUSED_LOCKED = 4;
+    public static final int CONTROL_AF_STATE_NOT_FOCUSED_LOCKED = 5;
+    public static final int CONTROL_AE_STATE_SEARCHING = 1;
+    public static final int CONTROL_AE_STATE_CONVERGED = 2;
+    public static final int CONTROL_AE_STATE_LOCKED = 3;
+    public static final int CONTROL_AE_STATE_FLASH_REQUIRED = 4;
+    public static final int CONTROL_AE_STATE_PRECAPTURE = 5;
+
+    public static final int INFO_SUPPORTED_HARDWARE_LEVEL_LIMITED = 0;
+    public static final int INFO_SUPPORTED_HARDWARE_LEVEL_FULL = 1;
+    public static final int INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY = 2;
+}
@@ -0,0 +1,15 @@
+package android.os;
+
+/**
+ * Stand-in for the framework class. Thread priorities are left to the
+ * JVM when benchmarking.
+ */
+public final class Process {
+    public static final int THREAD_PRIORITY_BACKGROUND = 10;
+
+    private Process() {
+    }
+
+    public static void setThreadPriority(int priority) {
+    }
+}
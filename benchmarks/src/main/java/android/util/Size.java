@@ -0,0 +1,42 @@
+package android.util;
+
+/**
+ * Stand-in for the framework class, so app code that only needs
+ * dimensions can be benchmarked on a plain JVM.
+ */
+public final class Size {
+    private final int mWidth;
+    private final int mHeight;
+
+    public Size(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof Size)) {
+            return false;
+        }
+        Size other = (Size) obj;
+        return mWidth == other.mWidth && mHeight == other.mHeight;
+    }
+
+    @Override
+    public int hashCode() {
+        return mHeight ^ ((mWidth << 16) | (mWidth >>> 16));
+    }
+
+    @Override
+    public String toString() {
+        return mWidth + "x" + mHeight;
+    }
+}
@@ -0,0 +1,307 @@
+package com.example.android.enhancedcamera.benchmarks;
+
+import com.example.android.enhancedcamera.image.CaptureStateMachine;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static android.hardware.camera2.CameraMetadata.*;
+
+/**
+ * The still capture {@link CaptureStateMachine}, driven through whole
+ * focus/exposure sequences by scripted results.
+ *
+ * Camera2 results are replaced by a small keyed stand-in with the same
+ * boxed lookups, and session calls by the actions the machine returns,
+ * so only the per-result decision logic is measured. Every benchmark
+ * checks the outcome, so a run is also a correctness check.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CaptureStateMachineBenchmark {
+
+    //Stand-in for CaptureResult.Key
+    static final class Key<T> {
+        final String mName;
+
+        Key(String name) {
+            mName = name;
+        }
+    }
+
+    static final Key<Integer> CONTROL_AF_MODE =
+            new Key<Integer>("android.control.afMode");
+    static final Key<Integer> CONTROL_AF_STATE =
+            new Key<Integer>("android.control.afState");
+    static final Key<Integer> CONTROL_AE_STATE =
+            new Key<Integer>("android.control.aeState");
+
+    //Stand-in for CaptureResult, a keyed metadata lookup
+    static final class SyntheticResult {
+        private final Map<Key<?>, Object> mValues =
+                new HashMap<Key<?>, Object>();
+
+        SyntheticResult(int afMode, int afState, Integer aeState) {
+            mValues.put(CONTROL_AF_MODE, afMode);
+            mValues.put(CONTROL_AF_STATE, afState);
+            if (aeState != null) {
+                mValues.put(CONTROL_AE_STATE, aeState);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        <T> T get(Key<T> key) {
+            return (T) mValues.get(key);
+        }
+    }
+
+    public enum Scenario {
+        /** Focus scans briefly, exposure is already converged */
+        CONVERGED,
+        /** Low light, a precapture sequence runs before the still */
+        FLASH,
+        /** Devices that never report an exposure state */
+        NO_AE_STATE
+    }
+
+    //Converged preview frames the machine needs for the fast path
+    private static final int STABLE_FRAMES = 3;
+
+    @Param({"CONVERGED", "FLASH", "NO_AE_STATE"})
+    public Scenario scenario;
+
+    //Presses during a capture, after each of its results
+    @Param({"1"})
+    public int pressesPerResult;
+
+    private SyntheticResult[] mScript;
+    private CaptureStateMachine mMachine;
+    private SyntheticResult mIdleResult;
+
+    @Setup
+    public void setUp() {
+        mScript = createScript(scenario);
+        mIdleResult = mScript[0];
+        mMachine = new CaptureStateMachine();
+        mMachine.setRequiredStableFrames(STABLE_FRAMES);
+    }
+
+    static SyntheticResult[] createScript(Scenario scenario) {
+        List<SyntheticResult> script = new ArrayList<SyntheticResult>();
+        int af = CONTROL_AF_MODE_CONTINUOUS_PICTURE;
+        switch (scenario) {
+            case CONVERGED:
+                for (int i = 0; i < 4; i++) {
+                    script.add(new SyntheticResult(af,
+                            CONTROL_AF_STATE_ACTIVE_SCAN,
+                            CONTROL_AE_STATE_CONVERGED));
+                }
+                script.add(new SyntheticResult(af,
+                        CONTROL_AF_STATE_FOCUSED_LOCKED,
+                        CONTROL_AE_STATE_CONVERGED));
+                script.add(new SyntheticResult(af,
+                        CONTROL_AF_STATE_FOCUSED_LOCKED,
+                        CONTROL_AE_STATE_CONVERGED));
+                break;
+            case FLASH:
+                for (int i = 0; i < 4; i++) {
+                    script.add(new SyntheticResult(af,
+                            CONTROL_AF_STATE_ACTIVE_SCAN,
+                            CONTROL_AE_STATE_SEARCHING));
+                }
+                script.add(new SyntheticResult(af,
+                        CONTROL_AF_STATE_FOCUSED_LOCKED,
+                        CONTROL_AE_STATE_SEARCHING));
+                for (int i = 0; i < 6; i++) {
+                    script.add(new SyntheticResult(af,
+                            CONTROL_AF_STATE_FOCUSED_LOCKED,
+                            CONTROL_AE_STATE_PRECAPTURE));
+                }
+                script.add(new SyntheticResult(af,
+                        CONTROL_AF_STATE_FOCUSED_LOCKED,
+                        CONTROL_AE_STATE_FLASH_REQUIRED));
+                break;
+            case NO_AE_STATE:
+                script.add(new SyntheticResult(CONTROL_AF_MODE_OFF,
+                        CONTROL_AF_STATE_ACTIVE_SCAN, null));
+                script.add(new SyntheticResult(CONTROL_AF_MODE_OFF,
+                        CONTROL_AF_STATE_ACTIVE_SCAN, null));
+                break;
+        }
+        return script.toArray(new SyntheticResult[script.size()]);
+    }
+
+    /*
+     * One full sequence: the shutter starts the machine waiting for
+     * focus, then results are fed until the still is requested.
+     */
+    @Benchmark
+    public long captureSequence() {
+        start(mMachine);
+        if (runToStill(mMachine, mScript, 0) < 0) {
+            throw new IllegalStateException("Sequence did not complete");
+        }
+        expect(mMachine.onStillCompleted(),
+                CaptureStateMachine.Action.UNLOCK_FOCUS);
+        return mMachine.getCaptures();
+    }
+
+    //Results while idle, the cost paid for every preview frame
+    @Benchmark
+    public boolean idleResult() {
+        if (mMachine.isWaitingForResult()) {
+            return feed(mMachine, mIdleResult)
+                    != CaptureStateMachine.Action.NONE;
+        }
+        mMachine.onPreviewResult(mIdleResult.get(CONTROL_AF_MODE),
+                mIdleResult.get(CONTROL_AF_STATE),
+                mIdleResult.get(CONTROL_AE_STATE));
+        return false;
+    }
+
+    /*
+     * Fast shutter: the preview has settled, so a press requests the
+     * still with no focus or exposure results in between. Compare with
+     * captureSequence, which waits for a whole script of results.
+     */
+    @Benchmark
+    public long fastShutter() {
+        for (int i = 0; i < STABLE_FRAMES; i++) {
+            mMachine.onPreviewResult(CONTROL_AF_MODE_CONTINUOUS_PICTURE,
+                    CONTROL_AF_STATE_PASSIVE_FOCUSED,
+                    CONTROL_AE_STATE_CONVERGED);
+        }
+        expect(mMachine.onShutter(),
+                CaptureStateMachine.Action.CAPTURE_STILL_FAST);
+        expect(mMachine.onStillCompleted(),
+                CaptureStateMachine.Action.UNLOCK_FOCUS);
+        return mMachine.getFastCaptures();
+    }
+
+    /*
+     * Rapid presses: presses land after every result of a capture, and
+     * after its still was requested. They must all fold into exactly one
+     * follow-up capture, which runs once the first still is done.
+     */
+    @Benchmark
+    public long rapidPresses() {
+        long presses = mMachine.getPresses();
+        long coalesced = mMachine.getCoalescedPresses();
+        long captures = mMachine.getCaptures();
+
+        start(mMachine);
+        runToStill(mMachine, mScript, pressesPerResult);
+        expect(mMachine.onShutter(), CaptureStateMachine.Action.QUEUE);
+        for (int i = 1; i < pressesPerResult; i++) {
+            expect(mMachine.onShutter(),
+                    CaptureStateMachine.Action.COALESCE);
+        }
+
+        expect(mMachine.onStillCompleted(),
+                CaptureStateMachine.Action.RELOCK_FOCUS);
+        runToStill(mMachine, mScript, 0);
+        expect(mMachine.onStillCompleted(),
+                CaptureStateMachine.Action.UNLOCK_FOCUS);
+        //One press started the capture and one queued the next
+        presses = mMachine.getPresses() - presses;
+        coalesced = mMachine.getCoalescedPresses() - coalesced;
+        if (mMachine.getCaptures() - captures != 2
+                || coalesced != presses - 2) {
+            throw new IllegalStateException("Presses not coalesced: "
+                    + mMachine);
+        }
+        return mMachine.getCaptures();
+    }
+
+    /*
+     * Presses from one thread racing results from another, as with
+     * the UI and camera threads. Each thread fires a transition per
+     * call, so this measures the compare-and-set under contention.
+     */
+    @State(Scope.Group)
+    public static class Shared {
+        final CaptureStateMachine machine = new CaptureStateMachine();
+        SyntheticResult[] script;
+        //Only touched by the results thread
+        int nextResult;
+
+        @Setup
+        public void setUp() {
+            script = createScript(Scenario.FLASH);
+        }
+    }
+
+    @Benchmark
+    @Group("contended")
+    public CaptureStateMachine.Action contendedPress(Shared shared) {
+        return shared.machine.onShutter();
+    }
+
+    @Benchmark
+    @Group("contended")
+    public CaptureStateMachine.Action contendedResults(Shared shared) {
+        CaptureStateMachine machine = shared.machine;
+        CaptureStateMachine.Action action = feed(machine,
+                shared.script[shared.nextResult]);
+        shared.nextResult = (shared.nextResult + 1) % shared.script.length;
+        if (machine.getState() == CaptureStateMachine.STATE_PICTURE_TAKEN
+                || machine.getState()
+                == CaptureStateMachine.STATE_PICTURE_TAKEN_QUEUED) {
+            return machine.onStillCompleted();
+        }
+        return action;
+    }
+
+    private static void start(CaptureStateMachine machine) {
+        expect(machine.onShutter(), CaptureStateMachine.Action.LOCK_FOCUS);
+    }
+
+    /*
+     * Feed the script until the still is requested, pressing the given
+     * number of times after each result. Returns the results used, or
+     * -1 if the script ran out first.
+     */
+    private static int runToStill(CaptureStateMachine machine,
+                                  SyntheticResult[] script, int presses) {
+        for (int i = 0; i < script.length; i++) {
+            CaptureStateMachine.Action action = feed(machine, script[i]);
+            if (action == CaptureStateMachine.Action.CAPTURE_STILL) {
+                return i + 1;
+            }
+            for (int p = 0; p < presses; p++) {
+                expect(machine.onShutter(),
+                        CaptureStateMachine.Action.COALESCE);
+            }
+        }
+        return -1;
+    }
+
+    private static CaptureStateMachine.Action feed(
+            CaptureStateMachine machine, SyntheticResult result) {
+        return machine.onResult(result.get(CONTROL_AF_MODE),
+                result.get(CONTROL_AF_STATE),
+                result.get(CONTROL_AE_STATE));
+    }
+
+    private static void expect(CaptureStateMachine.Action actual,
+                               CaptureStateMachine.Action expected) {
+        if (actual != expected) {
+            throw new IllegalStateException("Expected " + expected
+                    + " but got " + actual);
+        }
+    }
+}
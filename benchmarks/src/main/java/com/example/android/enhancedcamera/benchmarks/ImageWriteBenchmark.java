@@ -0,0 +1,136 @@
+package com.example.android.enhancedcamera.benchmarks;
+
+import com.example.android.enhancedcamera.image.ChannelFileWriter;
+import com.example.android.enhancedcamera.image.ImageWriteQueue;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The ImageSaver save path end to end: planes go through the
+ * ImageWriteQueue, either copied into pooled buffers or lent with an
+ * owner to release, and are written by the queue's writer threads.
+ * Each invocation saves a small burst and waits for every write.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ImageWriteBenchmark {
+
+    //Images saved per invocation, matching the queue capacity
+    private static final int IMAGES = 4;
+
+    public enum Handoff {
+        /** Copy into a pooled buffer, as for frames the caller keeps */
+        COPY,
+        /** Lend the plane, as ImageSaver does with reader images */
+        LEND
+    }
+
+    @Param({"2097152", "8388608"})
+    public int bufferSize;
+
+    @Param({"1", "2"})
+    public int writers;
+
+    @Param({"COPY", "LEND"})
+    public Handoff handoff;
+
+    private final Semaphore mWritten = new Semaphore(0);
+    //Stand-in for an Image, nothing to release
+    private final AutoCloseable mOwner = new AutoCloseable() {
+        @Override
+        public void close() {
+        }
+    };
+
+    private ByteBuffer[] mPlanes;
+    private File mDirectory;
+    private File[] mDests;
+    private ImageWriteQueue mQueue;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Random random = new Random(42);
+        byte[] content = new byte[bufferSize];
+        mPlanes = new ByteBuffer[IMAGES];
+        for (int i = 0; i < IMAGES; i++) {
+            random.nextBytes(content);
+            mPlanes[i] = ByteBuffer.allocateDirect(bufferSize);
+            mPlanes[i].put(content);
+            mPlanes[i].flip();
+        }
+
+        mDirectory = File.createTempFile("imagewrite", "");
+        mDirectory.delete();
+        mDirectory.mkdirs();
+        mDests = new File[IMAGES];
+        for (int i = 0; i < IMAGES; i++) {
+            mDests[i] = new File(mDirectory, "capture" + i + ".jpg");
+        }
+
+        mQueue = new ImageWriteQueue(IMAGES, writers,
+                new ChannelFileWriter(ChannelFileWriter.Durability.NONE),
+                new ImageWriteQueue.Callback() {
+                    @Override
+                    public void onImageWritten(File file) {
+                        mWritten.release();
+                    }
+
+                    @Override
+                    public void onImageWriteFailed(File file,
+                                                   IOException e) {
+                        mWritten.release();
+                    }
+                });
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        final Semaphore terminated = new Semaphore(0);
+        mQueue.shutdown(new Runnable() {
+            @Override
+            public void run() {
+                terminated.release();
+            }
+        });
+        terminated.acquire();
+
+        for (File dest : mDests) {
+            dest.delete();
+        }
+        mDirectory.delete();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(IMAGES)
+    public void saveBurst() throws InterruptedException {
+        for (int i = 0; i < IMAGES; i++) {
+            ByteBuffer plane = mPlanes[i].duplicate();
+            boolean accepted = (handoff == Handoff.COPY)
+                    ? mQueue.enqueue(plane, mDests[i])
+                    : mQueue.enqueue(plane, mOwner, mDests[i]);
+            if (!accepted) {
+                throw new IllegalStateException("Write queue is full");
+            }
+        }
+
+        mWritten.acquire(IMAGES);
+    }
+}
@@ -0,0 +1,96 @@
+package com.example.android.enhancedcamera.benchmarks;
+
+import com.example.android.enhancedcamera.image.ChannelFileWriter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the original JPEG save path (copy the plane into a new byte[],
+ * write through a FileOutputStream) against ChannelFileWriter, which
+ * writes the direct buffer straight to a FileChannel. Buffers are sized
+ * like full-resolution JPEGs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class JpegWriteBenchmark {
+
+    @Param({"2097152", "8388608"})
+    public int bufferSize;
+
+    @Param({"NONE", "SYNC_ON_CLOSE", "BATCHED"})
+    public ChannelFileWriter.Durability durability;
+
+    private static final int BATCH_SIZE = 4;
+
+    private ByteBuffer mPlane;
+    private File mDirectory;
+    private File mDest;
+    private ChannelFileWriter mWriter;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        //Stand-in for Image.Plane.getBuffer(), which is always direct
+        byte[] content = new byte[bufferSize];
+        new Random(42).nextBytes(content);
+        mPlane = ByteBuffer.allocateDirect(bufferSize);
+        mPlane.put(content);
+        mPlane.flip();
+
+        mDirectory = File.createTempFile("jpegwrite", "");
+        mDirectory.delete();
+        mDirectory.mkdirs();
+        mDest = new File(mDirectory, "capture.jpg");
+
+        mWriter = new ChannelFileWriter(durability, BATCH_SIZE);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        mWriter.flush();
+        mDest.delete();
+        mDirectory.delete();
+    }
+
+    /*
+     * Original ImageSaver path. There is no batched mode for a stream,
+     * so only SYNC_ON_CLOSE adds a sync here.
+     */
+    @Benchmark
+    public void streamWithHeapCopy() throws IOException {
+        ByteBuffer buffer = mPlane.duplicate();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+
+        FileOutputStream output = new FileOutputStream(mDest);
+        try {
+            output.write(bytes);
+            if (durability == ChannelFileWriter.Durability.SYNC_ON_CLOSE) {
+                output.getFD().sync();
+            }
+        } finally {
+            output.close();
+        }
+    }
+
+    @Benchmark
+    public void channelZeroCopy() throws IOException {
+        mWriter.write(mDest, mPlane.duplicate());
+    }
+}
@@ -0,0 +1,116 @@
+package com.example.android.enhancedcamera.benchmarks;
+
+import android.hardware.camera2.CameraMetadata;
+import android.util.Size;
+
+import com.example.android.enhancedcamera.common.ResolutionPlanner;
+import com.example.android.enhancedcamera.common.SizeSelector;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Preview size selection over output size tables like those a current
+ * back camera reports, for a few common view sizes. The joint planner
+ * runs over the same table for every stream, with frame and stall
+ * durations that grow with size the way a FULL device reports them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SizeSelectionBenchmark {
+
+    //SurfaceTexture sizes reported by a typical 13MP back camera
+    private static final int[][] PREVIEW_TABLE = {
+            {4160, 3120}, {4160, 2340}, {4000, 3000}, {3840, 2160},
+            {3264, 2448}, {3200, 2400}, {2592, 1944}, {2048, 1536},
+            {1920, 1440}, {1920, 1080}, {1600, 1200}, {1440, 1080},
+            {1280, 960}, {1280, 768}, {1280, 720}, {1024, 768},
+            {800, 600}, {800, 480}, {720, 480}, {640, 480},
+            {640, 360}, {352, 288}, {320, 240}, {176, 144}
+    };
+
+    private static final long FRAME_DURATION_NS = 1000000000L / 30;
+    private static final Size DISPLAY_SIZE = new Size(1080, 1920);
+    private static final Size MAX_RECORD_SIZE = new Size(3840, 2160);
+
+    //View width x height, in the sensor's landscape orientation
+    @Param({"1920x1080", "1280x720", "640x480", "8000x6000"})
+    public String viewSize;
+
+    private Size[] mChoices;
+    private Size[] mSortScratch;
+    private int mWidth;
+    private int mHeight;
+    private SizeSelector.CompareSizesByArea mComparator;
+    private ResolutionPlanner mPlanner;
+
+    @Setup
+    public void setUp() {
+        mChoices = new Size[PREVIEW_TABLE.length];
+        for (int i = 0; i < PREVIEW_TABLE.length; i++) {
+            mChoices[i] = new Size(PREVIEW_TABLE[i][0], PREVIEW_TABLE[i][1]);
+        }
+        mSortScratch = new Size[mChoices.length];
+        mComparator = new SizeSelector.CompareSizesByArea();
+
+        ResolutionPlanner.Output[] streams =
+                new ResolutionPlanner.Output[mChoices.length];
+        ResolutionPlanner.Output[] stills =
+                new ResolutionPlanner.Output[mChoices.length];
+        for (int i = 0; i < mChoices.length; i++) {
+            long area = (long) mChoices[i].getWidth()
+                    * mChoices[i].getHeight();
+            //Above 8MP the sensor drops to 20fps
+            long frameDuration = (area > 8000000)
+                    ? FRAME_DURATION_NS * 3 / 2 : FRAME_DURATION_NS;
+            streams[i] = new ResolutionPlanner.Output(mChoices[i],
+                    frameDuration, 0);
+            //JPEG stalls about 10ns per pixel
+            stills[i] = new ResolutionPlanner.Output(mChoices[i],
+                    frameDuration, area * 10);
+        }
+        mPlanner = new ResolutionPlanner(
+                CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_FULL,
+                streams, streams, stills, streams,
+                DISPLAY_SIZE, MAX_RECORD_SIZE);
+
+        String[] dimensions = viewSize.split("x");
+        mWidth = Integer.parseInt(dimensions[0]);
+        mHeight = Integer.parseInt(dimensions[1]);
+    }
+
+    @Benchmark
+    public Size chooseOptimalSize() {
+        return SizeSelector.chooseOptimalSize(mChoices, mWidth, mHeight);
+    }
+
+    //Ordering a table for display, which leans on the comparator alone
+    @Benchmark
+    public Size[] sortByArea() {
+        System.arraycopy(mChoices, 0, mSortScratch, 0, mChoices.length);
+        Arrays.sort(mSortScratch, mComparator);
+        return mSortScratch;
+    }
+
+    @Benchmark
+    public ResolutionPlanner.Plan planStill() {
+        return mPlanner.plan(ResolutionPlanner.UseCase.STILL,
+                mWidth, mHeight, FRAME_DURATION_NS);
+    }
+
+    @Benchmark
+    public ResolutionPlanner.Plan planVideo() {
+        return mPlanner.plan(ResolutionPlanner.UseCase.VIDEO,
+                mWidth, mHeight, FRAME_DURATION_NS);
+    }
+}
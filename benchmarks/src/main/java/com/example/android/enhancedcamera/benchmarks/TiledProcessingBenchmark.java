@@ -0,0 +1,80 @@
+package com.example.android.enhancedcamera.benchmarks;
+
+import com.example.android.enhancedcamera.processing.SharpenKernel;
+import com.example.android.enhancedcamera.processing.SpeedupCurve;
+import com.example.android.enhancedcamera.processing.TiledProcessor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sharpening a synthetic 12MP ARGB still with the TiledProcessor, at a
+ * range of thread counts. The single thread score is the baseline for
+ * the speed-up at each of the others.
+ *
+ * For the whole curve up to every core of this machine in one go, run
+ * main(): ./gradlew :benchmarks:speedup
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TiledProcessingBenchmark {
+
+    private static final int WIDTH = 4000;
+    private static final int HEIGHT = 3000;
+
+    @Param({"1", "2", "4", "8"})
+    public int parallelism;
+
+    private SharpenKernel mKernel;
+    private TiledProcessor mProcessor;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mKernel = createKernel();
+        mProcessor = new TiledProcessor(parallelism);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mProcessor.shutdown();
+    }
+
+    //Frame buffers are bound to the kernel, and reused every run
+    private static SharpenKernel createKernel() {
+        Random random = new Random(42);
+        int[] src = new int[WIDTH * HEIGHT];
+        for (int i = 0; i < src.length; i++) {
+            src[i] = 0xFF000000 | random.nextInt(0x1000000);
+        }
+
+        SharpenKernel kernel = new SharpenKernel(SharpenKernel.FULL_STRENGTH);
+        kernel.setFrame(src, new int[src.length], WIDTH, HEIGHT);
+        return kernel;
+    }
+
+    @Benchmark
+    public SharpenKernel sharpen() {
+        mProcessor.process(mKernel, HEIGHT, WIDTH * 4);
+        return mKernel;
+    }
+
+    public static void main(String[] args) {
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.println("Sharpen " + WIDTH + "x" + HEIGHT + " ARGB, "
+                + cores + " cores");
+        System.out.print(SpeedupCurve.measure(createKernel(), HEIGHT,
+                WIDTH * 4, cores, 5));
+    }
+}
@@ -0,0 +1,85 @@
+package com.example.android.enhancedcamera.benchmarks;
+
+import com.example.android.enhancedcamera.effects.YuvConverter;
+import com.example.android.enhancedcamera.effects.YuvEffect;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Software effects over a synthetic YUV 4:2:0 frame: the table lookups
+ * alone, and with the conversion to ARGB that display needs on top.
+ * Effect ids are the CONTROL_EFFECT_MODE values.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class YuvEffectBenchmark {
+
+    //Mono, Negative, Solarize, Sepia, Posterize, Whiteboard,
+    // Blackboard, Aqua
+    @Param({"1", "2", "3", "4", "5", "6", "7", "8"})
+    public int effect;
+
+    //Width x height of the frame
+    @Param({"640x480", "1280x720"})
+    public String frameSize;
+
+    private int mWidth;
+    private int mHeight;
+    private YuvEffect mEffect;
+    private byte[] mSrcY;
+    private byte[] mSrcU;
+    private byte[] mSrcV;
+    private byte[] mDstY;
+    private byte[] mDstU;
+    private byte[] mDstV;
+    private int[] mPixels;
+
+    @Setup
+    public void setUp() {
+        String[] dimensions = frameSize.split("x");
+        mWidth = Integer.parseInt(dimensions[0]);
+        mHeight = Integer.parseInt(dimensions[1]);
+        mEffect = YuvEffect.forMode(effect);
+
+        int lumaLength = mWidth * mHeight;
+        int chromaLength = (mWidth / 2) * (mHeight / 2);
+        Random random = new Random(42);
+        mSrcY = new byte[lumaLength];
+        mSrcU = new byte[chromaLength];
+        mSrcV = new byte[chromaLength];
+        random.nextBytes(mSrcY);
+        random.nextBytes(mSrcU);
+        random.nextBytes(mSrcV);
+        mDstY = new byte[lumaLength];
+        mDstU = new byte[chromaLength];
+        mDstV = new byte[chromaLength];
+        mPixels = new int[lumaLength];
+    }
+
+    @Benchmark
+    public byte[] applyEffect() {
+        mEffect.apply(mSrcY, mSrcU, mSrcV, mDstY, mDstU, mDstV,
+                mWidth, mHeight);
+        return mDstY;
+    }
+
+    //What SoftwareEffectRenderer does for every frame, minus drawing
+    @Benchmark
+    public int[] applyAndConvert() {
+        mEffect.apply(mSrcY, mSrcU, mSrcV, mDstY, mDstU, mDstV,
+                mWidth, mHeight);
+        YuvConverter.toArgb(mDstY, mDstU, mDstV, mWidth, mHeight, mPixels);
+        return mPixels;
+    }
+}